@@ -1,16 +1,47 @@
 package gitlet;
 
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 
+import static gitlet.Utils.*;
+
 /**
  * Represents a gitlet commit object.
  * does at a high level.
+ * commit以手写的规范二进制格式保存(见encode)，其id就是这段字节的SHA-1，
+ * 在创建时计算一次，之后不再依赖JVM序列化的内部细节。
+ * 仍然实现Serializable只是为了读出旧仓库里用ObjectOutputStream写的commit。
  *
  * @author 张婧
  */
 public class Commit implements Serializable {
+    /**
+     * 编码格式: "GCMT" | version(1 byte) | 父节点个数(1 byte) | 父节点hash(每个20 byte) |
+     * 时间戳(long) | message长度(int) | message(UTF-8) | 跟踪文件
+     * version 2中跟踪文件只是一个tree的hash(20 byte)，见Tree；
+     * version 1中是 跟踪文件个数(int) | 每个文件: 文件名长度(int) | 文件名(UTF-8) | blob hash(20 byte)，
+     * 跟踪文件按文件名排好序，所以同样的内容总是得到同样的字节和同样的id
+     */
+    private static final int MAGIC = 0x47434d54;
+    private static final byte VERSION = 2;
+    private static final byte VERSION_FLAT = 1;
+    private static final int HASH_BYTES = UID_LENGTH / 2;
+    /**
+     * Java序列化流的开头，用来识别旧格式的commit
+     */
+    private static final int LEGACY_MAGIC = 0xaced;
+    /*DateTimeFormatter是不可变的，可以在所有线程中共用，不用每个commit都新建一个SimpleDateFormat*/
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy Z", Locale.US);
     /**
      * 时间
      */
@@ -27,38 +58,246 @@ public class Commit implements Serializable {
      * 还需要一个描述某次commit的message
      */
     private String message;
+    /**
+     * commit的id，创建或读出时确定，不参与任何编码
+     */
+    private transient String hash;
+    /**
+     * 跟踪文件所在的tree，version 1和旧仓库的commit没有tree
+     */
+    private transient String tree;
+    /**
+     * 读出这个commit的仓库，tree的节点从这里读；新创建还没有保存的commit为null
+     */
+    private transient File repo;
+    /**
+     * 新创建的commit在内存中建好、还没有写进仓库的tree节点
+     */
+    private transient Map<String, byte[]> pendingTrees;
     private static final long serialVersionUID = 1L;
 
     public Commit() {
         this.message = "initial commit";
         this.parent = new ArrayList<>();
-        this.trackedFile = new TreeMap<>();
+        this.trackedFile = TrackedFiles.EMPTY;
         this.timestamp = new Date(0L);
+        this.pendingTrees = new LinkedHashMap<>();
+        this.tree = Tree.build(TrackedFiles.EMPTY, pendingTrees);
+        this.hash = sha1(encode());
     }
 
     public Commit(String parent, String message, Map<String, String> trackedFile) {
-        this.parent = new ArrayList<>();
-        this.parent.add(parent);
-        this.message = message;
-        this.trackedFile = trackedFile;
-        this.timestamp = new Date();
+        this(Collections.singletonList(parent), new Date(), message, trackedFile);
     }
 
     public Commit(String parent1, String parent2, String message, Map<String, String> trackedFile) {
-        this.parent = new ArrayList<>();
-        this.parent.add(parent1);
-        this.parent.add(parent2);
+        this(Arrays.asList(parent1, parent2), new Date(), message, trackedFile);
+    }
+
+    /**
+     * 给出全部字段来构造commit，迁移旧仓库时用来保留原来的时间戳
+     */
+    Commit(List<String> parents, Date timestamp, String message, Map<String, String> trackedFile) {
+        this.parent = new ArrayList<>(parents);
         this.message = message;
-        this.trackedFile = trackedFile;
-        this.timestamp = new Date();
+        TrackedFiles files = TrackedFiles.copyOf(trackedFile);
+        this.trackedFile = files;
+        this.timestamp = timestamp;
+        this.pendingTrees = new LinkedHashMap<>();
+        this.tree = Tree.build(files, pendingTrees);
+        this.hash = sha1(encode());
+    }
+
+    /**
+     * 返回这个commit的规范编码
+     */
+    public byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(tree == null ? VERSION_FLAT : VERSION);
+            out.writeByte(parent.size());
+            for (String parentHash : parent) {
+                out.write(hexToBytes(parentHash));
+            }
+            out.writeLong(timestamp.getTime());
+            byte[] messageInByte = message.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(messageInByte.length);
+            out.write(messageInByte);
+            if (tree != null) {
+                out.write(hexToBytes(tree));
+                out.close();
+                return bytes.toByteArray();
+            }
+            TrackedFiles sortedFiles = trackedFiles();
+            out.writeInt(sortedFiles.size());
+            for (Map.Entry<String, String> entry : sortedFiles.entrySet()) {
+                byte[] nameInByte = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(nameInByte.length);
+                out.write(nameInByte);
+                out.write(hexToBytes(entry.getValue()));
+            }
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw error("Internal error serializing commit.");
+        }
+    }
+
+    /**
+     * 从仓库REPO读出的BYTES中解码出id为HASH的commit，不经过反射。
+     * version 1的commit和旧仓库中用Java序列化写的commit也能读出来。
+     * version 2的跟踪文件只有在第一次用到时才从REPO中的tree读出来。
+     */
+    public static Commit decode(byte[] bytes, String hash, File repo) {
+        if (isLegacyEncoding(bytes)) {
+            Commit legacy = deserialize(bytes, Commit.class);
+            legacy.hash = hash;
+            return legacy;
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (in.getInt() != MAGIC) {
+            throw new IllegalArgumentException("unknown commit format " + hash);
+        }
+        byte version = in.get();
+        if (version != VERSION && version != VERSION_FLAT) {
+            throw new IllegalArgumentException("unknown commit format " + hash);
+        }
+        Commit commit = new Commit(hash);
+        commit.repo = repo;
+        int parentCount = in.get();
+        commit.parent = new ArrayList<>(parentCount);
+        for (int i = 0; i < parentCount; i += 1) {
+            commit.parent.add(bytesToHex(bytes, in.position(), HASH_BYTES));
+            in.position(in.position() + HASH_BYTES);
+        }
+        commit.timestamp = new Date(in.getLong());
+        int messageLength = in.getInt();
+        commit.message = new String(bytes, in.position(), messageLength, StandardCharsets.UTF_8);
+        in.position(in.position() + messageLength);
+        if (version == VERSION) {
+            commit.tree = bytesToHex(bytes, in.position(), HASH_BYTES);
+            return commit;
+        }
+        int fileCount = in.getInt();
+        List<String> names = new ArrayList<>(fileCount);
+        List<String> hashes = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i += 1) { //编码时就是按文件名排好序的
+            int nameLength = in.getInt();
+            names.add(new String(bytes, in.position(), nameLength, StandardCharsets.UTF_8));
+            in.position(in.position() + nameLength);
+            hashes.add(bytesToHex(bytes, in.position(), HASH_BYTES));
+            in.position(in.position() + HASH_BYTES);
+        }
+        commit.trackedFile = TrackedFiles.ofSorted(names, hashes);
+        return commit;
+    }
+
+    /*只供decode使用，字段由decode填充*/
+    private Commit(String hash) {
+        this.hash = hash;
+    }
+
+    /**
+     * 是否是旧仓库中用Java序列化保存的commit
+     */
+    public static boolean isLegacyEncoding(byte[] bytes) {
+        return bytes.length >= 2 && ((bytes[0] & 0xff) << 8 | (bytes[1] & 0xff)) == LEGACY_MAGIC;
     }
 
-    public Map<String, String> getTrackedFileCopy() {
+    /**
+     * 估计这个commit在内存中占用的字节数，供ObjectCache计算预算
+     */
+    long estimatedSize() {
+        long size = 128 + 2L * message.length() + 96L * parent.size();
+        if (trackedFile == null) {
+            return size;
+        }
+        for (Map.Entry<String, String> entry : trackedFile.entrySet()) {
+            size += 160 + 2L * entry.getKey().length();
+        }
+        return size;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * 读出这个commit的仓库，新创建的commit保存之后就是保存它的仓库
+     */
+    File getRepo() {
+        return repo;
+    }
+
+    public String getTreeHash() {
+        return tree;
+    }
+
+    /**
+     * 把这个commit的tree写进仓库DEST：新创建的commit写出内存中的节点，
+     * 从别的仓库读出的commit则把DEST中还没有的子树复制过去。必须在commit本身写进DEST之前调用
+     */
+    void saveTreeTo(File dest) {
+        if (tree == null) {
+            return;
+        }
+        if (pendingTrees != null) {
+            Tree.writeNodes(dest, pendingTrees);
+            pendingTrees = null;
+            repo = dest;
+        } else if (!dest.equals(repo)) {
+            Tree.copy(repo, dest, tree);
+        }
+    }
+
+    /**
+     * 返回这个commit跟踪的文件。返回的是只读的视图而不是副本，一个commit一旦提交就不能修改，
+     * 需要在此基础上修改时用getTrackedFiles().toBuilder()
+     */
+    public TrackedFiles getTrackedFiles() {
+        return trackedFiles();
+    }
+
+    /*跟踪的文件，version 2的commit在第一次调用时才从tree中读出*/
+    private TrackedFiles trackedFiles() {
+        if (trackedFile == null && tree != null) {
+            trackedFile = Tree.flatten(repo, tree);
+            ObjectCache.reweighCommit(repo, this); //放进缓存时还没有展开跟踪文件，大小要重新算
+        }
         if (trackedFile == null) {
-            return new TreeMap<>();
+            return TrackedFiles.EMPTY;
+        }
+        if (!(trackedFile instanceof TrackedFiles)) { //旧仓库中反序列化出来的TreeMap，只转换一次
+            trackedFile = TrackedFiles.copyOf(trackedFile);
+        }
+        return (TrackedFiles) trackedFile;
+    }
+
+    /**
+     * 返回从A到B所有发生变化的文件: 文件名 -> {在A中的hash, 在B中的hash}，不存在时为null。A为null时B中所有文件都算变化。
+     * 两个commit都有已经保存的tree时，相同的子树直接跳过，不需要展开整个文件列表
+     */
+    public static SortedMap<String, String[]> diff(Commit a, Commit b) {
+        if (a != null && a.tree != null && b.tree != null && a.repo != null && b.repo != null) {
+            return Tree.diff(a.repo, a.tree, b.repo, b.tree);
+        }
+        Map<String, String> before = a == null ? new TreeMap<>() : a.trackedFiles();
+        Map<String, String> after = b.trackedFiles();
+        SortedMap<String, String[]> result = new TreeMap<>();
+        for (Map.Entry<String, String> entry : after.entrySet()) {
+            String hashInA = before.get(entry.getKey());
+            if (!entry.getValue().equals(hashInA)) {
+                result.put(entry.getKey(), new String[]{hashInA, entry.getValue()});
+            }
         }
-        return new TreeMap<>(this.trackedFile);
-        //记得要返回一个副本，因为一个commit一旦提交，是不能修改的
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            if (!after.containsKey(entry.getKey())) {
+                result.put(entry.getKey(), new String[]{entry.getValue(), null});
+            }
+        }
+        return result;
     }
 
     public String getFirstParent() {
@@ -76,9 +315,18 @@ public class Commit implements Serializable {
     }
 
     public String getTimestamp() {
-        // 使用项目要求的格式来格式化日期
-        SimpleDateFormat formatter = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.US);
-        return formatter.format(this.timestamp);
+        return formatTimestamp(getTimeMillis());
+    }
+
+    /**
+     * 按项目要求的格式(log中Date:后面的部分)格式化时间TIMEMILLIS，使用本机的时区
+     */
+    static String formatTimestamp(long timeMillis) {
+        return TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(timeMillis).atZone(ZoneId.systemDefault()));
+    }
+
+    public long getTimeMillis() {
+        return timestamp.getTime();
     }
 
     public String getMessage() {
@@ -0,0 +1,154 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How log prints each commit: either the standard block or a --format template.
+ * 模板在解析参数时只编译一次，得到一串字面量和占位符，之后每个commit只需要按顺序拼接，不再重复扫描模板。
+ * 支持的占位符: %H hash，%h 缩写的hash，%P 父commit的hash，%p 缩写的父commit，%s message，
+ * %ad 日期(与log的Date相同的格式)，%at 以秒为单位的时间戳，%n 换行，%% 百分号；不认识的占位符原样输出。
+ * 和git的--format一样，每个commit展开后的模板后面跟一个换行。
+ *
+ * @author 张婧
+ */
+final class CommitFormat {
+    private static final int SHORT_HASH_LENGTH = 7;
+    private static final String NEWLINE = System.lineSeparator();
+
+    private enum Field {
+        HASH, SHORT_HASH, PARENTS, SHORT_PARENTS, MESSAGE, DATE, UNIX_TIME
+    }
+
+    /**
+     * 模板编译后的各段，每一项是String(字面量)或者Field；为null时使用标准格式
+     */
+    private final Object[] parts;
+    private final boolean showMerge;
+
+    private CommitFormat(Object[] parts, boolean showMerge) {
+        this.parts = parts;
+        this.showMerge = showMerge;
+    }
+
+    /**
+     * log的标准格式。global-log一直不打印Merge这一行，SHOWMERGE为false
+     */
+    static CommitFormat standard(boolean showMerge) {
+        return new CommitFormat(null, showMerge);
+    }
+
+    static CommitFormat compile(String template) {
+        List<Object> parts = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            Field field = null;
+            int length = 1;
+            if (c == '%' && i + 1 < template.length()) {
+                length = 2;
+                switch (template.charAt(i + 1)) {
+                    case 'H': field = Field.HASH; break;
+                    case 'h': field = Field.SHORT_HASH; break;
+                    case 'P': field = Field.PARENTS; break;
+                    case 'p': field = Field.SHORT_PARENTS; break;
+                    case 's': field = Field.MESSAGE; break;
+                    case 'n': literal.append(NEWLINE); break;
+                    case '%': literal.append('%'); break;
+                    case 'a':
+                        if (template.startsWith("%ad", i)) {
+                            field = Field.DATE;
+                            length = 3;
+                        } else if (template.startsWith("%at", i)) {
+                            field = Field.UNIX_TIME;
+                            length = 3;
+                        } else {
+                            literal.append("%a");
+                        }
+                        break;
+                    default:
+                        literal.append(template, i, i + 2);
+                }
+            } else {
+                literal.append(c);
+            }
+            if (field != null) {
+                if (literal.length() > 0) {
+                    parts.add(literal.toString());
+                    literal.setLength(0);
+                }
+                parts.add(field);
+            }
+            i += length;
+        }
+        if (literal.length() > 0) {
+            parts.add(literal.toString());
+        }
+        return new CommitFormat(parts.toArray(), false);
+    }
+
+    /**
+     * 把COMMIT按这个格式追加到OUT的末尾
+     */
+    void appendTo(StringBuilder out, CommitInfo commit) {
+        if (parts == null) {
+            appendStandard(out, commit);
+            return;
+        }
+        for (Object part : parts) {
+            if (part instanceof String) {
+                out.append((String) part);
+            } else {
+                appendField(out, (Field) part, commit);
+            }
+        }
+        out.append(NEWLINE);
+    }
+
+    private void appendStandard(StringBuilder out, CommitInfo commit) {
+        out.append("===").append(NEWLINE);
+        out.append("commit ").append(commit.getHash()).append(NEWLINE);
+        List<String> parentHashes = commit.getParents();
+        if (showMerge && parentHashes.size() > 1) {
+            out.append("Merge: ").append(parentHashes.get(0), 0, SHORT_HASH_LENGTH)
+                .append(' ').append(parentHashes.get(1), 0, SHORT_HASH_LENGTH).append(NEWLINE);
+        }
+        out.append("Date: ").append(commit.getTimestamp()).append(NEWLINE);
+        out.append(commit.getMessage()).append(NEWLINE);
+        out.append(NEWLINE);
+    }
+
+    private static void appendField(StringBuilder out, Field field, CommitInfo commit) {
+        switch (field) {
+            case HASH:
+                out.append(commit.getHash());
+                break;
+            case SHORT_HASH:
+                out.append(commit.getHash(), 0, SHORT_HASH_LENGTH);
+                break;
+            case PARENTS:
+            case SHORT_PARENTS:
+                List<String> parents = commit.getParents();
+                for (int i = 0; i < parents.size(); i += 1) {
+                    if (i > 0) {
+                        out.append(' ');
+                    }
+                    String parent = parents.get(i);
+                    out.append(parent, 0, field == Field.PARENTS ? parent.length() : SHORT_HASH_LENGTH);
+                }
+                break;
+            case MESSAGE:
+                out.append(commit.getMessage());
+                break;
+            case DATE:
+                out.append(commit.getTimestamp());
+                break;
+            case UNIX_TIME:
+                out.append(commit.getTimeMillis() / 1000);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown field " + field);
+        }
+    }
+}
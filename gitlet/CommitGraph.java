@@ -0,0 +1,469 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/**
+ * The commit-graph side file of a repository.
+ * 对每个commit记录它的父节点编号、时间戳和拓扑代数(generation number)，
+ * 这样merge找分裂点、log以及push/fetch的祖先遍历都只需要在这个紧凑的文件上进行，
+ * 不用再反序列化每一个Commit、也不用为每个访问到的节点重新计算getHashOf。
+ * generation(c) = 1 + max(generation(parent))，根节点为1。
+ * 如果a是b的祖先，那么一定有generation(a) < generation(b)，遍历时可以据此剪枝。
+ *
+ * @author 张婧
+ */
+public class CommitGraph {
+    /**
+     * 文件格式: "GCGR" | version | 若干条记录
+     * 每条记录: hash(20 byte) | 第一父节点编号 | 第二父节点编号 | 时间戳(long) | generation | 保留
+     * 记录按拓扑顺序追加，父节点的编号总是小于子节点，没有父节点时编号为-1
+     */
+    private static final int MAGIC = 0x47434752;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int RECORD_BYTES = 48;
+    private static final int HASH_BYTES = UID_LENGTH / 2;
+    private static final int NONE = -1;
+
+    /**
+     * 每个仓库已经加载的commit-graph
+     */
+    private static final Map<File, CommitGraph> LOADED = new HashMap<>();
+
+    private final File repo;
+    private final File graphFile;
+    private final List<String> hashes = new ArrayList<>();
+    private final Map<String, Integer> positions = new HashMap<>();
+    private int[] firstParents = new int[16];
+    private int[] secondParents = new int[16];
+    private long[] times = new long[16];
+    private int[] generations = new int[16];
+    private long loadedLength;
+    /**
+     * 图被整个重新加载的次数，之前拿到的编号在重新加载之后都失效了
+     */
+    private int reloads;
+
+    private CommitGraph(File repo) {
+        this.repo = repo;
+        this.graphFile = join(repo, "objects", "commit-graph");
+    }
+
+    /**
+     * 返回仓库REPO的commit-graph，文件被其他进程追加过时重新加载
+     */
+    public static synchronized CommitGraph of(File repo) {
+        File key = repo.getAbsoluteFile();
+        CommitGraph graph = LOADED.get(key);
+        if (graph == null || graph.graphFile.length() != graph.loadedLength) {
+            graph = new CommitGraph(repo);
+            graph.load();
+            LOADED.put(key, graph);
+        }
+        return graph;
+    }
+
+    /**
+     * 清空REPO的commit-graph，下次使用时从对象库重新生成。commit的id整体改变(例如迁移)以及reindex时调用。
+     * 拿着文件上的锁截成空文件而不是删掉，另一个进程正在追加时不会写进一个已经被删掉的文件
+     */
+    public static synchronized void reset(File repo) {
+        LOADED.remove(repo.getAbsoluteFile());
+        File graphFile = join(repo, "objects", "commit-graph");
+        if (!graphFile.isFile()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(graphFile.toPath(), StandardOpenOption.WRITE)) {
+            channel.lock(); //关闭通道时锁随之释放
+            channel.truncate(0);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /*不拿锁读整个文件。末尾不完整的记录可能是别的进程正在追加的，只忽略它，不截断*/
+    private void load() {
+        if (!graphFile.isFile()) {
+            return;
+        }
+        byte[] content = readContents(graphFile);
+        storeRecords(content, 0);
+        loadedLength = content.length;
+    }
+
+    /*
+     * 把CONTENT中的完整记录存进图里，CONTENT是文件从BASE开始的内容，BASE为0时包括文件头。
+     * 返回最后一条完整记录之后在文件中的位置
+     */
+    private long storeRecords(byte[] content, long base) {
+        int skip = 0;
+        if (base == 0) {
+            if (content.length < HEADER_BYTES) {
+                return 0;
+            }
+            if (ByteBuffer.wrap(content).getInt(0) != MAGIC) {
+                throw new IllegalArgumentException("corrupt commit-graph");
+            }
+            skip = HEADER_BYTES;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        int count = (content.length - skip) / RECORD_BYTES;
+        for (int i = 0; i < count; i += 1) {
+            int offset = skip + i * RECORD_BYTES;
+            String hash = bytesToHex(content, offset, HASH_BYTES);
+            store(hash, buffer.getInt(offset + 20), buffer.getInt(offset + 24),
+                    buffer.getLong(offset + 28), buffer.getInt(offset + 36));
+        }
+        return base + skip + (long) count * RECORD_BYTES;
+    }
+
+    private void store(String hash, int parent1, int parent2, long time, int generation) {
+        int position = hashes.size();
+        if (position == generations.length) {
+            int newLength = position * 2;
+            firstParents = Arrays.copyOf(firstParents, newLength);
+            secondParents = Arrays.copyOf(secondParents, newLength);
+            times = Arrays.copyOf(times, newLength);
+            generations = Arrays.copyOf(generations, newLength);
+        }
+        hashes.add(hash);
+        positions.put(hash, position);
+        firstParents[position] = parent1;
+        secondParents[position] = parent2;
+        times[position] = time;
+        generations[position] = generation;
+    }
+
+    /**
+     * 返回commit HASH在图中的编号。
+     * 如果它还不在图中(新的commit、fetch来的commit或者旧仓库)，就从对象库中读出它以及
+     * 所有还不在图中的祖先，按拓扑顺序追加进图里。对象库中也没有这个commit时返回-1。
+     */
+    public synchronized int indexOf(String hash) {
+        Integer known = positions.get(hash);
+        if (known != null) {
+            return known;
+        }
+        if (!ObjectStore.hasObject(repo, ObjectStore.COMMIT, hash)) {
+            return NONE;
+        }
+        //用显式的栈做后序遍历，保证父节点先于子节点被追加，长历史也不会栈溢出
+        Deque<String> stack = new ArrayDeque<>();
+        Map<String, Commit> loaded = new HashMap<>();
+        Map<String, Commit> toAppend = new LinkedHashMap<>(); //插入顺序就是拓扑顺序
+        stack.push(hash);
+        while (!stack.isEmpty()) {
+            String current = stack.peek();
+            if (positions.containsKey(current) || toAppend.containsKey(current)) {
+                stack.pop();
+                continue;
+            }
+            Commit commit = loaded.get(current);
+            if (commit == null) {
+                commit = GitletCore.loadCommitByHashRemote(current, repo);
+                loaded.put(current, commit);
+            }
+            boolean parentsReady = true;
+            for (String parent : commit.getParentList()) {
+                if (!positions.containsKey(parent) && !toAppend.containsKey(parent)) {
+                    parentsReady = false;
+                    stack.push(parent);
+                }
+            }
+            if (parentsReady) {
+                stack.pop();
+                toAppend.put(current, commit);
+            }
+        }
+        append(toAppend);
+        return positions.get(hash);
+    }
+
+    /*
+     * 按拓扑顺序把COMMITS中还不在图中的commit追加进文件。
+     * 父节点的编号就是它在文件中的位置，所以检查长度和追加都要拿着文件上的锁：先读进别的进程在这之后追加的记录，
+     * 再按最新的编号计算父节点。拿着锁时不会有人正在追加，末尾不完整的记录只可能是中断留下的，这时才截掉。
+     */
+    private void append(Map<String, Commit> commits) {
+        try (FileChannel channel = FileChannel.open(graphFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.lock(); //关闭通道时锁随之释放
+            long end = catchUp(channel);
+            ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + commits.size() * RECORD_BYTES);
+            if (end == 0) {
+                out.putInt(MAGIC);
+                out.putInt(VERSION);
+            }
+            for (Map.Entry<String, Commit> entry : commits.entrySet()) {
+                if (positions.containsKey(entry.getKey())) {
+                    continue; //别的进程已经追加过了
+                }
+                List<String> parents = entry.getValue().getParentList();
+                int parent1 = parents.size() > 0 ? positions.get(parents.get(0)) : NONE;
+                int parent2 = parents.size() > 1 ? positions.get(parents.get(1)) : NONE;
+                int generation = 1;
+                if (parent1 != NONE) {
+                    generation = Math.max(generation, generations[parent1] + 1);
+                }
+                if (parent2 != NONE) {
+                    generation = Math.max(generation, generations[parent2] + 1);
+                }
+                long time = entry.getValue().getTimeMillis();
+                store(entry.getKey(), parent1, parent2, time, generation);
+                out.put(hexToBytes(entry.getKey()));
+                out.putInt(parent1);
+                out.putInt(parent2);
+                out.putLong(time);
+                out.putInt(generation);
+                out.putInt(0);
+                out.putInt(0);
+            }
+            out.flip();
+            channel.truncate(end);
+            long position = end;
+            while (out.hasRemaining()) {
+                position += channel.write(out, position);
+            }
+            loadedLength = position;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /*
+     * 拿着锁时调用，读进文件中还没有加载的完整记录，返回这些记录之后的位置。
+     * 已加载的最后一条记录和文件中对不上时，说明文件被reset后重新生成过，整个重新加载
+     */
+    private long catchUp(FileChannel channel) throws IOException {
+        int known = hashes.size();
+        if (known > 0) {
+            byte[] last = readAt(channel, HEADER_BYTES + (long) (known - 1) * RECORD_BYTES, HASH_BYTES);
+            if (last.length < HASH_BYTES || !bytesToHex(last, 0, HASH_BYTES).equals(hashes.get(known - 1))) {
+                hashes.clear();
+                positions.clear();
+                reloads += 1;
+                known = 0;
+            }
+        }
+        long base = known == 0 ? 0 : HEADER_BYTES + (long) known * RECORD_BYTES;
+        return storeRecords(readAt(channel, base, Math.max(0, channel.size() - base)), base);
+    }
+
+    /*从POSITION开始读至多LENGTH个字节*/
+    private static byte[] readAt(FileChannel channel, long position, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(length));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /*
+     * 依次返回COMMITS中每个commit的编号。后面的commit追加进图时可能整个重新加载，
+     * 这时前面拿到的编号已经失效，重新查一遍
+     */
+    private int[] indexOfAll(String... commits) {
+        int[] result = new int[commits.length];
+        int before;
+        do {
+            before = reloads;
+            for (int i = 0; i < commits.length; i += 1) {
+                result[i] = indexOf(commits[i]);
+            }
+        } while (reloads != before);
+        return result;
+    }
+
+    public synchronized String hashAt(int position) {
+        return hashes.get(position);
+    }
+
+    public synchronized int generationOf(int position) {
+        return generations[position];
+    }
+
+    public synchronized long timeOf(int position) {
+        return times[position];
+    }
+
+    /**
+     * 返回第一父节点的编号，没有时返回-1
+     */
+    public synchronized int firstParentOf(int position) {
+        return firstParents[position];
+    }
+
+    private int[] parentsOf(int position) {
+        if (secondParents[position] != NONE) {
+            return new int[]{firstParents[position], secondParents[position]};
+        } else if (firstParents[position] != NONE) {
+            return new int[]{firstParents[position]};
+        }
+        return new int[0];
+    }
+
+    /*
+     * 按generation从大到小(相同时按时间从新到旧)处理节点的优先队列。
+     * 父节点的generation总是小于子节点，所以一个节点出队时它的子节点都已经处理完，不会再被涂色；
+     * 还在队列里的节点被重新涂色时只需要改颜色，优先级不依赖颜色，不必从队列中删除(PriorityQueue.remove是线性的)
+     */
+    private PriorityQueue<Integer> newQueue() {
+        return new PriorityQueue<>((a, b) -> generations[a] != generations[b]
+                ? Integer.compare(generations[b], generations[a])
+                : Long.compare(times[b], times[a]));
+    }
+
+    /**
+     * 返回commit A和B的分裂点(最近公共祖先)的hash，没有公共祖先时返回null。
+     * 从两端同时往下"涂色"，按generation从大到小处理，第一个同时被两种颜色涂到的节点就是答案，
+     * generation更小的节点根本不会被访问到。
+     */
+    public synchronized String mergeBase(String a, String b) {
+        final int fromA = 1;
+        final int fromB = 2;
+        int[] starts = indexOfAll(a, b);
+        int start1 = starts[0];
+        int start2 = starts[1];
+        if (start1 == NONE || start2 == NONE) {
+            return null;
+        }
+        Map<Integer, Integer> colors = new HashMap<>();
+        PriorityQueue<Integer> queue = newQueue();
+        colors.merge(start1, fromA, (x, y) -> x | y);
+        colors.merge(start2, fromB, (x, y) -> x | y);
+        queue.add(start1);
+        if (start2 != start1) {
+            queue.add(start2);
+        }
+        while (!queue.isEmpty()) {
+            int current = queue.poll();
+            int color = colors.get(current);
+            if (color == (fromA | fromB)) {
+                return hashes.get(current);
+            }
+            for (int parent : parentsOf(current)) {
+                Integer old = colors.get(parent);
+                int merged = old == null ? color : old | color;
+                if (old == null) {
+                    colors.put(parent, merged);
+                    queue.add(parent);
+                } else if (merged != old) {
+                    colors.put(parent, merged); //已经在队列里，只改颜色，见newQueue
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 判断ANCESTOR是否是DESCENDANT的祖先(或者就是它本身)。
+     * generation不大于ANCESTOR的节点不可能通向ANCESTOR，直接剪掉。
+     */
+    public synchronized boolean isAncestor(String ancestor, String descendant) {
+        int[] ends = indexOfAll(ancestor, descendant);
+        int target = ends[0];
+        int start = ends[1];
+        if (target == NONE || start == NONE) {
+            return false;
+        }
+        int targetGeneration = generations[target];
+        Set<Integer> visited = new HashSet<>();
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            int current = stack.pop();
+            if (current == target) {
+                return true;
+            }
+            if (!visited.add(current) || generations[current] <= targetGeneration) {
+                continue;
+            }
+            for (int parent : parentsOf(current)) {
+                stack.push(parent);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 返回从FROM可以到达、但从EXCLUDE不能到达的所有commit的hash，子节点在前。
+     * EXCLUDE为null或不在这个仓库中时，返回FROM的全部祖先(包括它自己)。
+     * 当队列里只剩下EXCLUDE一侧的节点时就可以停下，不必走到根节点。
+     */
+    public List<String> reachableExcluding(String from, String exclude) {
+        return reachableExcluding(from, exclude == null
+                ? Collections.emptyList() : Collections.singletonList(exclude));
+    }
+
+    /**
+     * 和上面一样，但排除从EXCLUDES中任何一个commit可以到达的commit。push和fetch时EXCLUDES是对方的所有分支头，
+     * 不在这个仓库中的会被忽略
+     */
+    public synchronized List<String> reachableExcluding(String from, Collection<String> excludes) {
+        final int wanted = 1;
+        final int excluded = 2;
+        List<String> result = new ArrayList<>();
+        String[] ends = new String[excludes.size() + 1];
+        ends[0] = from;
+        int i = 1;
+        for (String exclude : excludes) {
+            ends[i] = exclude;
+            i += 1;
+        }
+        int[] positionsOfEnds = indexOfAll(ends);
+        int start = positionsOfEnds[0];
+        if (start == NONE) {
+            return result;
+        }
+        Map<Integer, Integer> colors = new HashMap<>();
+        PriorityQueue<Integer> queue = newQueue();
+        colors.put(start, wanted);
+        queue.add(start);
+        for (int j = 1; j < positionsOfEnds.length; j += 1) {
+            int stop = positionsOfEnds[j];
+            if (stop == NONE) {
+                continue;
+            }
+            Integer old = colors.put(stop, colors.getOrDefault(stop, 0) | excluded);
+            if (old == null) {
+                queue.add(stop);
+            }
+        }
+        //队列中只属于FROM一侧的节点个数，为0时剩下的节点都已经被EXCLUDE覆盖
+        int wantedInQueue = colors.get(start) == wanted ? 1 : 0;
+        while (!queue.isEmpty() && wantedInQueue > 0) {
+            int current = queue.poll();
+            int color = colors.get(current);
+            if (color == wanted) {
+                wantedInQueue -= 1;
+                result.add(hashes.get(current));
+            }
+            for (int parent : parentsOf(current)) {
+                Integer old = colors.get(parent);
+                int merged = old == null ? color : old | color;
+                if (old != null && merged == old) {
+                    continue;
+                }
+                if (old == null) {
+                    queue.add(parent);
+                } else if (old == wanted) {
+                    wantedInQueue -= 1;
+                }
+                colors.put(parent, merged); //已经在队列里的只改颜色，见newQueue
+                if (merged == wanted) {
+                    wantedInQueue += 1;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,255 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/**
+ * A persistent sorted index of all commit hashes in a repository.
+ * 缩写的commit id只需要在这个索引上二分查找，而不需要列出并排序objects/commit中的所有文件。
+ * 索引由两部分组成：
+ * objects/commit-index 排好序的hash(每个20 byte)，
+ * objects/commit-index.log 最近新增的commit，每行一个hash，积累到一定数量后再合并进排好序的部分。
+ * 同一个进程里的读写靠类上的锁串行；另一个进程(比如serve)可能同时在写同一个仓库，
+ * 所以追加log和把log合并进索引时还要拿着log文件上的锁，合并期间追加的commit要等合并完才能写进log。
+ *
+ * @author 张婧
+ */
+public class CommitIndex {
+    /**
+     * 文件格式: "GCIX" | version | hash个数 | 排好序的hash
+     */
+    private static final int MAGIC = 0x47434958;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+    private static final int HASH_BYTES = UID_LENGTH / 2;
+    /**
+     * log中积累的hash超过这个数量时，合并进排好序的索引
+     */
+    private static final int LOG_LIMIT = 512;
+
+    static File indexFile(File repo) {
+        return join(repo, "objects", "commit-index");
+    }
+
+    static File logFile(File repo) {
+        return join(repo, "objects", "commit-index.log");
+    }
+
+    /**
+     * 新写入了一个commit之后调用，只追加一行log，不重写整个索引
+     */
+    public static synchronized void add(File repo, String commitHash) {
+        File log = logFile(repo);
+        try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.lock(); //关闭通道时锁随之释放
+            ByteBuffer line = ByteBuffer.wrap((commitHash + "\n").getBytes(StandardCharsets.UTF_8));
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        if (indexFile(repo).isFile() && log.length() > (long) LOG_LIMIT * (UID_LENGTH + 1)) {
+            merge(repo);
+        }
+    }
+
+    /**
+     * 返回所有以PREFIX开头的完整commit hash，按字典序排列。
+     * 至多返回LIMIT个，调用者只关心"没有、唯一、有歧义"时传2即可。
+     */
+    public static synchronized List<String> resolve(File repo, String prefix, int limit) {
+        Set<String> result = new TreeSet<>();
+        if (prefix.isEmpty() || prefix.length() > UID_LENGTH || !isHex(prefix)) {
+            return new ArrayList<>();
+        }
+        if (!indexFile(repo).isFile()) {
+            rebuild(repo);
+        }
+        MappedByteBuffer index = map(indexFile(repo));
+        int count = index.getInt(8);
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) { //找到第一个不小于PREFIX的位置
+            int mid = (lo + hi) >>> 1;
+            if (comparePrefix(index, mid, prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        byte[] raw = new byte[HASH_BYTES];
+        for (int i = lo; i < count && result.size() < limit; i += 1) {
+            if (comparePrefix(index, i, prefix) != 0) {
+                break;
+            }
+            index.get(HEADER_BYTES + i * HASH_BYTES, raw);
+            result.add(bytesToHex(raw, 0, HASH_BYTES));
+        }
+        for (String hash : readLog(repo)) {
+            if (hash.startsWith(prefix)) {
+                result.add(hash);
+            }
+        }
+        List<String> matches = new ArrayList<>(result);
+        return matches.size() > limit ? matches.subList(0, limit) : matches;
+    }
+
+    /**
+     * 从对象库重新生成整个索引，用于旧仓库第一次使用索引时。
+     * commit总是先写对象再追加log，所以拿着log的锁时log里已有的commit都会被列出来
+     */
+    public static synchronized void rebuild(File repo) {
+        try (FileChannel log = openLog(repo)) {
+            log.lock();
+            long consumed = log.size();
+            write(repo, new TreeSet<>(ObjectStore.listObjects(repo, ObjectStore.COMMIT)));
+            dropPrefix(log, consumed);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /*把log合并进排好序的部分，然后从log中去掉已经合并的部分*/
+    private static void merge(File repo) {
+        try (FileChannel log = openLog(repo)) {
+            log.lock();
+            byte[] contents = readAll(log, 0);
+            SortedSet<String> all = new TreeSet<>(readSorted(repo));
+            all.addAll(parseLog(new String(contents, StandardCharsets.UTF_8)));
+            write(repo, all);
+            dropPrefix(log, contents.length);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private static FileChannel openLog(File repo) throws IOException {
+        return FileChannel.open(logFile(repo).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /*从POSITION开始读到文件末尾*/
+    private static byte[] readAll(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(channel.size() - position));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /*从log中去掉开头已经读过的CONSUMED个字节。拿着锁时后面不会有别的内容，但只删读过的部分总是安全的*/
+    private static void dropPrefix(FileChannel log, long consumed) throws IOException {
+        ByteBuffer rest = ByteBuffer.wrap(readAll(log, consumed));
+        long position = 0;
+        while (rest.hasRemaining()) {
+            position += log.write(rest, position);
+        }
+        log.truncate(rest.limit());
+    }
+
+    private static List<String> readSorted(File repo) {
+        MappedByteBuffer index = map(indexFile(repo));
+        int count = index.getInt(8);
+        List<String> result = new ArrayList<>(count);
+        byte[] raw = new byte[HASH_BYTES];
+        for (int i = 0; i < count; i += 1) {
+            index.get(HEADER_BYTES + i * HASH_BYTES, raw);
+            result.add(bytesToHex(raw, 0, HASH_BYTES));
+        }
+        return result;
+    }
+
+    private static List<String> readLog(File repo) {
+        File log = logFile(repo);
+        List<String> result = new ArrayList<>();
+        if (!log.isFile()) {
+            return result;
+        }
+        return parseLog(readContentsAsString(log));
+    }
+
+    /*没有写完的行被忽略*/
+    private static List<String> parseLog(String contents) {
+        List<String> result = new ArrayList<>();
+        for (String line : contents.split("\n")) {
+            if (line.length() == UID_LENGTH) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+
+    private static void write(File repo, SortedSet<String> hashes) {
+        File index = indexFile(repo);
+        try {
+            //每次写用一个新的临时文件，和别的进程同时重写索引时不会写进同一个文件
+            Path temp = Files.createTempFile(join(repo, "objects").toPath(), "commit-index", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(hashes.size());
+                for (String hash : hashes) {
+                    out.write(hexToBytes(hash));
+                }
+            }
+            Files.move(temp, index.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private static MappedByteBuffer map(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IllegalArgumentException("corrupt commit index");
+            }
+            return buffer;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /*只比较第POSITION个hash的前PREFIX.length()个十六进制位*/
+    private static int comparePrefix(MappedByteBuffer index, int position, String prefix) {
+        int base = HEADER_BYTES + position * HASH_BYTES;
+        for (int i = 0; i < prefix.length(); i += 1) {
+            int b = index.get(base + i / 2) & 0xff;
+            int nibble = i % 2 == 0 ? b >>> 4 : b & 0xf;
+            int cmp = Integer.compare(nibble, Character.digit(prefix.charAt(i), 16));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean isHex(String s) {
+        for (int i = 0; i < s.length(); i += 1) {
+            char c = s.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,50 @@
+package gitlet;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable description of one commit, as returned by Gitlet.log and friends.
+ * 只包含log需要的字段，跟踪的文件不在这里，调用者不需要关心commit在磁盘上的编码。
+ *
+ * @author 张婧
+ */
+public final class CommitInfo {
+    private final String hash;
+    private final List<String> parents;
+    private final long timeMillis;
+    private final String message;
+
+    CommitInfo(String hash, Commit commit) {
+        this.hash = hash;
+        this.parents = Collections.unmodifiableList(commit.getParentList());
+        this.timeMillis = commit.getTimeMillis();
+        this.message = commit.getMessage();
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * 父commit的hash，初始commit为空，merge产生的commit有两个
+     */
+    public List<String> getParents() {
+        return parents;
+    }
+
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /**
+     * 按log的格式格式化后的时间，用到时才格式化
+     */
+    public String getTimestamp() {
+        return Commit.formatTimestamp(timeMillis);
+    }
+
+    public String getMessage() {
+        return message;
+    }
+}
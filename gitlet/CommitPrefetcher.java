@@ -0,0 +1,66 @@
+package gitlet;
+
+import java.util.*;
+import java.util.concurrent.Future;
+
+/**
+ * An iterator over commits that decodes them ahead of the consumer on the shared thread pool.
+ * 要读取的commit按CHUNK个一组交给WorkingTree的线程池，最多同时有WINDOW组在读取，
+ * 消费者取走一组之后再提交下一组，所以内存中只有有限个commit。next总是按给定的hash顺序返回，
+ * 输出与串行读取时完全一样；冷缓存时主要的开销是等待磁盘，多个线程同时读取可以把这些等待重叠起来。
+ *
+ * @author 张婧
+ */
+class CommitPrefetcher implements Iterator<CommitInfo> {
+    private static final int CHUNK = 64;
+    private static final int WINDOW = 2 * WorkingTree.THREADS;
+
+    private final Repository repo;
+    private final List<String> hashes;
+    private final Deque<Future<List<CommitInfo>>> inFlight = new ArrayDeque<>();
+    /**
+     * hashes中下一组还没有提交的commit的位置
+     */
+    private int submitted;
+    private Iterator<CommitInfo> current = Collections.emptyIterator();
+
+    CommitPrefetcher(Repository repo, List<String> hashes) {
+        this.repo = repo;
+        this.hashes = hashes;
+        fill();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext() && !inFlight.isEmpty()) {
+            current = WorkingTree.await(inFlight.poll()).iterator();
+            fill();
+        }
+        return current.hasNext();
+    }
+
+    @Override
+    public CommitInfo next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    /*补满WINDOW组正在读取的commit*/
+    private void fill() {
+        while (inFlight.size() < WINDOW && submitted < hashes.size()) {
+            List<String> chunk = hashes.subList(submitted, Math.min(submitted + CHUNK, hashes.size()));
+            inFlight.add(WorkingTree.submit(() -> decode(chunk)));
+            submitted += chunk.size();
+        }
+    }
+
+    private List<CommitInfo> decode(List<String> chunk) {
+        List<CommitInfo> result = new ArrayList<>(chunk.size());
+        for (String hash : chunk) {
+            result.add(new CommitInfo(hash, GitletCore.loadCommitByHash(repo, hash)));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,159 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary deltas between two versions of a file.
+ * delta格式: 基础版本长度(varint) | 目标长度(varint) | 若干指令
+ * 指令: 0 | 长度(varint) | 新插入的字节，或者 1 | 基础版本中的偏移(varint) | 长度(varint)，表示从基础版本复制
+ * 生成delta时把基础版本按BLOCK字节切块建索引，再用滚动hash在目标上找相同的块并向两边延伸。
+ *
+ * @author 张婧
+ */
+public class Delta {
+    private static final int BLOCK = 16;
+    private static final int PRIME = 31;
+    private static final byte INSERT = 0;
+    private static final byte COPY = 1;
+
+    /**
+     * 返回把BASE变成TARGET的delta
+     */
+    public static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 4 + 16);
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+        Map<Integer, Integer> blocks = new HashMap<>();
+        for (int offset = 0; offset + BLOCK <= base.length; offset += BLOCK) {
+            blocks.putIfAbsent(hashOf(base, offset), offset);
+        }
+        int highPower = 1; //PRIME^(BLOCK-1)，滚动时用来去掉窗口最左边的字节
+        for (int k = 1; k < BLOCK; k += 1) {
+            highPower *= PRIME;
+        }
+        int insertStart = 0;
+        int i = 0;
+        int hash = target.length >= BLOCK ? hashOf(target, 0) : 0;
+        while (i + BLOCK <= target.length) {
+            Integer offset = blocks.get(hash);
+            if (offset != null && regionEquals(base, offset, target, i, BLOCK)) {
+                int length = BLOCK;
+                while (offset + length < base.length && i + length < target.length
+                        && base[offset + length] == target[i + length]) {
+                    length += 1;
+                }
+                int back = 0; //向前延伸，吃掉还没有写出的插入字节
+                while (back < i - insertStart && offset - back > 0
+                        && base[offset - back - 1] == target[i - back - 1]) {
+                    back += 1;
+                }
+                writeInsert(out, target, insertStart, i - back);
+                out.write(COPY);
+                writeVarint(out, offset - back);
+                writeVarint(out, length + back);
+                i += length;
+                insertStart = i;
+                if (i + BLOCK <= target.length) {
+                    hash = hashOf(target, i);
+                }
+                continue;
+            }
+            if (i + BLOCK < target.length) {
+                hash = (hash - target[i] * highPower) * PRIME + target[i + BLOCK];
+            }
+            i += 1;
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * 把DELTA作用在BASE上，返回重建出的内容
+     */
+    public static byte[] apply(byte[] base, byte[] delta) {
+        int[] position = {0};
+        if (readVarint(delta, position) != base.length) {
+            throw new IllegalArgumentException("delta does not match its base");
+        }
+        byte[] result = new byte[readVarint(delta, position)];
+        int written = 0;
+        while (position[0] < delta.length) {
+            byte op = delta[position[0]++];
+            if (op == COPY) {
+                int offset = readVarint(delta, position);
+                int length = readVarint(delta, position);
+                System.arraycopy(base, offset, result, written, length);
+                written += length;
+            } else if (op == INSERT) {
+                int length = readVarint(delta, position);
+                System.arraycopy(delta, position[0], result, written, length);
+                position[0] += length;
+                written += length;
+            } else {
+                throw new IllegalArgumentException("corrupt delta");
+            }
+        }
+        if (written != result.length) {
+            throw new IllegalArgumentException("corrupt delta");
+        }
+        return result;
+    }
+
+    private static int hashOf(byte[] data, int offset) {
+        int hash = 0;
+        for (int k = 0; k < BLOCK; k += 1) {
+            hash = hash * PRIME + data[offset + k];
+        }
+        return hash;
+    }
+
+    private static boolean regionEquals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int k = 0; k < length; k += 1) {
+            if (a[aOffset + k] != b[bOffset + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        out.write(INSERT);
+        writeVarint(out, to - from);
+        out.write(data, from, to - from);
+    }
+
+    /**
+     * 只读出delta开头记录的目标长度。PREFIX是delta的前几个字节(至少包含开头的两个varint)，不需要基础版本
+     */
+    static int targetLength(byte[] prefix) {
+        int[] position = {0};
+        readVarint(prefix, position);
+        return readVarint(prefix, position);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] data, int[] position) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = data[position[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
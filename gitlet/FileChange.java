@@ -0,0 +1,62 @@
+package gitlet;
+
+/**
+ * One file that differs between the two sides of a diff, as returned by Gitlet.diff.
+ * 两边的版本都用blob hash表示，为null时表示这一边没有这个文件；工作区一边的hash是工作区文件内容的hash。
+ * 大小只有Gitlet.diffStat会从对象头部读出来，其余时候为-1。
+ *
+ * @author 张婧
+ */
+public final class FileChange {
+    private final String path;
+    private final String oldHash;
+    private final String newHash;
+    private final long oldSize;
+    private final long newSize;
+    private final boolean newInWorkingTree;
+
+    FileChange(String path, String oldHash, String newHash, long oldSize, long newSize,
+               boolean newInWorkingTree) {
+        this.path = path;
+        this.oldHash = oldHash;
+        this.newHash = newHash;
+        this.oldSize = oldSize;
+        this.newSize = newSize;
+        this.newInWorkingTree = newInWorkingTree;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getOldHash() {
+        return oldHash;
+    }
+
+    public String getNewHash() {
+        return newHash;
+    }
+
+    public long getOldSize() {
+        return oldSize;
+    }
+
+    public long getNewSize() {
+        return newSize;
+    }
+
+    public boolean isAdded() {
+        return oldHash == null;
+    }
+
+    public boolean isDeleted() {
+        return newHash == null;
+    }
+
+    /**
+     * 新的一边是工作区，内容要从工作区文件读，而不是从对象库
+     */
+    public boolean isNewInWorkingTree() {
+        return newInWorkingTree;
+    }
+}
@@ -0,0 +1,329 @@
+package gitlet;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The public Java API of Gitlet.
+ * 每个方法对应一条命令，直接在调用者的进程和线程中执行，不会启动新的进程，也不会调用System.exit或者打印任何东西：
+ * 失败时抛出GitletException的某个子类(NotFound、AlreadyExists、InvalidState、InvalidArgument)，
+ * 它的消息与命令行中打印的相同；有输出的命令返回结构化的结果。Main只是在它上面解析参数、打印结果的一层。
+ * 一个Gitlet对应一个仓库，不同仓库上的操作可以在多个线程中同时进行；
+ * 同一个仓库上只读的命令(log、global-log、find)可以同时进行，其余的命令依次执行。
+ *
+ * @author 张婧
+ */
+public final class Gitlet {
+    /**
+     * find如何比较commit的message和给出的字符串
+     */
+    public enum FindMode {
+        /**
+         * message与字符串完全相同
+         */
+        EXACT,
+        /**
+         * message包含这个字符串
+         */
+        SUBSTRING,
+        /**
+         * 字符串是一个正则表达式，message中有一部分与它匹配
+         */
+        REGEX
+    }
+
+    private final Repository repo;
+
+    private Gitlet(Repository repo) {
+        this.repo = repo;
+    }
+
+    /**
+     * 在目录DIR中创建一个新仓库并返回它
+     */
+    public static Gitlet init(File dir) {
+        Repository repo = Repository.open(dir);
+        repo.write(() -> {
+            repo.init();
+            return null;
+        });
+        return new Gitlet(repo);
+    }
+
+    /**
+     * 在当前目录(user.dir)创建一个新仓库
+     */
+    public static Gitlet init() {
+        return init(new File(System.getProperty("user.dir")));
+    }
+
+    /**
+     * 打开目录DIR中的仓库
+     */
+    public static Gitlet open(File dir) {
+        Repository repo = Repository.open(dir);
+        if (!repo.gitletDir.exists()) {
+            throw new GitletException.NotFound("Not in an initialized Gitlet directory.");
+        }
+        return new Gitlet(repo);
+    }
+
+    /**
+     * 打开当前目录(user.dir)中的仓库
+     */
+    public static Gitlet open() {
+        return open(new File(System.getProperty("user.dir")));
+    }
+
+    /**
+     * 暂存PATHS，每一项可以是文件名、glob或者"."
+     */
+    public void add(String... paths) {
+        add(Arrays.asList(paths));
+    }
+
+    public void add(List<String> paths) {
+        if (paths.isEmpty()) {
+            throw new GitletException.InvalidArgument("Incorrect operands.");
+        }
+        repo.write(() -> {
+            repo.add(paths);
+            return null;
+        });
+    }
+
+    /**
+     * 提交暂存区，返回新commit的hash
+     */
+    public String commit(String message) {
+        return repo.write(() -> repo.commit(message));
+    }
+
+    public void rm(String fileName) {
+        repo.write(() -> {
+            repo.rm(fileName);
+            return null;
+        });
+    }
+
+    /**
+     * 从HEAD开始沿第一父节点往回的commit，按需逐个读取，每读一个commit拿一次读锁
+     */
+    public Iterator<CommitInfo> log() {
+        return locked(repo.read(repo::log));
+    }
+
+    /**
+     * 仓库中的所有commit，按hash排序
+     */
+    public Iterator<CommitInfo> globalLog() {
+        return globalLog(false);
+    }
+
+    /**
+     * 仓库中的所有commit，BYDATE为true时按时间从新到旧排序，否则按hash排序。
+     * 后面的commit在后台线程中预先读取，对象是按内容寻址、不会被修改的，所以预读不需要拿锁
+     */
+    public Iterator<CommitInfo> globalLog(boolean byDate) {
+        return locked(repo.read(() -> repo.globalLog(byDate)));
+    }
+
+    /**
+     * message等于MESSAGE的所有commit的hash，没有时返回空列表
+     */
+    public List<String> find(String message) {
+        return find(message, FindMode.EXACT);
+    }
+
+    /**
+     * 按MODE查找message与QUERY匹配的commit，返回按hash排序的列表。
+     * 旧仓库第一次查找时会先生成message索引
+     */
+    public List<String> find(String query, FindMode mode) {
+        return repo.read(() -> repo.find(query, mode));
+    }
+
+    /**
+     * status可能会把新算出的文件hash写回index，所以拿的是写锁
+     */
+    public StatusResult status() {
+        return repo.write(repo::status);
+    }
+
+    /**
+     * 用当前commit中的版本覆盖工作区中的FILENAME
+     */
+    public void checkoutFile(String fileName) {
+        repo.write(() -> {
+            repo.checkoutCurrentCommitFile(fileName);
+            return null;
+        });
+    }
+
+    /**
+     * 用COMMITID(可以是缩写)中的版本覆盖工作区中的FILENAME
+     */
+    public void checkoutFile(String commitId, String fileName) {
+        repo.write(() -> {
+            repo.checkoutGivenCommitFile(commitId, fileName);
+            return null;
+        });
+    }
+
+    public void checkoutBranch(String branchName) {
+        repo.write(() -> {
+            repo.checkOutBranch(branchName);
+            return null;
+        });
+    }
+
+    public void branch(String branchName) {
+        repo.write(() -> {
+            repo.makeBranch(branchName);
+            return null;
+        });
+    }
+
+    public void rmBranch(String branchName) {
+        repo.write(() -> {
+            repo.removeBranch(branchName);
+            return null;
+        });
+    }
+
+    /**
+     * COMMITID可以是缩写
+     */
+    public void reset(String commitId) {
+        repo.write(() -> {
+            repo.resetACommit(commitId);
+            return null;
+        });
+    }
+
+    public MergeResult merge(String branchName) {
+        return repo.write(() -> repo.merge(branchName));
+    }
+
+    public void addRemote(String remoteName, String remotePath) {
+        repo.write(() -> {
+            repo.addRemote(remoteName, remotePath);
+            return null;
+        });
+    }
+
+    public void rmRemote(String remoteName) {
+        repo.write(() -> {
+            repo.removeRemote(remoteName);
+            return null;
+        });
+    }
+
+    public void push(String remoteName, String remoteBranchName) {
+        Repository.write(repo, remoteOf(remoteName), () -> {
+            repo.pushRemote(remoteName, remoteBranchName);
+            return null;
+        });
+    }
+
+    public void fetch(String remoteName, String remoteBranchName) {
+        Repository.write(repo, remoteOf(remoteName), () -> {
+            repo.fetchRemote(remoteName, remoteBranchName);
+            return null;
+        });
+    }
+
+    public MergeResult pull(String remoteName, String remoteBranchName) {
+        return Repository.write(repo, remoteOf(remoteName),
+            () -> repo.pull(remoteName, remoteBranchName));
+    }
+
+    public void repack() {
+        repack(ObjectStore.BIG_FILE_THRESHOLD);
+    }
+
+    /**
+     * 和repack()一样，但是超过BIGFILETHRESHOLD字节的blob保持松散
+     */
+    public void repack(long bigFileThreshold) {
+        repo.write(() -> {
+            repo.repack(bigFileThreshold);
+            return null;
+        });
+    }
+
+    /**
+     * 比较FROM和TO两边的文件，返回发生变化的文件，按文件名排序，不读取文件内容。
+     * FROM和TO可以是分支名或者(缩写的)commit id；FROM为null时是当前commit，TO为null时是工作区。
+     * PATHS不为空时只比较其中的文件
+     */
+    public List<FileChange> diff(String from, String to, List<String> paths) {
+        return diff(from, to, paths, false);
+    }
+
+    /**
+     * 和diff一样，但同时从对象头部读出每个文件两边的大小
+     */
+    public List<FileChange> diffStat(String from, String to, List<String> paths) {
+        return diff(from, to, paths, true);
+    }
+
+    /*和工作区比较时可能会更新内存中暂存区的stat记录，所以拿写锁*/
+    private List<FileChange> diff(String from, String to, List<String> paths, boolean withSizes) {
+        if (to == null) {
+            return repo.write(() -> repo.diff(from, null, paths, withSizes));
+        }
+        return repo.read(() -> repo.diff(from, to, paths, withSizes));
+    }
+
+    /**
+     * CHANGE的unified diff(UTF-8以外的内容原样保留)，包括文件头
+     */
+    public byte[] patch(FileChange change) {
+        return repo.read(() -> repo.patch(change));
+    }
+
+    /**
+     * 从对象库重新生成commit索引、message索引和commit-graph
+     */
+    public void reindex() {
+        repo.write(() -> {
+            repo.reindex();
+            return null;
+        });
+    }
+
+    public void migrate() {
+        repo.write(() -> {
+            repo.migrate();
+            return null;
+        });
+    }
+
+    /*远程仓库REMOTENAME对应的Repository，push和fetch要同时锁住它*/
+    private Repository remoteOf(String remoteName) {
+        String remoteUrl = repo.read(() -> GitletCore.getRemoteUrl(repo, remoteName));
+        if (RemoteConnection.isUrl(remoteUrl)) {
+            return repo; //远程仓库在另一个进程里，由那边的服务加锁
+        }
+        File remoteGitletDir = repo.read(() -> GitletCore.getAndValidateRemotePath(repo, remoteName));
+        return Repository.open(remoteGitletDir.getParentFile());
+    }
+
+    /*每次hasNext和next都在读锁下进行，迭代的间隙里其他线程仍然可以写这个仓库*/
+    private Iterator<CommitInfo> locked(Iterator<CommitInfo> commits) {
+        return new Iterator<CommitInfo>() {
+            @Override
+            public boolean hasNext() {
+                return repo.read(commits::hasNext);
+            }
+
+            @Override
+            public CommitInfo next() {
+                return repo.read(commits::next);
+            }
+        };
+    }
+}
@@ -0,0 +1,89 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The thin client of gitlet serve.
+ * 用法与Main相同: java gitlet.GitletClient [command] [args...]
+ * 当前目录下有正在运行的gitlet serve时，把参数发给它并原样输出它传回的stdout、stderr和退出码；
+ * 否则直接在本进程中执行这条命令，所以它总是可以代替Main使用。
+ *
+ * @author 张婧
+ */
+public class GitletClient {
+    public static void main(String[] args) {
+        SocketChannel channel = connect();
+        if (channel == null) {
+            Main.main(args);
+            return;
+        }
+        int exitCode;
+        try (channel) {
+            exitCode = send(channel, args);
+        } catch (IOException e) {
+            System.err.println("Lost connection to the gitlet server: " + e.getMessage());
+            exitCode = 1;
+        }
+        if (exitCode != 0) {
+            System.exit(exitCode);
+        }
+    }
+
+    /**
+     * 连接当前仓库的gitlet serve，没有正在运行的服务时返回null
+     */
+    static SocketChannel connect() {
+        if (!GitletServer.SOCKET_FILE.exists()) {
+            return null;
+        }
+        try {
+            SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                channel.connect(UnixDomainSocketAddress.of(GitletServer.SOCKET_FILE.toPath()));
+                return channel;
+            } catch (IOException e) { //服务进程已经不在了，只留下了socket文件
+                channel.close();
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /*发送ARGS，把回复的帧写到对应的输出上，返回退出码*/
+    private static int send(SocketChannel channel, String[] args) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)));
+        out.writeInt(args.length);
+        for (String arg : args) {
+            byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        out.flush();
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel), Utils.STREAM_BUFFER_SIZE));
+        while (true) {
+            byte type = in.readByte();
+            byte[] payload = in.readNBytes(in.readInt());
+            if (type == GitletServer.EXIT) {
+                System.out.flush();
+                System.err.flush();
+                return ByteBuffer.wrap(payload).getInt();
+            }
+            PrintStream target = type == GitletServer.STDERR ? System.err : System.out;
+            target.write(payload, 0, payload.length);
+        }
+    }
+}
@@ -4,12 +4,12 @@ import java.io.File;
 import java.nio.file.InvalidPathException;
 import java.util.*;
 
-import static gitlet.Repository.*;
 import static gitlet.Utils.*;
 import java.nio.file.Files;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Basic tool class for Gitlet.
@@ -17,73 +17,78 @@ import java.nio.file.Paths;
  * @author 张婧
  */
 public class GitletCore {
-    public static Commit getHeadCommit() {
-        String headContent = readContentsAsString(HEAD_DIR);
+    public static Commit getHeadCommit(Repository repo) {
+        String headContent = readContentsAsString(repo.headFile);
         String branchFilePath = headContent.split(" ")[1]; //从内容中分离出路径
-        File branchFile = join(GITLET_DIR, branchFilePath);
+        File branchFile = join(repo.gitletDir, branchFilePath);
         String commitHash = readContentsAsString(branchFile);
-        File commitFile = join(COMMIT_DIR, commitHash);
-        return readObject(commitFile, Commit.class);
+        return loadCommitByHash(repo, commitHash);
         //注意这里返回的并不是原来的对象，而是一个和原来对象的字段值相同的全新的对象
     }
-    public static String getHeadCommitHash() {
-        String headContent = readContentsAsString(HEAD_DIR);
+    public static String getHeadCommitHash(Repository repo) {
+        String headContent = readContentsAsString(repo.headFile);
         String branchFilePath = headContent.split(" ")[1]; //从内容中分离出路径
-        File branchFile = join(GITLET_DIR, branchFilePath);
+        File branchFile = join(repo.gitletDir, branchFilePath);
         return readContentsAsString(branchFile);
     }
-    public static Commit getWantedHeadCommit(String branchName) {
-        File branchFile = new File(BRANCH_DIR, branchName);
+    public static Commit getWantedHeadCommit(Repository repo, String branchName) {
+        File branchFile = new File(repo.branchDir, branchName);
         String commitHash = readContentsAsString(branchFile);
-        File commitFile = join(COMMIT_DIR, commitHash);
-        return readObject(commitFile, Commit.class);
+        return loadCommitByHash(repo, commitHash);
     }
     public static Commit getRemoteWantedHeadCommit(String branchName, File repoFile) {
         File branchFile = join(repoFile, "refs", "heads", branchName);
         String commitHash = readContentsAsString(branchFile);
-        File commitFile = join(repoFile, "objects", "commit", commitHash);
-        return readObject(commitFile, Commit.class);
+        return loadCommitByHashRemote(commitHash, repoFile);
     }
-    public static Commit getFirstParentCommit(Commit currentCommit) {
+    public static Commit getFirstParentCommit(Repository repo, Commit currentCommit) {
         if (currentCommit.getFirstParent() == null) {
             return null;
         }
-        File parentCommitFile = join(COMMIT_DIR, currentCommit.getFirstParent());
-        return readObject(parentCommitFile, Commit.class);
+        return loadCommitByHash(repo, currentCommit.getFirstParent());
     }
-    public static String getCurrentBranchName() {
-        String headContent = readContentsAsString(HEAD_DIR);
+    public static String getCurrentBranchName(Repository repo) {
+        String headContent = readContentsAsString(repo.headFile);
         String prefix = "ref: refs/heads/";
 
         // 从前缀之后的位置开始截取，直到字符串末尾
         //这是为了处理远程分支的情况
         return headContent.substring(prefix.length());
     }
-    public static void writeObjectToFile(Commit commit, StagingArea stagingArea) {
+    public static String writeObjectToFile(Repository repo, Commit commit,
+                                           StagingArea stagingArea) {
         String commithash = getHashOf(commit);
-        File newCommitFile = Utils.join(COMMIT_DIR, commithash);
         //注意我们要动态获取当前的分支名
-        File currentbranch = Utils.join(BRANCH_DIR, getCurrentBranchName());
-        writeObject(newCommitFile, commit);
+        File currentbranch = Utils.join(repo.branchDir, getCurrentBranchName(repo));
+        saveCommit(repo.gitletDir, commithash, commit);
+        CommitGraph.of(repo.gitletDir).indexOf(commithash); //父节点已经在图中，只追加一条记录
         writeContents(currentbranch, commithash);
         stagingArea.saveToFile();
+        return commithash;
     }
-    public static String getFullCommitHash(String shortCommitHash) {
+    public static String getFullCommitHash(Repository repo, String shortCommitHash) {
         //通过缩写hash得到完整hash，如果不存在，则返回空
-        List<String> allCommitHash = plainFilenamesIn(COMMIT_DIR);
-        for (String fullHash : allCommitHash) {
-            if (fullHash.startsWith(shortCommitHash)) {
-                return fullHash;
+        //在排好序的commit索引上二分查找，不再列出整个COMMIT_DIR
+        List<String> matches = CommitIndex.resolve(repo.gitletDir, shortCommitHash, 2);
+        if (matches.size() > 1) {
+            throw new GitletException.InvalidArgument("Ambiguous commit id.");
+        }
+        if (matches.isEmpty()) {
+            //索引可能落后于对象库(例如被旧版本的gitlet写入过)，完整的id再直接确认一次
+            if (shortCommitHash.length() == UID_LENGTH
+                    && ObjectStore.hasObject(repo.gitletDir, ObjectStore.COMMIT, shortCommitHash)) {
+                return shortCommitHash;
             }
+            return null;
         }
-        return null;
+        return matches.get(0);
     }
     //给一个commit,如果他是头结点，返回其所在的分支名，否则返回null
-    public static String isHeadCommit(Commit commit) {
-        List<String> allBranchName = plainFilenamesIn(BRANCH_DIR);
+    public static String isHeadCommit(Repository repo, Commit commit) {
+        List<String> allBranchName = plainFilenamesIn(repo.branchDir);
         Map<String, String> nameHashMap = new HashMap<>();
         for (String branchName : allBranchName) {
-            File branchPath = join(BRANCH_DIR, branchName);
+            File branchPath = join(repo.branchDir, branchName);
             String headCommitHash = readContentsAsString(branchPath);
             nameHashMap.put(headCommitHash, branchName);
         }
@@ -93,14 +98,20 @@ public class GitletCore {
         }
         return null;
     }
-    public static File getAndValidateRemotePath(String remoteName) {
-        // 1. 检查远程配置文件是否存在且是一个文件。
-        //    如果不存在，我们无法找到远程目录。
-        File remoteConfigFile = join(REMOTE_PATH_DIR, remoteName);
+    /*add-remote时给出的地址，可能是一个目录，也可能是RemoteConnection能连接的URL*/
+    public static String getRemoteUrl(Repository repo, String remoteName) {
+        // 检查远程配置文件是否存在且是一个文件。
+        // 如果不存在，我们无法找到远程目录。
+        File remoteConfigFile = join(repo.remotePathDir, remoteName);
         if (!remoteConfigFile.isFile()) {
-            exitWithError("Remote directory not found.");
+            throw new GitletException.NotFound("Remote directory not found.");
         }
-        String rawPath = readContentsAsString(remoteConfigFile);
+        return readContentsAsString(remoteConfigFile);
+    }
+
+    public static File getAndValidateRemotePath(Repository repo, String remoteName) {
+        // 1. 读出远程配置。
+        String rawPath = getRemoteUrl(repo, remoteName);
 
         try {
             // 2. 尝试将字符串路径解析为真实的、规范化的路径。
@@ -115,29 +126,78 @@ public class GitletCore {
             // - IOException: 路径不存在于文件系统中。
             // - InvalidPathException: 路径字符串的格式是非法的。
         }
-        exitWithError("Remote directory not found.");
-        return null;
+        throw new GitletException.NotFound("Remote directory not found.");
     }
-    public static Commit loadCommitByHash(String hash) {
-        File commitFile = join(COMMIT_DIR, hash);
-        return readObject(commitFile, Commit.class);
+    public static Commit loadCommitByHash(Repository repo, String hash) {
+        return loadCommitByHashRemote(hash, repo.gitletDir);
     }
 
     public static Commit loadCommitByHashRemote(String hash, File remoteDir) {
-        File commitFile = join(remoteDir, "objects", "commit", hash);
-        return readObject(commitFile, Commit.class);
+        //先查进程内的缓存，同一个命令里反复读取的commit只解码一次
+        Commit cached = ObjectCache.getCommit(remoteDir, hash);
+        if (cached != null) {
+            return cached;
+        }
+        //commit可能是松散文件，也可能已经被repack进了pack
+        byte[] commitInByte = ObjectStore.readObjectBytes(remoteDir, ObjectStore.COMMIT, hash);
+        Commit commit = Commit.decode(commitInByte, hash, remoteDir);
+        ObjectCache.putCommit(remoteDir, commit);
+        return commit;
+    }
+
+    /*把commit写进仓库REPO(本地或远程)的对象库*/
+    public static void saveCommit(File repo, String commitHash, Commit commit) {
+        if (ObjectStore.hasObject(repo, ObjectStore.COMMIT, commitHash)) {
+            return;
+        }
+        //先写tree再写commit，仓库里有某个commit就说明它的tree也是完整的
+        commit.saveTreeTo(repo);
+        ObjectStore.writeObjectBytes(repo, ObjectStore.COMMIT, commitHash, commit.encode());
+        if (repo.equals(commit.getRepo())) { //从别的仓库复制来的commit仍然从原来的仓库读tree，不放进这个仓库的缓存
+            ObjectCache.putCommit(repo, commit);
+        }
+        CommitIndex.add(repo, commitHash);
+        MessageIndex.add(repo, commitHash, commit.getMessage());
+    }
+
+    /**
+     * push/fetch时把SOURCE中的COMMIT原样复制到DEST：tree和commit对象都按保存的字节复制，不重新编码。
+     * 可以在多个线程中同时调用，复制完以后还要由调用者用indexCommit依次更新DEST的索引
+     */
+    public static void copyCommit(File source, File dest, String commitHash, Commit commit) {
+        if (ObjectStore.hasObject(dest, ObjectStore.COMMIT, commitHash)) {
+            return;
+        }
+        commit.saveTreeTo(dest);
+        ObjectStore.copyObject(source, dest, ObjectStore.COMMIT, commitHash);
+    }
+
+    public static void indexCommit(File repo, String commitHash, Commit commit) {
+        CommitIndex.add(repo, commitHash);
+        MessageIndex.add(repo, commitHash, commit.getMessage());
+    }
+
+    /*返回的数组可能来自缓存，不能修改*/
+    public static byte[] readBlob(File repo, String fileHash) {
+        byte[] cached = ObjectCache.getBlob(fileHash);
+        if (cached != null) {
+            return cached;
+        }
+        byte[] blobInByte = ObjectStore.readObjectBytes(repo, ObjectStore.BLOB, fileHash);
+        ObjectCache.putBlob(fileHash, blobInByte);
+        return blobInByte;
     }
 
     public static String getHashOf(Commit commit) {
-        return sha1(serialize(commit));
+        //id在commit创建或读出时就已经确定了，不需要重新编码再计算SHA-1
+        return commit.getHash();
     }
 
-    public static String getFileContent(String fileHash) {
+    public static String getFileContent(Repository repo, String fileHash) {
         if (fileHash == null) {
             return "";
         }
-        File filePath = join(BLOB_DIR, fileHash);
-        return readContentsAsString(filePath);
+        return new String(readBlob(repo.gitletDir, fileHash), StandardCharsets.UTF_8);
     }
 
     public static String createConflictContent(String contentCurrent, String contentGiven) {
@@ -0,0 +1,83 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static gitlet.Utils.*;
+
+/**
+ * A local stand-in for a gitlet server, answering push and fetch over TCP.
+ * gitlet daemon 只在本机回环地址上监听，每个连接先发来服务名(upload-pack/receive-pack)和仓库路径，
+ * 之后的对话见PackProtocol。路径相对于daemon启动时的目录，并且不能跑到这个目录外面去。
+ * 本机的任何用户都能连上来，所以默认只提供fetch(upload-pack)，push(receive-pack)要用 --enable-receive-pack 打开。
+ * 每个连接在自己的线程里处理，同一个仓库上的push和fetch靠仓库的锁串行；
+ * 一个连接上IDLE_TIMEOUT_MILLIS毫秒读不到数据、或者一次写不出去就断开，不说话的客户端不会一直占着线程和仓库的锁。
+ *
+ * 请求: 服务名(UTF) | 仓库的.gitlet目录的路径(UTF)
+ *
+ * @author 张婧
+ */
+public class GitletDaemon {
+    /**
+     * 一次读写超过这么久(毫秒)就断开这个连接
+     */
+    static final int IDLE_TIMEOUT_MILLIS = 60_000;
+
+    /**
+     * 在PORT上监听，每个连接交给一个线程处理，直到进程被结束。RECEIVEPACK为false时拒绝push
+     */
+    public static void serve(int port, boolean receivePack) {
+        File base;
+        try {
+            base = new File(System.getProperty("user.dir")).getCanonicalFile();
+        } catch (IOException e) {
+            exitWithError(e.getMessage());
+            return;
+        }
+        ExecutorService workers = Executors.newCachedThreadPool();
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            while (true) {
+                Socket client;
+                try {
+                    client = server.accept();
+                } catch (IOException e) {
+                    continue;
+                }
+                workers.execute(() -> {
+                    try (client) {
+                        client.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+                        handle(client, base, receivePack);
+                    } catch (IOException | RuntimeException e) {
+                        //客户端中途断开、超时或者发来的请求有误，继续等待下一个连接
+                    }
+                });
+            }
+        } catch (IOException e) {
+            exitWithError("Cannot listen on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    private static void handle(Socket client, File base, boolean receivePack) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+        //SO_TIMEOUT只管读，写由IdleTimeout限时
+        OutputStream out = IdleTimeout.guard(client.getOutputStream(), client, IDLE_TIMEOUT_MILLIS);
+        String service = in.readUTF();
+        if (service.equals(PackProtocol.RECEIVE_PACK) && !receivePack) {
+            PackProtocol.refuse("Remote does not accept pushes.", out);
+            return;
+        }
+        File dir = new File(base, in.readUTF()).getCanonicalFile();
+        if (!dir.toPath().startsWith(base.toPath())) {
+            dir = null;
+        }
+        PackProtocol.serve(service, dir, in, out);
+    }
+}
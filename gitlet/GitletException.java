@@ -2,10 +2,11 @@ package gitlet;
 
 /** General exception indicating a Gitlet error.  For fatal errors, the
  *  result of .getMessage() is the error message to be printed.
+ *  下面的子类区分了失败的种类，通过Gitlet调用时可以分别处理，消息与命令行打印的一样。
  *  @author P. N. Hilfinger
  */
-class GitletException extends RuntimeException {
-
+public class GitletException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
 
     /** A GitletException with no message. */
     GitletException() {
@@ -17,4 +18,39 @@ class GitletException extends RuntimeException {
         super(msg);
     }
 
+    /** 要找的仓库、分支、commit、文件或远程仓库不存在 */
+    public static class NotFound extends GitletException {
+        private static final long serialVersionUID = 1L;
+
+        NotFound(String msg) {
+            super(msg);
+        }
+    }
+
+    /** 要创建的仓库、分支或远程仓库已经存在 */
+    public static class AlreadyExists extends GitletException {
+        private static final long serialVersionUID = 1L;
+
+        AlreadyExists(String msg) {
+            super(msg);
+        }
+    }
+
+    /** 仓库或工作区当前的状态不允许这个操作，例如有未提交的修改或者挡路的未跟踪文件 */
+    public static class InvalidState extends GitletException {
+        private static final long serialVersionUID = 1L;
+
+        InvalidState(String msg) {
+            super(msg);
+        }
+    }
+
+    /** 参数本身不合法，例如空的commit message或者有歧义的缩写commit id */
+    public static class InvalidArgument extends GitletException {
+        private static final long serialVersionUID = 1L;
+
+        InvalidArgument(String msg) {
+            super(msg);
+        }
+    }
 }
@@ -0,0 +1,174 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static gitlet.Utils.*;
+
+/**
+ * A long-running gitlet process serving commands over a Unix domain socket.
+ * gitlet serve 在 .gitlet/serve.sock 上监听，GitletClient把命令行参数发过来，
+ * 服务端在自己的进程里执行这条命令，再把输出和退出码传回去，这样每条命令不再需要启动一个新的JVM。
+ * 进程中的缓存(对象、commit图、pack索引、暂存区)在命令之间保留，它们都会检查磁盘上的文件是否被别的进程改过。
+ * 每个连接在自己的线程里读请求、写回输出，命令的输出通过System.out/err传回，所以命令本身仍然一个一个地串行执行，
+ * 与在命令行中依次执行这些命令的效果相同。迟迟不发请求的客户端和不再读输出的客户端会在超时后被断开，
+ * 不会挡住别的客户端；被断开时正在执行的命令照常执行完，只是输出被丢掉。
+ *
+ * 请求: 参数个数(int) | 每个参数: 长度(int) | UTF-8内容
+ * 回复: 若干帧，每帧: 类型(1 byte) | 长度(int) | 内容。类型为STDOUT/STDERR时内容是输出的字节，
+ * 最后一帧的类型是EXIT，内容是4个字节的退出码
+ *
+ * @author 张婧
+ */
+public class GitletServer {
+    static final File SOCKET_FILE = join(System.getProperty("user.dir"), ".gitlet", "serve.sock");
+    static final byte STDOUT = 1;
+    static final byte STDERR = 2;
+    static final byte EXIT = 3;
+    /**
+     * 连上来以后这么久(毫秒)还没有发完请求，就断开这个客户端
+     */
+    static final int REQUEST_TIMEOUT_MILLIS = 10_000;
+    /**
+     * 一次写这么久(毫秒)还没有完成，说明客户端不再读输出，断开它
+     */
+    static final int WRITE_TIMEOUT_MILLIS = 10_000;
+    /**
+     * 同一时间只执行一条命令
+     */
+    private static final Object EXECUTING = new Object();
+
+    /**
+     * 在SOCKET_FILE上监听，每个连接交给一个线程处理，直到进程被结束
+     */
+    public static void serve() {
+        if (GitletClient.connect() != null) {
+            exitWithError("A gitlet server is already running.");
+        }
+        ExecutorService workers = Executors.newCachedThreadPool();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            Files.deleteIfExists(SOCKET_FILE.toPath()); //上一个服务进程没有正常退出时留下的
+            server.bind(UnixDomainSocketAddress.of(SOCKET_FILE.toPath()));
+            Runtime.getRuntime().addShutdownHook(new Thread(SOCKET_FILE::delete));
+            while (true) {
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (IOException e) {
+                    continue;
+                }
+                workers.execute(() -> {
+                    try (client) {
+                        handle(client);
+                    } catch (IOException e) {
+                        //客户端中途断开或者超时，继续等待下一个请求
+                    }
+                });
+            }
+        } catch (IOException e) {
+            exitWithError("Cannot listen on " + SOCKET_FILE + ": " + e.getMessage());
+        }
+    }
+
+    /*读出一条请求，执行它并把结果写回CLIENT*/
+    private static void handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                IdleTimeout.guard(Channels.newInputStream(client), client, REQUEST_TIMEOUT_MILLIS)));
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i += 1) {
+            args[i] = new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                IdleTimeout.guard(Channels.newOutputStream(client), client, WRITE_TIMEOUT_MILLIS),
+                STREAM_BUFFER_SIZE));
+        synchronized (EXECUTING) {
+            execute(args, out);
+        }
+    }
+
+    /*执行ARGS，把输出和退出码按帧写到OUT*/
+    private static void execute(String[] args, DataOutputStream out) throws IOException {
+        PrintStream stdout = new PrintStream(new BufferedOutputStream(new FrameStream(out, STDOUT)));
+        PrintStream stderr = new PrintStream(new BufferedOutputStream(new FrameStream(out, STDERR)));
+        PrintStream oldOut = System.out;
+        PrintStream oldErr = System.err;
+        int exitCode = 0;
+        System.setOut(stdout);
+        System.setErr(stderr);
+        try {
+            if (args.length > 0 && args[0].equals("serve")) {
+                exitWithError("A gitlet server is already running.");
+            }
+            Main.execute(args);
+        } catch (GitletException e) {
+            Main.printError(e);
+            dropCache(); //命令中途结束，内存中的暂存区可能和文件不一致
+        } catch (Throwable e) { //和命令行中未捕获的异常一样，打印到stderr，退出码为1
+            System.err.print("Exception in thread \"main\" ");
+            e.printStackTrace();
+            dropCache();
+            exitCode = 1;
+        } finally {
+            System.setOut(oldOut);
+            System.setErr(oldErr);
+        }
+        stdout.flush();
+        stderr.flush();
+        out.writeByte(EXIT);
+        out.writeInt(Integer.BYTES);
+        out.writeInt(exitCode);
+        out.flush();
+    }
+
+    private static void dropCache() {
+        StagingArea.dropCache(Repository.open(new File(System.getProperty("user.dir"))));
+    }
+
+    /**
+     * 把写进来的字节包装成TYPE类型的帧写到OUT
+     */
+    private static class FrameStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte type;
+
+        FrameStream(DataOutputStream out, byte type) {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.writeByte(type);
+            out.writeInt(len);
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
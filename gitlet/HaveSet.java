@@ -0,0 +1,109 @@
+package gitlet;
+
+import java.io.File;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/**
+ * What the receiving side of a push or fetch advertises it already has.
+ * 传输前接收方先给出自己的所有分支头和某一类型的全部对象hash，发送方只计算并发送对方没有的commit和blob。
+ * 对象不多时直接用HashSet；超过EXACT_LIMIT个时改用Bloom过滤器，每个对象只占BITS_PER_OBJECT位，
+ * 过滤器说没有就一定没有，说有的时候(大约1%会误报)再到对方的对象库里确认一次，所以不会漏掉任何对象。
+ *
+ * @author 张婧
+ */
+class HaveSet {
+    private static final int EXACT_LIMIT = 1 << 16;
+    private static final int BITS_PER_OBJECT = 10;
+    private static final int HASH_FUNCTIONS = 7;
+
+    private final File repo;
+    private final String type;
+    /**
+     * 两者只有一个不为null
+     */
+    private final Set<String> exact;
+    private final long[] bloom;
+    private final long bloomBits;
+
+    private HaveSet(File repo, String type, Set<String> exact, long[] bloom, long bloomBits) {
+        this.repo = repo;
+        this.type = type;
+        this.exact = exact;
+        this.bloom = bloom;
+        this.bloomBits = bloomBits;
+    }
+
+    /**
+     * REPO(某个.gitlet目录)对TYPE类型对象的广告
+     */
+    static HaveSet of(File repo, String type) {
+        int[] count = new int[1];
+        ObjectStore.forEachObject(repo, type, hash -> count[0] += 1);
+        if (count[0] <= EXACT_LIMIT) {
+            Set<String> exact = new HashSet<>(count[0] * 2);
+            ObjectStore.forEachObject(repo, type, exact::add);
+            return new HaveSet(repo, type, exact, null, 0);
+        }
+        long bits = (long) count[0] * BITS_PER_OBJECT;
+        HaveSet result = new HaveSet(repo, type, null, new long[(int) ((bits + 63) / 64)], bits);
+        ObjectStore.forEachObject(repo, type, result::addToBloom);
+        return result;
+    }
+
+    /**
+     * REPO中所有的分支头，包括远程跟踪分支(refs/heads下的子目录)
+     */
+    static List<String> heads(File repo) {
+        return new ArrayList<>(refs(repo).values());
+    }
+
+    /**
+     * REPO中所有的分支: 相对refs/heads的名字(比如master、R1/master) -> commit的hash
+     */
+    static SortedMap<String, String> refs(File repo) {
+        SortedMap<String, String> result = new TreeMap<>();
+        collectRefs(join(repo, "refs", "heads"), "", result);
+        return result;
+    }
+
+    private static void collectRefs(File dir, String prefix, SortedMap<String, String> result) {
+        File[] refs = dir.listFiles();
+        if (refs == null) {
+            return;
+        }
+        for (File ref : refs) {
+            if (ref.isDirectory()) {
+                collectRefs(ref, prefix + ref.getName() + "/", result);
+            } else {
+                result.put(prefix + ref.getName(), readContentsAsString(ref).trim());
+            }
+        }
+    }
+
+    boolean has(String hash) {
+        if (exact != null) {
+            return exact.contains(hash);
+        }
+        long h1 = Long.parseUnsignedLong(hash, 0, 16, 16);
+        long h2 = Long.parseUnsignedLong(hash, 16, 32, 16);
+        for (int i = 0; i < HASH_FUNCTIONS; i += 1) {
+            long bit = Math.floorMod(h1 + i * h2, bloomBits);
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return ObjectStore.hasObject(repo, type, hash); //可能是误报，确认一次
+    }
+
+    /*hash本身就是均匀分布的，直接取其中两段作为双重散列的两个值*/
+    private void addToBloom(String hash) {
+        long h1 = Long.parseUnsignedLong(hash, 0, 16, 16);
+        long h2 = Long.parseUnsignedLong(hash, 16, 32, 16);
+        for (int i = 0; i < HASH_FUNCTIONS; i += 1) {
+            long bit = Math.floorMod(h1 + i * h2, bloomBits);
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package gitlet;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time limits for blocking reads and writes on a connection to another process.
+ * 每次读写之前安排一个定时任务，这次读写在给定的时间内没有完成(对方不说话，或者不再读、缓冲区满了)就关闭连接，
+ * 阻塞着的读写随之抛出SocketTimeoutException。Socket的SO_TIMEOUT只管读，unix domain socket的通道连读的超时也没有，
+ * 都靠这里补上。
+ *
+ * @author 张婧
+ */
+class IdleTimeout {
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "gitlet-idle-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true); //大多数读写都会按时完成，取消的任务不留在队列里
+    }
+
+    /**
+     * 从IN读时，一次读超过MILLIS毫秒就关闭CONNECTION
+     */
+    static InputStream guard(InputStream in, Closeable connection, int millis) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                return timed(connection, millis, () -> in.read());
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return timed(connection, millis, () -> in.read(b, off, len));
+            }
+        };
+    }
+
+    /**
+     * 往OUT写时，一次写或者flush超过MILLIS毫秒就关闭CONNECTION
+     */
+    static OutputStream guard(OutputStream out, Closeable connection, int millis) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                timed(connection, millis, () -> {
+                    out.write(b, off, len);
+                    return null;
+                });
+            }
+
+            @Override
+            public void flush() throws IOException {
+                timed(connection, millis, () -> {
+                    out.flush();
+                    return null;
+                });
+            }
+        };
+    }
+
+    private interface IOAction<T> {
+        T run() throws IOException;
+    }
+
+    private static <T> T timed(Closeable connection, int millis, IOAction<T> action) throws IOException {
+        ScheduledFuture<?> alarm = TIMER.schedule(() -> {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                //已经关闭了
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+        try {
+            return action.run();
+        } catch (IOException e) {
+            if (!alarm.cancel(false)) { //定时任务已经执行过，是超时关掉了连接
+                throw new SocketTimeoutException("No progress in " + millis + " ms");
+            }
+            throw e;
+        } finally {
+            alarm.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Line-based diff and diff3-style three-way merge of blob contents.
+ * 文件直接以byte[]的形式按行切开，每一行(包括它的换行符)换成一个整数编号，内容相同的行编号相同，
+ * 之后的比较都只比较整数。diff使用Myers算法的线性空间版本：先去掉相同的开头和结尾，
+ * 然后找到编辑路径中间的一个点，把问题分成两半递归，所以只需要O(N+M)的空间。
+ * 三向合并时分别求出base与两边的对应关系，三者逐行对应的部分是稳定的，其余部分只有一边改动时取改动的一边，
+ * 两边改成一样时取任意一边，否则是冲突，冲突标记与createConflictContent相同。
+ *
+ * @author 张婧
+ */
+public class LineDiff {
+    private static final String NL = System.lineSeparator();
+    private static final byte[] OURS_MARKER = ("<<<<<<< HEAD" + NL).getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR = ("=======" + NL).getBytes(StandardCharsets.UTF_8);
+    private static final byte[] THEIRS_MARKER = (">>>>>>>" + NL).getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 三向合并的结果
+     */
+    static final class Merged {
+        final byte[] content;
+        final int conflicts;
+
+        Merged(byte[] content, int conflicts) {
+            this.content = content;
+            this.conflicts = conflicts;
+        }
+    }
+
+    /**
+     * 以BASE为共同祖先合并OURS和THEIRS，冲突的部分用冲突标记包起来
+     */
+    static Merged merge(byte[] base, byte[] ours, byte[] theirs) {
+        Lines o = new Lines(base);
+        Lines a = new Lines(ours);
+        Lines b = new Lines(theirs);
+        Interner ids = new Interner(o.count() + a.count() + b.count());
+        int[] oIds = o.intern(ids);
+        int[] aIds = a.intern(ids);
+        int[] bIds = b.intern(ids);
+        int[] matchA = diff(oIds, aIds);
+        int[] matchB = diff(oIds, bIds);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(ours.length, theirs.length));
+        int conflicts = 0;
+        int lo = 0;
+        int la = 0;
+        int lb = 0;
+        while (true) {
+            //三者逐行对应的稳定部分
+            int i = 0;
+            while (lo + i < oIds.length && matchA[lo + i] == la + i && matchB[lo + i] == lb + i) {
+                i += 1;
+            }
+            if (i > 0) {
+                o.writeTo(out, lo, lo + i);
+                lo += i;
+                la += i;
+                lb += i;
+                continue;
+            }
+            //下一个在两边都还存在的base行，它之前是一个不稳定的部分
+            int j = lo;
+            while (j < oIds.length && (matchA[j] < 0 || matchB[j] < 0)) {
+                j += 1;
+            }
+            int oEnd = j;
+            int aEnd = j < oIds.length ? matchA[j] : aIds.length;
+            int bEnd = j < oIds.length ? matchB[j] : bIds.length;
+            if (oEnd == lo && aEnd == la && bEnd == lb) {
+                break; //三个文件都已经处理完
+            }
+            if (sameLines(oIds, lo, oEnd, aIds, la, aEnd)) {
+                b.writeTo(out, lb, bEnd);
+            } else if (sameLines(oIds, lo, oEnd, bIds, lb, bEnd)
+                    || sameLines(aIds, la, aEnd, bIds, lb, bEnd)) {
+                a.writeTo(out, la, aEnd);
+            } else {
+                conflicts += 1;
+                out.write(OURS_MARKER, 0, OURS_MARKER.length);
+                a.writeTo(out, la, aEnd);
+                out.write(SEPARATOR, 0, SEPARATOR.length);
+                b.writeTo(out, lb, bEnd);
+                out.write(THEIRS_MARKER, 0, THEIRS_MARKER.length);
+            }
+            lo = oEnd;
+            la = aEnd;
+            lb = bEnd;
+        }
+        return new Merged(out.toByteArray(), conflicts);
+    }
+
+    /**
+     * 把从BEFORE到AFTER的修改按unified diff的格式写进OUT，每个hunk前后带CONTEXT行上下文。
+     * 只写@@开头的各个hunk，文件头由调用者写；两边内容相同时什么都不写
+     */
+    static void unified(byte[] before, byte[] after, int context, ByteArrayOutputStream out) {
+        Lines a = new Lines(before);
+        Lines b = new Lines(after);
+        Interner ids = new Interner(a.count() + b.count());
+        int[] aIds = a.intern(ids);
+        int[] bIds = b.intern(ids);
+        int[] match = diff(aIds, bIds);
+        //发生变化的区域 {a中起点, a中终点, b中起点, b中终点}，区域之间的行两边相同
+        List<int[]> changes = new ArrayList<>();
+        int aFrom = 0;
+        int bFrom = 0;
+        for (int i = 0; i <= aIds.length; i += 1) {
+            int j = i < aIds.length ? match[i] : bIds.length;
+            if (j < 0) {
+                continue;
+            }
+            if (i > aFrom || j > bFrom) {
+                changes.add(new int[]{aFrom, i, bFrom, j});
+            }
+            aFrom = i + 1;
+            bFrom = j + 1;
+        }
+        int first = 0;
+        while (first < changes.size()) {
+            //上下文会相互重叠的变化放进同一个hunk
+            int last = first;
+            while (last + 1 < changes.size()
+                    && changes.get(last + 1)[0] - changes.get(last)[1] <= 2 * context) {
+                last += 1;
+            }
+            int[] head = changes.get(first);
+            int[] tail = changes.get(last);
+            int aStart = Math.max(0, head[0] - context);
+            int aEnd = Math.min(aIds.length, tail[1] + context);
+            int bStart = head[2] - (head[0] - aStart);
+            int bEnd = tail[3] + (aEnd - tail[1]);
+            writeAscii(out, "@@ -" + range(aStart, aEnd - aStart)
+                    + " +" + range(bStart, bEnd - bStart) + " @@\n");
+            int position = aStart;
+            for (int k = first; k <= last; k += 1) {
+                int[] change = changes.get(k);
+                a.writeLines(out, ' ', position, change[0]);
+                a.writeLines(out, '-', change[0], change[1]);
+                b.writeLines(out, '+', change[2], change[3]);
+                position = change[1];
+            }
+            a.writeLines(out, ' ', position, aEnd);
+            first = last + 1;
+        }
+    }
+
+    /*hunk头中的行号范围：只有一行时省略行数，没有行时起点是前一行的行号*/
+    private static String range(int start, int count) {
+        if (count == 1) {
+            return String.valueOf(start + 1);
+        }
+        return (count == 0 ? start : start + 1) + "," + count;
+    }
+
+    private static void writeAscii(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * 内容中有0字节时当作二进制文件，不按行合并
+     */
+    static boolean isBinary(byte[] content) {
+        for (byte b : content) {
+            if (b == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 返回match数组：match[i]为A的第i行在B中对应的行号，没有对应的行时为-1。对应关系是一个最长公共子序列
+     */
+    static int[] diff(int[] a, int[] b) {
+        int[] match = new int[a.length];
+        Arrays.fill(match, -1);
+        diff(a, 0, a.length, b, 0, b.length, match);
+        return match;
+    }
+
+    private static void diff(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi, int[] match) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            match[aLo] = bLo;
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+            match[aHi] = bHi;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            return;
+        }
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD;
+        //forward[k]为从开头出发、在对角线k上走到的最远的x；backward[k]为从结尾反向出发走过的长度
+        int[] forward = new int[2 * maxD + 2];
+        int[] backward = new int[2 * maxD + 2];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        boolean front = (delta & 1) != 0; //delta为奇数时正向的路径先和反向的路径相遇
+        int kStart = 0;
+        int kEnd = 0;
+        int rStart = 0;
+        int rEnd = 0;
+        for (int d = 0; d < maxD; d += 1) {
+            for (int k = -d + kStart; k <= d - kEnd; k += 2) {
+                int index = offset + k;
+                int x = k == -d || (k != d && forward[index - 1] < forward[index + 1])
+                        ? forward[index + 1] : forward[index - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[index] = x;
+                if (x > n) {
+                    kEnd += 2; //走出了右边界
+                } else if (y > m) {
+                    kStart += 2; //走出了下边界
+                } else if (front) {
+                    int reverse = offset + delta - k;
+                    if (reverse >= 0 && reverse < backward.length && backward[reverse] != -1
+                            && x >= n - backward[reverse]) {
+                        split(a, aLo, aHi, b, bLo, bHi, x, y, match);
+                        return;
+                    }
+                }
+            }
+            for (int k = -d + rStart; k <= d - rEnd; k += 2) {
+                int index = offset + k;
+                int x = k == -d || (k != d && backward[index - 1] < backward[index + 1])
+                        ? backward[index + 1] : backward[index - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aHi - x - 1] == b[bHi - y - 1]) {
+                    x += 1;
+                    y += 1;
+                }
+                backward[index] = x;
+                if (x > n) {
+                    rEnd += 2;
+                } else if (y > m) {
+                    rStart += 2;
+                } else if (!front) {
+                    int forwardIndex = offset + delta - k;
+                    if (forwardIndex >= 0 && forwardIndex < forward.length && forward[forwardIndex] != -1) {
+                        int fx = forward[forwardIndex];
+                        int fy = offset + fx - forwardIndex;
+                        if (fx >= n - x) {
+                            split(a, aLo, aHi, b, bLo, bHi, fx, fy, match);
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+        //两段之间没有任何相同的行
+    }
+
+    /*在相对位置(X, Y)处把问题分成两半*/
+    private static void split(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi,
+                              int x, int y, int[] match) {
+        diff(a, aLo, aLo + x, b, bLo, bLo + y, match);
+        diff(a, aLo + x, aHi, b, bLo + y, bHi, match);
+    }
+
+    private static boolean sameLines(int[] a, int aLo, int aHi, int[] b, int bLo, int bHi) {
+        return Arrays.equals(a, aLo, aHi, b, bLo, bHi);
+    }
+
+    /**
+     * 一个文件的各行在内容中的起止位置，每一行包含它末尾的换行符，最后一行可以没有换行符
+     */
+    private static final class Lines {
+        private final byte[] content;
+        private final int[] starts;
+
+        Lines(byte[] content) {
+            this.content = content;
+            int count = 0;
+            for (int i = 0; i < content.length; i += 1) {
+                if (content[i] == '\n') {
+                    count += 1;
+                }
+            }
+            if (content.length > 0 && content[content.length - 1] != '\n') {
+                count += 1;
+            }
+            starts = new int[count + 1];
+            int line = 1;
+            for (int i = 0; i < content.length; i += 1) {
+                if (content[i] == '\n') {
+                    starts[line] = i + 1;
+                    line += 1;
+                }
+            }
+            starts[count] = content.length;
+        }
+
+        int count() {
+            return starts.length - 1;
+        }
+
+        int[] intern(Interner ids) {
+            int[] result = new int[count()];
+            for (int i = 0; i < result.length; i += 1) {
+                result[i] = ids.idOf(content, starts[i], starts[i + 1]);
+            }
+            return result;
+        }
+
+        /*把第FROM行到第TO行(不含)逐行写进OUT，每行前面加上PREFIX，没有换行符的最后一行后面加上说明*/
+        void writeLines(ByteArrayOutputStream out, char prefix, int from, int to) {
+            for (int i = from; i < to; i += 1) {
+                out.write(prefix);
+                out.write(content, starts[i], starts[i + 1] - starts[i]);
+                if (starts[i + 1] == starts[i] || content[starts[i + 1] - 1] != '\n') {
+                    writeAscii(out, "\n\\ No newline at end of file\n");
+                }
+            }
+        }
+
+        /*把第FROM行到第TO行(不含)原样写进OUT*/
+        void writeTo(ByteArrayOutputStream out, int from, int to) {
+            out.write(content, starts[from], starts[to] - starts[from]);
+        }
+    }
+
+    /**
+     * 给每一种不同内容的行分配一个编号。用开放寻址的int数组实现，不为每一行创建对象
+     */
+    private static final class Interner {
+        /**
+         * 每个槽中存放编号+1，0表示空槽；槽的个数是行数的两倍以上，所以不需要扩容
+         */
+        private final int[] slots;
+        private final int[] hashes;
+        private final byte[][] contents;
+        private final int[] starts;
+        private final int[] ends;
+        private int size;
+
+        Interner(int maxLines) {
+            slots = new int[Integer.highestOneBit(Math.max(maxLines, 1)) * 4];
+            hashes = new int[maxLines];
+            contents = new byte[maxLines][];
+            starts = new int[maxLines];
+            ends = new int[maxLines];
+        }
+
+        int idOf(byte[] content, int start, int end) {
+            int hash = 1;
+            for (int i = start; i < end; i += 1) {
+                hash = 31 * hash + content[i];
+            }
+            int mask = slots.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (slots[slot] != 0) {
+                int id = slots[slot] - 1;
+                if (hashes[id] == hash
+                        && Arrays.equals(contents[id], starts[id], ends[id], content, start, end)) {
+                    return id;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int id = size;
+            size += 1;
+            slots[slot] = id + 1;
+            hashes[id] = hash;
+            contents[id] = content;
+            starts[id] = start;
+            ends[id] = end;
+            return id;
+        }
+    }
+}
@@ -1,10 +1,16 @@
 package gitlet;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
 import static gitlet.Utils.*;
-import static gitlet.Repository.*;
-import static gitlet.StagingArea.*;
-import static gitlet.MainLogicTool.*;
-import static gitlet.GitletCore.*;
 
 /**
  * Driver class for Gitlet, a subset of the Git version-control system.
@@ -13,7 +19,35 @@ import static gitlet.GitletCore.*;
  */
 
 public class Main {
+    /**
+     * 为远程push/fetch服务的命令，它们操作参数给出的仓库，不需要当前目录是一个仓库
+     */
+    private static final List<String> SERVICE_COMMANDS =
+            Arrays.asList("upload-pack", "receive-pack", "daemon");
+    /**
+     * 命令实际上都由Gitlet执行，Main只负责检查参数个数和打印结果
+     */
+    private Gitlet gitlet;
+
     public static void main(String[] args) {
+        run(args);
+    }
+
+    /**
+     * 执行一条命令。出错时打印错误信息后正常返回，而不是退出进程
+     */
+    public static void run(String[] args) {
+        try {
+            execute(args);
+        } catch (GitletException e) {
+            printError(e);
+        }
+    }
+
+    /**
+     * 执行一条命令，出错时抛出GitletException，gitlet serve用它来知道哪些请求失败了
+     */
+    static void execute(String[] args) {
         if (args.length == 0) {
             exitWithError("Please enter a command.");
             return;
@@ -22,13 +56,19 @@ public class Main {
         Main gitletApp = new Main();
         gitletApp.executeCommand(args);
     }
+
+    static void printError(GitletException e) {
+        if (e.getMessage() != null && !e.getMessage().equals("")) {
+            System.out.println(e.getMessage());
+        }
+    }
+
     public void executeCommand(String[] args) {
         String command = args[0];
 
         // 除了 init，所有命令都需要在一个初始化的 Gitlet 目录中运行
-        if (!command.equals("init") && !Repository.GITLET_DIR.exists()) {
-            exitWithError("Not in an initialized Gitlet directory.");
-            return;
+        if (!command.equals("init") && !SERVICE_COMMANDS.contains(command)) {
+            gitlet = Gitlet.open();
         }
 
         switch (command) {
@@ -86,6 +126,28 @@ public class Main {
             case "pull":
                 handlePull(args);
                 break;
+            case "repack":
+                handleRepack(args);
+                break;
+            case "migrate":
+                handleMigrate(args);
+                break;
+            case "reindex":
+                handleReindex(args);
+                break;
+            case "diff":
+                handleDiff(args);
+                break;
+            case "serve":
+                handleServe(args);
+                break;
+            case "upload-pack":
+            case "receive-pack":
+                handlePackService(args);
+                break;
+            case "daemon":
+                handleDaemon(args);
+                break;
             default:
                 exitWithError("No command with that name exists.");
         }
@@ -95,69 +157,109 @@ public class Main {
 
     private void handleInit(String[] args) {
         validateNumArgs(args, 1);
-        init();
+        gitlet = Gitlet.init();
     }
 
     private void handleAdd(String[] args) {
-        validateNumArgs(args, 2);
-        String fileToAdd = args[1];
-        add(fileToAdd);
+        if (args.length < 2) {
+            exitWithError("Incorrect operands.");
+        }
+        //可以一次add多个文件
+        gitlet.add(Arrays.asList(args).subList(1, args.length));
     }
 
     private void handleCommit(String[] args) {
         validateNumArgs(args, 2);
-        String message = args[1];
-        if (message.isEmpty()) {
-            exitWithError("Please enter a commit message.");
-        }
-        StagingArea stagingArea = loadFromFile();
-        if (stagingArea.getFileToAdd().isEmpty() && stagingArea.getFileToRemove().isEmpty()) {
-            exitWithError("No changes added to the commit.");
-        }
-        commit(message);
+        gitlet.commit(args[1]);
     }
 
     private void handleRm(String[] args) {
         validateNumArgs(args, 2);
         String fileToRemove = args[1];
-        rm(fileToRemove);
+        gitlet.rm(fileToRemove);
     }
 
+    /*log [-n <N>] [--format=<template>]*/
     private void handleLog(String[] args) {
-        validateNumArgs(args, 1);
-        log();
+        int limit = Integer.MAX_VALUE;
+        CommitFormat format = CommitFormat.standard(true);
+        for (int i = 1; i < args.length; i += 1) {
+            if (args[i].equals("-n") && i + 1 < args.length) {
+                i += 1;
+                limit = parseCount(args[i]);
+            } else if (args[i].startsWith("--format=")) {
+                format = CommitFormat.compile(args[i].substring("--format=".length()));
+            } else {
+                exitWithError("Incorrect operands.");
+            }
+        }
+        printCommits(gitlet.log(), limit, format);
     }
 
+    /*global-log [--by-date]*/
     private void handleGlobalLog(String[] args) {
-        validateNumArgs(args, 1);
-        globalLog();
+        boolean byDate = args.length == 2 && args[1].equals("--by-date");
+        if (!byDate) {
+            validateNumArgs(args, 1);
+        }
+        printCommits(gitlet.globalLog(byDate), Integer.MAX_VALUE, CommitFormat.standard(false));
     }
 
+    /*find [--substring | --regex] <message>*/
     private void handleFind(String[] args) {
-        validateNumArgs(args, 2);
-        String commitMessage = args[1];
-        find(commitMessage);
+        Gitlet.FindMode mode = Gitlet.FindMode.EXACT;
+        if (args.length == 3 && args[1].equals("--substring")) {
+            mode = Gitlet.FindMode.SUBSTRING;
+        } else if (args.length == 3 && args[1].equals("--regex")) {
+            mode = Gitlet.FindMode.REGEX;
+        } else {
+            validateNumArgs(args, 2);
+        }
+        String commitMessage = args[args.length - 1];
+        List<String> found = gitlet.find(commitMessage, mode);
+        if (found.isEmpty()) {
+            exitWithError("Found no commit with that message.");
+        }
+        for (String commitHash : found) {
+            System.out.println(commitHash);
+        }
     }
 
     private void handleStatus(String[] args) {
         validateNumArgs(args, 1);
-        status();
+        StatusResult status = gitlet.status();
+        System.out.println("=== Branches ===");
+        for (String branchName : status.getBranches()) {
+            if (branchName.equals(status.getCurrentBranch())) {
+                System.out.println("*" + branchName);
+            } else {
+                System.out.println(branchName);
+            }
+        }
+        System.out.println();
+        printSection("=== Staged Files ===", status.getStagedFiles());
+        printSection("=== Removed Files ===", status.getRemovedFiles());
+        System.out.println("=== Modifications Not Staged For Commit ===");
+        for (Map.Entry<String, StatusResult.Modification> entry
+                : status.getModificationsNotStaged().entrySet()) {
+            String kind = entry.getValue() == StatusResult.Modification.DELETED
+                    ? " (deleted)" : " (modified)";
+            System.out.println(entry.getKey() + kind);
+        }
+        System.out.println();
+        printSection("=== Untracked Files ===", status.getUntrackedFiles());
     }
 
     private void handleCheckout(String[] args) {
         if (args.length == 3 && args[1].equals("--")) {
             String fileName = args[2];
-            checkoutCurrentCommitFile(fileName);
+            gitlet.checkoutFile(fileName);
         } else if (args.length == 4 && args[2].equals("--")) {
-            String commitId = getFullCommitHash(args[1]);
-            if (commitId == null) {
-                exitWithError("No commit with that id exists.");
-            }
             String fileName = args[3];
-            checkoutGivenCommitFile(commitId, fileName);
+            gitlet.checkoutFile(args[1], fileName);
         } else if (args.length == 2) {
             String branchName = args[1];
-            checkOutBranch(branchName);
+            gitlet.checkoutBranch(branchName);
         } else {
             exitWithError("Incorrect operands.");
         }
@@ -166,63 +268,226 @@ public class Main {
     private void handleBranch(String[] args) {
         validateNumArgs(args, 2);
         String branchName = args[1];
-        makeBranch(branchName);
+        gitlet.branch(branchName);
     }
 
     private void handleRmBranch(String[] args) {
         validateNumArgs(args, 2);
         String branchNameToRm = args[1];
-        removeBranch(branchNameToRm);
+        gitlet.rmBranch(branchNameToRm);
     }
 
     private void handleReset(String[] args) {
         validateNumArgs(args, 2);
-        String commitId = getFullCommitHash(args[1]);
-        if (commitId == null) {
-            exitWithError("No commit with that id exists.");
-        }
-        resetACommit(commitId);
+        gitlet.reset(args[1]);
     }
 
     private void handleMerge(String[] args) {
         validateNumArgs(args, 2);
         String branchNameToMerge = args[1];
-        merge(branchNameToMerge);
+        printMergeResult(gitlet.merge(branchNameToMerge));
     }
 
     private void handleAddRemote(String[] args) {
         validateNumArgs(args, 3);
         String remoteName = args[1];
         String remotePath = args[2];
-        addRemote(remoteName, remotePath);
+        gitlet.addRemote(remoteName, remotePath);
     }
 
     private void handleRmRemote(String[] args) {
         validateNumArgs(args, 2);
         String remoteName = args[1];
-        removeRemote(remoteName);
+        gitlet.rmRemote(remoteName);
     }
 
     private void handlePush(String[] args) {
         validateNumArgs(args, 3);
         String remoteName = args[1];
         String branchName = args[2];
-        pushRemote(remoteName, branchName);
+        gitlet.push(remoteName, branchName);
     }
 
     private void handleFetch(String[] args) {
         validateNumArgs(args, 3);
         String remoteName = args[1];
         String branchName = args[2];
-        fetchRemote(remoteName, branchName);
+        gitlet.fetch(remoteName, branchName);
     }
 
     private void handlePull(String[] args) {
         validateNumArgs(args, 3);
         String remoteName = args[1];
         String branchName = args[2];
-        pull(remoteName, branchName);
+        printMergeResult(gitlet.pull(remoteName, branchName));
+    }
+
+    /*repack [--big-file-threshold=N]*/
+    private void handleRepack(String[] args) {
+        if (args.length == 2 && args[1].startsWith("--big-file-threshold=")) {
+            gitlet.repack(parseCount(args[1].substring("--big-file-threshold=".length())));
+            return;
+        }
+        validateNumArgs(args, 1);
+        gitlet.repack();
+    }
+
+    private void handleMigrate(String[] args) {
+        validateNumArgs(args, 1);
+        gitlet.migrate();
     }
+
+    /*diff [--stat | --name-only] [<commit> [<commit>]] [-- <file>...]*/
+    private void handleDiff(String[] args) {
+        String mode = null;
+        List<String> revisions = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        for (int i = 1; i < args.length; i += 1) {
+            if (args[i].equals("--")) {
+                paths.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                if (paths.isEmpty()) {
+                    exitWithError("Incorrect operands.");
+                }
+                break;
+            } else if (args[i].equals("--stat") || args[i].equals("--name-only")) {
+                if (mode != null) {
+                    exitWithError("Incorrect operands.");
+                }
+                mode = args[i];
+            } else {
+                revisions.add(args[i]);
+            }
+        }
+        if (revisions.size() > 2) {
+            exitWithError("Incorrect operands.");
+        }
+        String from = revisions.size() > 0 ? revisions.get(0) : null;
+        String to = revisions.size() > 1 ? revisions.get(1) : null;
+        if ("--stat".equals(mode)) {
+            printDiffStat(gitlet.diffStat(from, to, paths));
+            return;
+        }
+        for (FileChange change : gitlet.diff(from, to, paths)) {
+            if ("--name-only".equals(mode)) {
+                System.out.println(change.getPath());
+            } else {
+                byte[] patch = gitlet.patch(change);
+                System.out.write(patch, 0, patch.length);
+            }
+        }
+        System.out.flush();
+    }
+
+    private void handleReindex(String[] args) {
+        validateNumArgs(args, 1);
+        gitlet.reindex();
+    }
+
+    private void handleServe(String[] args) {
+        validateNumArgs(args, 1);
+        GitletServer.serve();
+    }
+
+    /*upload-pack|receive-pack <.gitlet目录>，在stdin/stdout上为push/fetch服务，stdout上只能有协议的数据*/
+    private void handlePackService(String[] args) {
+        validateNumArgs(args, 2);
+        try {
+            PackProtocol.serve(args[0], new File(args[1]), System.in,
+                    new FileOutputStream(FileDescriptor.out));
+        } catch (IOException e) {
+            exitWithError(e.getMessage());
+        }
+    }
+
+    /*daemon [--port=N] [--enable-receive-pack]*/
+    private void handleDaemon(String[] args) {
+        int port = RemoteConnection.DEFAULT_PORT;
+        boolean receivePack = false;
+        for (int i = 1; i < args.length; i += 1) {
+            if (args[i].startsWith("--port=")) {
+                port = parseCount(args[i].substring("--port=".length()));
+            } else if (args[i].equals("--enable-receive-pack")) {
+                receivePack = true;
+            } else {
+                exitWithError("Incorrect operands.");
+            }
+        }
+        GitletDaemon.serve(port, receivePack);
+    }
+
+    // --- 打印结果 ---
+
+    /**
+     * 打印COMMITS中的前LIMIT个。输出先攒在一个大缓冲区里，攒满后一次写出，而不是每行都写一次stdout；
+     * commit是边读边打印的，所以 log | head 很快就能看到输出。写出失败(比如head已经退出，管道被关闭)时
+     * 不再读取剩下的commit
+     */
+    private static void printCommits(Iterator<CommitInfo> commits, int limit, CommitFormat format) {
+        StringBuilder out = new StringBuilder(STREAM_BUFFER_SIZE + STREAM_BUFFER_SIZE / 4);
+        for (int n = 0; n < limit && commits.hasNext(); n += 1) {
+            format.appendTo(out, commits.next());
+            if (out.length() >= STREAM_BUFFER_SIZE) {
+                System.out.print(out);
+                out.setLength(0);
+                if (System.out.checkError()) {
+                    return;
+                }
+            }
+        }
+        System.out.print(out);
+        System.out.flush();
+    }
+
+    /*log -n 的参数，必须是非负整数*/
+    private static int parseCount(String count) {
+        try {
+            int n = Integer.parseInt(count);
+            if (n >= 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            //和其他格式错误一样处理
+        }
+        throw new GitletException.InvalidArgument("Incorrect operands.");
+    }
+
+    /*每个文件一行，给出两边的大小，最后一行是文件个数*/
+    private static void printDiffStat(List<FileChange> changes) {
+        int width = 0;
+        for (FileChange change : changes) {
+            width = Math.max(width, change.getPath().length());
+        }
+        for (FileChange change : changes) {
+            System.out.println(String.format(" %-" + width + "s | %d -> %d bytes",
+                    change.getPath(), change.getOldSize(), change.getNewSize()));
+        }
+        System.out.println(" " + changes.size() + (changes.size() == 1 ? " file changed" : " files changed"));
+    }
+
+    private static void printSection(String title, List<String> names) {
+        System.out.println(title);
+        for (String name : names) {
+            System.out.println(name);
+        }
+        System.out.println();
+    }
+
+    private static void printMergeResult(MergeResult result) {
+        switch (result.getStatus()) {
+            case ALREADY_UP_TO_DATE:
+                System.out.println("Given branch is an ancestor of the current branch.");
+                break;
+            case FAST_FORWARD:
+                System.out.println("Current branch fast-forwarded.");
+                break;
+            case CONFLICT:
+                System.out.println("Encountered a merge conflict.");
+                break;
+            default:
+                break;
+        }
+    }
+
     public static void validateNumArgs(String[] args, int n) {
         if (args.length != n) {
             exitWithError("Incorrect operands.");
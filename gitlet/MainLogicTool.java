@@ -1,15 +1,14 @@
 package gitlet;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.Objects;
+import java.util.concurrent.Future;
 
-import static gitlet.Repository.*;
 import static gitlet.Utils.*;
 import static gitlet.GitletCore.*;
 
-import java.nio.file.Files;
-import java.io.IOException;
 
 /**
  * Tool class for Gitlet.
@@ -17,95 +16,61 @@ import java.io.IOException;
  * @author 张婧
  */
 public class MainLogicTool {
-    public static void initTool() {
+    public static void initTool(Repository repo) {
         Commit initialcommit = new Commit();
-        StagingArea initialStagingArea = new StagingArea();
-        byte[] initialcommitbyte = serialize(initialcommit);
-        String initialcommithash = sha1(initialcommitbyte);
-        File initial = Utils.join(COMMIT_DIR, initialcommithash);
-        File masterbranch = Utils.join(BRANCH_DIR, "master");
-        writeObject(initial, initialcommit);
+        StagingArea initialStagingArea = new StagingArea(repo);
+        String initialcommithash = initialcommit.getHash();
+        File masterbranch = Utils.join(repo.branchDir, "master");
+        saveCommit(repo.gitletDir, initialcommithash, initialcommit);
         writeContents(masterbranch, initialcommithash);
-        writeContents(HEAD_DIR, "ref: refs/heads/master");
+        writeContents(repo.headFile, "ref: refs/heads/master");
         initialStagingArea.saveToFile();
     }
     
-    public static void printCommit(Commit commit, String hashcodeOfCommit) {
-        System.out.println("===");
-        System.out.println("commit " + hashcodeOfCommit);
-        System.out.println("Date: " + commit.getTimestamp());
-        System.out.println(commit.getMessage());
-        System.out.println();
-    }
-
-    public static void printStatus(String currentBranchName, List<String> allBranchName,
-                                   Map<String, String> fileToAdd, Set<String> fileToRemove) {
-        System.out.println("=== Branches ===");
-        List<String> branchNames = new ArrayList<>();
-        for (String branchName : allBranchName) {
-            branchNames.add(branchName);
-        } Collections.sort(branchNames);
-        for (String branchName : branchNames) {
-            if (branchName.equals(currentBranchName)) {
-                System.out.println("*" + branchName);
-            } else {
-                System.out.println(branchName);
-            }
-        } System.out.println();
-        System.out.println("=== Staged Files ===");
-        List<String> addedFileNames = new ArrayList<>();
-        for (Map.Entry<String, String> entry : fileToAdd.entrySet()) {
-            addedFileNames.add(entry.getKey());
-        } Collections.sort(addedFileNames);
-        for (String addedFileName : addedFileNames) {
-            System.out.println(addedFileName);
-        } System.out.println();
-        System.out.println("=== Removed Files ===");
-        List<String> removedFileNames = new ArrayList<>();
-        for (String filename : fileToRemove) {
-            removedFileNames.add(filename);
-        } Collections.sort(removedFileNames);
-        for (String removedFileName : removedFileNames) {
-            System.out.println(removedFileName);
-        } System.out.println();
-        System.out.println("=== Modifications Not Staged For Commit ===");
-        Map<String, String> trackedFile = getHeadCommit().getTrackedFileCopy();
-        Map<String, String> notStagedFile = new TreeMap<>(); //TreeMap会自动根据文件名进行字典排序
+    public static StatusResult statusOf(Repository repo, String currentBranchName,
+                                        List<String> allBranchName, StagingArea stagingArea) {
+        Map<String, String> fileToAdd = stagingArea.getFileToAdd();
+        Set<String> fileToRemove = stagingArea.getFileToRemove();
+        List<String> branchNames = new ArrayList<>(allBranchName);
+        Collections.sort(branchNames);
+        List<String> addedFileNames = new ArrayList<>(fileToAdd.keySet());
+        Collections.sort(addedFileNames);
+        List<String> removedFileNames = new ArrayList<>(fileToRemove);
+        Collections.sort(removedFileNames);
+        Map<String, String> trackedFile = getHeadCommit(repo).getTrackedFiles();
+        //TreeMap会自动根据文件名进行字典排序
+        SortedMap<String, StatusResult.Modification> notStagedFile = new TreeMap<>();
+        Set<String> checkedFiles = new HashSet<>(trackedFile.keySet());
+        checkedFiles.addAll(fileToAdd.keySet());
+        //并行地得到工作区中这些文件的hash，不存在的文件不在结果中
+        Map<String, String> workingHashes = WorkingTree.hashFiles(repo, stagingArea, checkedFiles);
         for (Map.Entry<String, String> entry : trackedFile.entrySet()) { //对于commit中跟踪的每一个文件
-            File cwdFilePath = join(CWD, entry.getKey());
-            if (cwdFilePath.exists()) { //如果该文件存在于工作区
-                byte[] fileInByte = readContents(cwdFilePath); //得到当前工作区的文件的byte值
-                String hashcodeOfFile = sha1(fileInByte); //用byte值生成当前工作区该文件的hash码
+            if (workingHashes.containsKey(entry.getKey())) { //如果该文件存在于工作区
+                String hashcodeOfFile = workingHashes.get(entry.getKey());
                 if (!entry.getValue().equals(hashcodeOfFile) 
                         && !fileToAdd.containsKey(entry.getKey())
                         && !fileToRemove.contains(entry.getKey())) { 
-                    notStagedFile.put(entry.getKey(), " (modified)"); 
+                    notStagedFile.put(entry.getKey(), StatusResult.Modification.MODIFIED);
                 }
             } else { //如果不存在于工作区
                 if (!fileToRemove.contains(entry.getKey())) { 
-                    notStagedFile.put(entry.getKey(), " (deleted)");
+                    notStagedFile.put(entry.getKey(), StatusResult.Modification.DELETED);
                 }
             }
         }
         for (Map.Entry<String, String> entry : fileToAdd.entrySet()) {
-            File cwdFilePath = join(CWD, entry.getKey());
-            if (cwdFilePath.exists()) { //如果该文件存在于工作区
-                byte[] fileInByte = readContents(cwdFilePath); //得到当前工作区的文件的byte值
-                String hashcodeOfFile = sha1(fileInByte); //用byte值生成当前工作区该文件的hash码
+            if (workingHashes.containsKey(entry.getKey())) { //如果该文件存在于工作区
+                String hashcodeOfFile = workingHashes.get(entry.getKey());
                 if (!entry.getValue().equals(hashcodeOfFile)) { //工作区文件与add的版本不同
-                    notStagedFile.put(entry.getKey(), " (modified)");
+                    notStagedFile.put(entry.getKey(), StatusResult.Modification.MODIFIED);
                 }
             }
-            if (!cwdFilePath.exists()) { 
-                notStagedFile.put(entry.getKey(), " (deleted)");
+            if (!workingHashes.containsKey(entry.getKey())) {
+                notStagedFile.put(entry.getKey(), StatusResult.Modification.DELETED);
             }
         }
-        for (Map.Entry<String, String> entry : notStagedFile.entrySet()) {
-            System.out.println(entry.getKey() + entry.getValue());
-        }
-        System.out.println();
-        System.out.println("=== Untracked Files ===");
-        List<String> allCwdFiles = Utils.plainFilenamesIn(CWD);
+        stagingArea.retainStat(checkedFiles);
+        List<String> allCwdFiles = WorkingTree.plainFiles(repo);
         List<String> cwdFileNames = new ArrayList<>();
         for (String cwdFile : allCwdFiles) {
             if (!fileToAdd.containsKey(cwdFile) && !trackedFile.containsKey(cwdFile) 
@@ -114,34 +79,31 @@ public class MainLogicTool {
             }
         }
         Collections.sort(cwdFileNames);
-        for (String cwdFileName : cwdFileNames) {
-            System.out.println(cwdFileName);
-        } System.out.println();
+        return new StatusResult(currentBranchName, branchNames, addedFileNames, removedFileNames,
+                notStagedFile, cwdFileNames);
     }
     
-    public static void checkoutWantedCommitFile(Commit givenCommit, String fileName) {
+    public static void checkoutWantedCommitFile(Repository repo, Commit givenCommit, String fileName) {
         /*首先看file_name在tracked_file中是否存在，如果存在就用commit中的版本覆盖
            关于覆盖
            首先，获取commit对应文件版本的hash值，然后从blob中读取该文件的内容
            然后把该文件的内容写入工作区的同名文件中
             如果file_name在tracked_file中不存在，打印错误信息
          */
-        Map<String, String> trackedFile = givenCommit.getTrackedFileCopy();
+        Map<String, String> trackedFile = givenCommit.getTrackedFiles();
         if (!trackedFile.containsKey(fileName)) {
-            exitWithError("File does not exist in that commit.");
+            throw new GitletException.NotFound("File does not exist in that commit.");
         } else {
             String commitFileHash = trackedFile.get(fileName);
-            File commitFilePath = join(BLOB_DIR, commitFileHash);
-            String commitFileContent = readContentsAsString(commitFilePath);
-            File cwdFilePath = join(CWD, fileName);
-            writeContents(cwdFilePath, commitFileContent);
+            File cwdFilePath = join(repo.cwd, fileName);
+            ObjectStore.copyBlobTo(repo.gitletDir, commitFileHash, cwdFilePath);
         }
     }
 
-    public static void checkoutWantedCommit(Commit wantedCommit) {
-        Commit currentCommit = getHeadCommit();
-        Map<String, String> currentTrackedFile = currentCommit.getTrackedFileCopy();
-        Map<String, String> wantedTrackedFile = wantedCommit.getTrackedFileCopy();
+    public static void checkoutWantedCommit(Repository repo, Commit wantedCommit) {
+        Commit currentCommit = getHeadCommit(repo);
+        Map<String, String> currentTrackedFile = currentCommit.getTrackedFiles();
+        Map<String, String> wantedTrackedFile = wantedCommit.getTrackedFiles();
         /*首先你要明白他的思想，即要保证你写过的所有文件（包括Untracked files)
            不会因为这个命令而莫名其妙的消失
            现在已经得到了想要的哪个commit,需要用commit中的文件覆盖当前工作区的文件
@@ -151,9 +113,9 @@ public class MainLogicTool {
             然后再遍历工作区所有文件，如果该文件不被目标commit跟踪且被当前commit跟踪，则删除
             然后更新HEAD指针
          */
-        List<String> allCwdFiles = Utils.plainFilenamesIn(CWD);
+        List<String> allCwdFiles = WorkingTree.plainFiles(repo);
         List<String> untrackedFileNames = new ArrayList<>();
-        StagingArea currentStagingArea = StagingArea.loadFromFile();
+        StagingArea currentStagingArea = StagingArea.loadFromFile(repo);
         for (String cwdFile : allCwdFiles) {
             if (!currentTrackedFile.containsKey(cwdFile)
                     && !currentStagingArea.getFileToAdd().containsKey(cwdFile) 
@@ -163,149 +125,74 @@ public class MainLogicTool {
         }
         for (String untrackedFileName : untrackedFileNames) { //安全检查
             if (wantedTrackedFile.containsKey(untrackedFileName)) {
-                exitWithError("There is an untracked file in the way;" 
+                throw new GitletException.InvalidState("There is an untracked file in the way;"
                         + " delete it, or add and commit it first.");
             }
         } //安全检查部分
-        /*所有在当前分支中跟踪但在签出分支中不存在的文件都将被删除。*/
+        /*比较两个commit的tree，相同的子树直接跳过，只有变化了的文件需要写或者删除*/
+        SortedMap<String, String[]> changes = Commit.diff(currentCommit, wantedCommit);
+        Set<String> unchangedFiles = new HashSet<>(wantedTrackedFile.keySet());
+        unchangedFiles.removeAll(changes.keySet());
+        //没有变化的文件如果在工作区里被改动或者删除了，仍然要用commit中的版本覆盖
+        Map<String, String> workingHashes = WorkingTree.hashFiles(repo, currentStagingArea, unchangedFiles);
         for (Map.Entry<String, String> entry : wantedTrackedFile.entrySet()) { //把目标commit的文件写入工作区
             String fileHash = entry.getValue();
-            File filePath = join(BLOB_DIR, fileHash);
-            String fileContent = readContentsAsString(filePath);
-            File cwdFilePath = join(CWD, entry.getKey());
-            writeContents(cwdFilePath, fileContent);
+            if (!changes.containsKey(entry.getKey())
+                    && fileHash.equals(workingHashes.get(entry.getKey()))) {
+                continue;
+            }
+            File cwdFilePath = join(repo.cwd, entry.getKey());
+            ObjectStore.copyBlobTo(repo.gitletDir, fileHash, cwdFilePath);
         }
-        for (String fileInCurrentCommit : currentTrackedFile.keySet()) {
-            if (!wantedTrackedFile.containsKey(fileInCurrentCommit)) {
-                File fileToDelete = join(CWD, fileInCurrentCommit);
+        /*所有在当前分支中跟踪但在签出分支中不存在的文件都将被删除。*/
+        for (Map.Entry<String, String[]> entry : changes.entrySet()) {
+            if (entry.getValue()[1] == null) {
+                File fileToDelete = join(repo.cwd, entry.getKey());
                 restrictedDelete(fileToDelete);
             }
         }
     }
 
-    public static Set<String> getParentHashSet(Commit currentCommit) {
-        Set<String> currentCommitHashSet = new TreeSet<>();
-        Queue<Commit> commitQueue = new LinkedList<>(); //创建一个队列来逐层处理祖先commit
-        String currentCommitHash = getHashOf(currentCommit);
-        currentCommitHashSet.add(currentCommitHash);
-        commitQueue.add(currentCommit); //把当前commit加入待处理列表
-        while (!commitQueue.isEmpty()) { //只要还有commit没处理完
-            Commit commitToHandle = commitQueue.poll(); //取出一个待处理的commit
-            List<String> parentHashes = commitToHandle.getParentList(); //得到父节点列表
-            if (!parentHashes.isEmpty()) { //停止条件是到了initial Commit
-                for (String parentHash : parentHashes) {
-                    if (!parentHashes.isEmpty() && !currentCommitHashSet.contains(parentHash)) {
-                        //第二个判断是为了防止把某个节点重复加入队列
-                        currentCommitHashSet.add(parentHash); //把所有父节点hash加入祖先列表
-                        commitQueue.add(loadCommitByHash(parentHash)); //把父节点加入待处理列表
-                    }
-                }
-            } //现在commit_hash_set里面包含了当前分支的所有可能的父节点的hash值
-        }
-        return currentCommitHashSet;
-    }
-
-    public static Queue<Commit> getParentQueueBetween(Commit currentCommit, Commit remoteCommit) {
-        //目的是得到当前commit比remoteCommit多出的那些Commit(此时的迁移已经是push可以顺利进行)
-        Set<String> currentCommitHashSet = new HashSet<>();
-        Queue<Commit> parentQueueToAdd = new LinkedList<>();
-        Queue<Commit> commitQueue = new LinkedList<>(); //创建一个队列来逐层处理祖先commit
-        String currentCommitHash = getHashOf(currentCommit);
-        String remoteCommitHash = getHashOf(remoteCommit);
-        parentQueueToAdd.add(currentCommit);
-        currentCommitHashSet.add(currentCommitHash);
-        commitQueue.add(currentCommit); //把当前commit加入待处理列表
-        while (!commitQueue.isEmpty()) { //只要还有commit没处理完
-            Commit commitToHandle = commitQueue.poll(); //取出一个待处理的commit
-            List<String> parentHashes = commitToHandle.getParentList(); //得到父节点列表
-            String commitToHandleHash = getHashOf(commitToHandle);
-            if (!commitToHandleHash.equals(remoteCommitHash)) { 
-                //只要还没到那个remoteCommit，也就是说那个remoteCommit是不包含在返回队列里面的
-                for (String parentHash : parentHashes) {
-                    if (!parentHashes.isEmpty() && !currentCommitHashSet.contains(parentHash)) {
-                        //第二个判断是为了防止把某个节点重复加入队列
-                        currentCommitHashSet.add(parentHash); //把所有父节点hash加入祖先列表
-                        commitQueue.add(loadCommitByHash(parentHash)); //把父节点加入待处理列表
-                        parentQueueToAdd.add(loadCommitByHash(parentHash));
-                    }
-                }
-            } //现在commit_hash_set里面包含了当前分支的所有可能的父节点的hash值
-        }
-        return parentQueueToAdd;
-    }
-    public static Queue<Commit> getFullParentQueue(Commit currentCommit, File repo) {
-        boolean isLocal;
-        try {
-            isLocal = Files.isSameFile(GITLET_DIR.toPath(), repo.toPath());
-        } catch (IOException e) {
-            isLocal = false;
-        }
-        Set<String> currentCommitHashSet = new HashSet<>();
-        Queue<Commit> parentQueueToAdd = new LinkedList<>();
-        Queue<Commit> commitQueue = new LinkedList<>(); //创建一个队列来逐层处理祖先commit
-        String currentCommitHash = getHashOf(currentCommit);
-        parentQueueToAdd.add(currentCommit);
-        currentCommitHashSet.add(currentCommitHash);
-        commitQueue.add(currentCommit); //把当前commit加入待处理列表
-        while (!commitQueue.isEmpty()) { //只要还有commit没处理完
-            Commit commitToHandle = commitQueue.poll(); //取出一个待处理的commit
-            List<String> parentHashes = commitToHandle.getParentList(); //得到父节点列表
-            for (String parentHash : parentHashes) {
-                if (!parentHashes.isEmpty() && !currentCommitHashSet.contains(parentHash)) { 
-                    //第二个判断是为了防止把某个节点重复加入队列
-                    currentCommitHashSet.add(parentHash); //把所有父节点hash加入祖先列表
-                    if (isLocal) { //在本地找父节点的情况
-                        commitQueue.add(loadCommitByHash(parentHash)); //把父节点加入待处理列表
-                        parentQueueToAdd.add(loadCommitByHash(parentHash));
-                    } else { //在远程找父节点
-                        Commit parentCommit = loadCommitByHashRemote(parentHash, repo);
-                        commitQueue.add(parentCommit);
-                        parentQueueToAdd.add(parentCommit);
-                    }
-
-                }
+    /*
+      下面的祖先遍历都在commit-graph上进行，只和hash打交道，
+      不再为每个访问到的节点反序列化Commit、重新计算getHashOf
+     */
+    /**
+     * push/fetch时的协商：返回SOURCE中从HEAD可以到达、而DEST还没有的所有commit，子节点在前。
+     * DEST先给出它的所有分支头，从这些分支头可以到达的commit在SOURCE的commit-graph上就被排除，
+     * 剩下的再逐个确认DEST中没有(比如DEST删掉的分支上的commit)，所以只访问真正需要传输的那部分历史
+     */
+    public static List<String> getMissingCommits(File source, String head, File dest) {
+        List<String> hashes = CommitGraph.of(source).reachableExcluding(head, HaveSet.heads(dest));
+        List<String> missing = new ArrayList<>(hashes.size());
+        for (String hash : hashes) {
+            if (!ObjectStore.hasObject(dest, ObjectStore.COMMIT, hash)) {
+                missing.add(hash);
             }
         }
-        return parentQueueToAdd;
+        return missing;
     }
 
-    //这里是广度优先算法的思想，着重运用了queue的先进先出特性
-    public static Commit findSplitPoint(Commit currentCommit, String otherBranchName) {
-        Set<String> currentCommitHashSet = getParentHashSet(currentCommit);
-        Queue<Commit> commitQueue = new LinkedList<>(); //创建一个队列来逐层处理祖先commit
-        Commit otherBranchCommit = getWantedHeadCommit(otherBranchName);
-        commitQueue.add(otherBranchCommit);
-        Set<String> givenCommitHashSet = new HashSet<>();
-        String givenCommitHash = getHashOf(otherBranchCommit);
-        givenCommitHashSet.add(givenCommitHash);
-        while (!commitQueue.isEmpty()) {
-            Commit commitToHandle = commitQueue.poll(); //取出一个待处理的commit
-            String otherBranchCommitHash = getHashOf(commitToHandle); //得到这个commit的hash值
-            List<String> parentHashes = commitToHandle.getParentList(); //得到父节点列表
-            if (currentCommitHashSet.contains(otherBranchCommitHash)) {
-                return commitToHandle;
-            }
-            if (!parentHashes.isEmpty()) {
-                for (String parentHash : parentHashes) {
-                    if (!parentHashes.isEmpty() && !givenCommitHashSet.contains(parentHash)) {
-                        // 要特别注意这里，要避免某个节点的重复访问（因为两个commit可能有同一个parent)
-                        givenCommitHashSet.add(parentHash);
-                        commitQueue.add(loadCommitByHash(parentHash)); //把父节点加入待处理列表
-                    }
-                }
-            }
+    //按generation从大到小在commit-graph上同时从两端往下找，第一个公共祖先就是分裂点
+    public static Commit findSplitPoint(Repository repo, String currentCommitHash,
+                                        String otherBranchName) {
+        String otherBranchCommitHash = readContentsAsString(join(repo.branchDir, otherBranchName));
+        String splitPointHash = CommitGraph.of(repo.gitletDir)
+                .mergeBase(currentCommitHash, otherBranchCommitHash);
+        if (splitPointHash == null) {
+            return null;
         }
-        return null;
+        return loadCommitByHash(repo, splitPointHash);
     }
 
-    public static void haveUntrackedFiles(Commit commit, Commit mergeCommit) {
-        List<String> allCwdFiles = Utils.plainFilenamesIn(CWD);
+    public static void haveUntrackedFiles(Repository repo, Commit commit, Commit mergeCommit) {
+        List<String> allCwdFiles = WorkingTree.plainFiles(repo);
         List<String> untrackedFileNames = new ArrayList<>();
-        StagingArea stagingArea = StagingArea.loadFromFile();
+        StagingArea stagingArea = StagingArea.loadFromFile(repo);
         Map<String, String> fileToAdd = stagingArea.getFileToAdd();
         Set<String> fileToRemove = stagingArea.getFileToRemove();
-        Map<String, String> trackedFile = commit.getTrackedFileCopy();
-        Map<String, String> mergeTrackedFile = mergeCommit.getTrackedFileCopy();
+        Map<String, String> trackedFile = commit.getTrackedFiles();
+        Map<String, String> mergeTrackedFile = mergeCommit.getTrackedFiles();
         for (String cwdFile : allCwdFiles) {
             if (!fileToAdd.containsKey(cwdFile) && !trackedFile.containsKey(cwdFile)
                     || fileToRemove.contains(cwdFile)) {
@@ -314,38 +201,39 @@ public class MainLogicTool {
         }
         for (String untrackedFileName : untrackedFileNames) { //安全检查
             if (mergeTrackedFile.containsKey(untrackedFileName)) {
-                exitWithError("There is an untracked file in the way; " 
+                throw new GitletException.InvalidState("There is an untracked file in the way; "
                        + "delete it, or add and commit it first.");
             }
         }
     }
     
 
-    public static void mergeCommit(Commit splitPoint, Commit currentCommit, 
+    public static MergeResult mergeCommit(Repository repo, Commit splitPoint, Commit currentCommit, 
                                    Commit givenBranchHeadCommit, String otherBranchName) {
-        Map<String, String> trackedFiles1 = splitPoint.getTrackedFileCopy();
-        Map<String, String> trackedFiles2 = currentCommit.getTrackedFileCopy();
-        Map<String, String> trackedFiles3 = givenBranchHeadCommit.getTrackedFileCopy();
-        Map<String, String> newTrackedFile = new TreeMap<>(); 
+        /*在三个commit中都一样的文件不需要处理，直接保留当前commit中的版本。
+          通过比较tree只找出在任意一边相对split point发生了变化的文件，相同的子树整个跳过*/
+        SortedMap<String, String[]> currentChanges = Commit.diff(splitPoint, currentCommit);
+        SortedMap<String, String[]> givenChanges = Commit.diff(splitPoint, givenBranchHeadCommit);
+        TrackedFiles.Builder newTrackedFile = currentCommit.getTrackedFiles().toBuilder();
         //用来记录在merge之后的那个commit里面要跟踪哪些文件
-        Set<String> fileNameUnion = new HashSet<>();
-        fileNameUnion.addAll(trackedFiles1.keySet());
-        fileNameUnion.addAll(trackedFiles2.keySet());
-        fileNameUnion.addAll(trackedFiles3.keySet());
-        boolean confilctOccured = false;
+        Set<String> fileNameUnion = new TreeSet<>(currentChanges.keySet());
+        fileNameUnion.addAll(givenChanges.keySet());
+        List<String> conflicts = new ArrayList<>();
         for (String singleFile : fileNameUnion) {
-            boolean haveIn1 = trackedFiles1.containsKey(singleFile);
-            boolean haveIn2 = trackedFiles2.containsKey(singleFile);
-            boolean haveIn3 = trackedFiles3.containsKey(singleFile);
-            String hashIn1 = trackedFiles1.get(singleFile);
-            String hashIn2 = trackedFiles2.get(singleFile);
-            String hashIn3 = trackedFiles3.get(singleFile);
+            String[] currentChange = currentChanges.get(singleFile);
+            String[] givenChange = givenChanges.get(singleFile);
+            String hashIn1 = currentChange != null ? currentChange[0] : givenChange[0];
+            String hashIn2 = currentChange != null ? currentChange[1] : hashIn1;
+            String hashIn3 = givenChange != null ? givenChange[1] : hashIn1;
+            boolean haveIn1 = hashIn1 != null;
+            boolean haveIn2 = hashIn2 != null;
+            boolean haveIn3 = hashIn3 != null;
+            newTrackedFile.remove(singleFile); //下面重新决定这个文件的版本
             if (haveIn1 && haveIn2 && haveIn3) {
                 if (Objects.equals(hashIn1, hashIn2) && !Objects.equals(hashIn2, hashIn3)) {
                     newTrackedFile.put(singleFile, hashIn3);
-                    String fileContent = getFileContent(hashIn3);
-                    File fileInCwd = join(CWD, singleFile);
-                    writeContents(fileInCwd, fileContent);
+                    File fileInCwd = join(repo.cwd, singleFile);
+                    ObjectStore.copyBlobTo(repo.gitletDir, hashIn3, fileInCwd);
                 }
                 if (Objects.equals(hashIn1, hashIn3) && !Objects.equals(hashIn3, hashIn2)) {
                     newTrackedFile.put(singleFile, hashIn2);
@@ -362,10 +250,10 @@ public class MainLogicTool {
             }
             if (!haveIn1 && !haveIn2 && haveIn3) {
                 newTrackedFile.put(singleFile, hashIn3);
-                checkoutWantedCommitFile(givenBranchHeadCommit, singleFile);
+                checkoutWantedCommitFile(repo, givenBranchHeadCommit, singleFile);
             }
             if (Objects.equals(hashIn1, hashIn2) && !haveIn3) {
-                File filePath = join(CWD, singleFile);
+                File filePath = join(repo.cwd, singleFile);
                 restrictedDelete(filePath);
             }
             if (Objects.equals(hashIn1, hashIn3) && !haveIn2) {
@@ -373,74 +261,166 @@ public class MainLogicTool {
             }
             if (!Objects.equals(hashIn1, hashIn2) && !Objects.equals(hashIn1, hashIn3) 
                     && !Objects.equals(hashIn2, hashIn3)) {
-                confilctOccured = true;
-                File filePathCwd = join(CWD, singleFile);
-                String contentInCurrentCommit = getFileContent(hashIn2);
-                String contentInGivenCommit = getFileContent(hashIn3);
-                String newContent = createConflictContent
-                        (contentInCurrentCommit, contentInGivenCommit);
-                writeContents(filePathCwd, newContent);
-                byte[] newFileInByte = readContents(filePathCwd);
-                String hashCodeOfNewFile = sha1(newFileInByte);
+                LineDiff.Merged merged = mergeLines(repo, hashIn1, hashIn2, hashIn3);
+                byte[] newContent;
+                if (merged != null) {
+                    newContent = merged.content;
+                } else { //一边删除了文件，或者是二进制文件，整个文件作为冲突
+                    String contentInCurrentCommit = getFileContent(repo, hashIn2);
+                    String contentInGivenCommit = getFileContent(repo, hashIn3);
+                    newContent = createConflictContent(contentInCurrentCommit, contentInGivenCommit)
+                            .getBytes(StandardCharsets.UTF_8);
+                }
+                if (merged == null || merged.conflicts > 0) {
+                    conflicts.add(singleFile);
+                }
+                writeContents(join(repo.cwd, singleFile), newContent);
+                //合并的结果也要存成blob，之后才能签出这个merge commit
+                String hashCodeOfNewFile = sha1(newContent);
+                ObjectStore.writeObjectBytes(repo.gitletDir, ObjectStore.BLOB, hashCodeOfNewFile, newContent);
                 newTrackedFile.put(singleFile, hashCodeOfNewFile);
             }
 
         }
-        String message = "Merged " + otherBranchName + " into " + getCurrentBranchName() + ".";
+        String message = "Merged " + otherBranchName + " into " + getCurrentBranchName(repo) + ".";
         String currentCommitHash = getHashOf(currentCommit);
         String givenBranchHeadCommitHash = getHashOf(givenBranchHeadCommit);
-        createMergeCommit(message, currentCommitHash, givenBranchHeadCommitHash, newTrackedFile);
+        String mergeCommitHash = repo.createMergeCommit(message, currentCommitHash,
+                givenBranchHeadCommitHash, newTrackedFile.build());
         //应该直接把我前面判断好的newtrackedfile传入
-        if (confilctOccured) {
-            System.out.println("Encountered a merge conflict.");
+        return new MergeResult(conflicts.isEmpty() ? MergeResult.Status.MERGED
+                : MergeResult.Status.CONFLICT, mergeCommitHash, conflicts);
+    }
+    /*
+      两边都修改了的文件按行做三向合并，不重叠的修改自动合并，返回null表示只能把整个文件作为冲突。
+      base中没有这个文件(两边分别新建)时以空文件作为base
+     */
+    private static LineDiff.Merged mergeLines(Repository repo, String hashInSplit, String hashInCurrent,
+                                              String hashInGiven) {
+        if (hashInCurrent == null || hashInGiven == null) {
+            return null;
+        }
+        byte[] base = hashInSplit == null ? new byte[0] : readBlob(repo.gitletDir, hashInSplit);
+        byte[] ours = readBlob(repo.gitletDir, hashInCurrent);
+        byte[] theirs = readBlob(repo.gitletDir, hashInGiven);
+        if (LineDiff.isBinary(base) || LineDiff.isBinary(ours) || LineDiff.isBinary(theirs)) {
+            return null;
+        }
+        return LineDiff.merge(base, ours, theirs);
+    }
+
+    /*
+      把旧仓库中用Java序列化保存的commit，以及直接列出跟踪文件的version 1的commit，改写成带tree的规范编码。
+      commit的id会随之改变，所以要按拓扑顺序(父节点先于子节点)改写，并把子节点中的父节点id一起换掉，
+      最后更新所有分支指针，删除旧的commit，重建commit索引和commit-graph
+     */
+    public static void migrateTool(File repo) {
+        CommitGraph graph = CommitGraph.of(repo);
+        List<Integer> positions = new ArrayList<>();
+        for (String hash : ObjectStore.listObjects(repo, ObjectStore.COMMIT)) {
+            positions.add(graph.indexOf(hash));
+        }
+        Collections.sort(positions); //commit-graph中的编号本身就是拓扑顺序
+        Map<String, String> renamed = new HashMap<>();
+        for (int position : positions) {
+            String oldHash = graph.hashAt(position);
+            byte[] oldBytes = ObjectStore.readObjectBytes(repo, ObjectStore.COMMIT, oldHash);
+            Commit oldCommit = Commit.decode(oldBytes, oldHash, repo);
+            List<String> newParents = new ArrayList<>();
+            for (String parentHash : oldCommit.getParentList()) {
+                newParents.add(renamed.getOrDefault(parentHash, parentHash));
+            }
+            if (oldCommit.getTreeHash() != null && newParents.equals(oldCommit.getParentList())) {
+                continue;
+            }
+            Commit newCommit = new Commit(newParents, new Date(oldCommit.getTimeMillis()),
+                    oldCommit.getMessage(), oldCommit.getTrackedFiles());
+            saveCommit(repo, newCommit.getHash(), newCommit);
+            renamed.put(oldHash, newCommit.getHash());
+        }
+        if (renamed.isEmpty()) {
+            return;
+        }
+        rewriteRefs(join(repo, "refs", "heads"), renamed);
+        ObjectStore.repack(repo, renamed.keySet());
+        CommitIndex.rebuild(repo);
+        MessageIndex.rebuild(repo);
+        CommitGraph.reset(repo);
+    }
+
+    /*分支指针可能在子文件夹里(例如fetch得到的R1/master)*/
+    private static void rewriteRefs(File refDir, Map<String, String> renamed) {
+        File[] refs = refDir.listFiles();
+        if (refs == null) {
+            return;
+        }
+        for (File ref : refs) {
+            if (ref.isDirectory()) {
+                rewriteRefs(ref, renamed);
+                continue;
+            }
+            String newHash = renamed.get(readContentsAsString(ref).trim());
+            if (newHash != null) {
+                writeContents(ref, newHash);
+            }
         }
     }
-    private static void saveObjectsHelper(Queue<Commit> parentQueueToAdd, File initialBlobListDir,
-                                          File blobSourceDir, File blobDestDir, File commitDestDir) {
-        
-        Queue<Commit> parentQueueToAddCopy = new LinkedList<>(parentQueueToAdd);
-        List<String> listIncludeAllBlob = new ArrayList<>(plainFilenamesIn(initialBlobListDir));
-        Map<String, String> blobToAdd = new TreeMap<>();
-        while (!parentQueueToAdd.isEmpty()) {
-            Commit commitToHandle = parentQueueToAdd.poll();
-            Map<String, String> trackedFileCopy = commitToHandle.getTrackedFileCopy();
-            for (Map.Entry<String, String> entry : trackedFileCopy.entrySet()) {
-                if (!listIncludeAllBlob.contains(entry.getValue())) { //这个版本没有被跟踪
-                    blobToAdd.put(entry.getKey(), entry.getValue()); //加到需要添加的blob列表
-                    listIncludeAllBlob.add(entry.getValue()); //更新已保存的blob列表
+
+    /**
+     * 把COMMITSTOADD(子节点在前)以及它们的tree和blob从SOURCEREPO复制到DESTREPO。
+     * 复制以流水线的方式在WorkingTree的线程池中进行：遍历commit时每发现一个对方没有的blob就立刻交给线程池，
+     * 同时最多有4×线程数个复制任务，遍历本身不用等它们完成。所有blob写好之后再并行复制tree和commit，
+     * 最后把写入的对象和目录都刷到磁盘上才返回，所以调用者之后再更新分支，崩溃时分支不会指向不存在的commit
+     */
+    private static void saveObjectsHelper(List<String> commitsToAdd, File sourceRepo, File destRepo) {
+        Map<String, Commit> loaded = new HashMap<>();
+        Deque<Future<?>> inFlight = new ArrayDeque<>();
+        /*
+          每个要传输的commit只看它相对第一个父commit变化了的文件：父commit要么也在这次传输中(它的文件已经看过了)，
+          要么DEST已经有了(连同它的blob)，所以需要检查的blob个数和要传输的对象个数成正比
+         */
+        HaveSet destBlobs = HaveSet.of(destRepo, ObjectStore.BLOB);
+        Set<String> considered = new HashSet<>(); //同一个文件的不同版本都要复制，所以按hash而不是文件名记录
+        for (String hash : commitsToAdd) {
+            Commit commit = loaded.computeIfAbsent(hash, h -> loadCommitByHashRemote(h, sourceRepo));
+            String parentHash = commit.getFirstParent();
+            Commit parent = parentHash == null ? null
+                    : loaded.computeIfAbsent(parentHash, h -> loadCommitByHashRemote(h, sourceRepo));
+            for (String[] change : Commit.diff(parent, commit).values()) {
+                String blobHash = change[1];
+                if (blobHash != null && considered.add(blobHash) && !destBlobs.has(blobHash)) {
+                    //直接复制压缩后的字节，不需要解压再压缩
+                    ObjectTransfer.submit(inFlight, () -> {
+                        ObjectStore.copyObject(sourceRepo, destRepo, ObjectStore.BLOB, blobHash);
+                        return null;
+                    });
                 }
             }
         }
-        //接下来要把所有的blob保存到那个remote仓库里面去
-        for (Map.Entry<String, String> entry : blobToAdd.entrySet()) {
-            File blobFile = join(blobSourceDir, entry.getValue());
-            byte[] blobInByte = readContents(blobFile);
-            File blobFileNew = join(blobDestDir, entry.getValue());
-            writeContents(blobFileNew, blobInByte);
+        ObjectTransfer.awaitAll(inFlight);
+        //然后保存Commit，每个任务先写tree再写commit
+        for (String hash : commitsToAdd) {
+            Commit commit = loaded.get(hash);
+            ObjectTransfer.submit(inFlight, () -> {
+                copyCommit(sourceRepo, destRepo, hash, commit);
+                return null;
+            });
         }
-        //然后保存Commit
-        while (!parentQueueToAddCopy.isEmpty()) {
-            Commit commitToSave = parentQueueToAddCopy.poll();
-            String commitToSaveHash = getHashOf(commitToSave);
-            //得到这个Commit的新的储存地址
-            File commitToSavePath = join(commitDestDir, commitToSaveHash);
-            //把这个Commit保存到新的地址
-            writeObject(commitToSavePath, commitToSave);
+        ObjectTransfer.awaitAll(inFlight);
+        ObjectTransfer.sync(destRepo);
+        for (String hash : commitsToAdd) { //两个索引不是线程安全的，在这里依次更新
+            indexCommit(destRepo, hash, loaded.get(hash));
         }
     }
-    public static void saveAllCommitAndBlobPush(Queue<Commit> parentQueueToAdd, File newRepo) {
-        File remoteObjectFile = join(newRepo, "objects");
-        File remoteBlobsFile = join(remoteObjectFile, "blobs");
-        File remoteCommitFile = join(remoteObjectFile, "commit");
-        saveObjectsHelper(parentQueueToAdd, remoteBlobsFile, BLOB_DIR, remoteBlobsFile, remoteCommitFile);
+
+    public static void saveAllCommitAndBlobPush(Repository repo, List<String> commitsToAdd,
+                                                File newRepo) {
+        saveObjectsHelper(commitsToAdd, repo.gitletDir, newRepo);
     }
 
-    public static void saveAllCommitAndBlobFetch(Queue<Commit> parentQueueToAdd, File remoteRepo) {
-        // 【保留】保留你原来的路径定义
-        File remoteObjectFile = join(remoteRepo, "objects");
-        File remoteBlobsFile = join(remoteObjectFile, "blobs");
-        File remoteCommitFile = join(remoteObjectFile, "commit"); 
-        saveObjectsHelper(parentQueueToAdd, BLOB_DIR, remoteBlobsFile, BLOB_DIR, COMMIT_DIR);
+    public static void saveAllCommitAndBlobFetch(Repository repo, List<String> commitsToAdd,
+                                                 File remoteRepo) {
+        saveObjectsHelper(commitsToAdd, remoteRepo, repo.gitletDir);
     }
     
 }
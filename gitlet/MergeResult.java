@@ -0,0 +1,58 @@
+package gitlet;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of Gitlet.merge and Gitlet.pull.
+ *
+ * @author 张婧
+ */
+public final class MergeResult {
+    public enum Status {
+        /**
+         * 给定分支是当前分支的祖先，什么都不用做
+         */
+        ALREADY_UP_TO_DATE,
+        /**
+         * 当前分支是给定分支的祖先，直接签出了给定分支
+         */
+        FAST_FORWARD,
+        /**
+         * 创建了merge commit，没有冲突
+         */
+        MERGED,
+        /**
+         * 创建了merge commit，但有文件发生了冲突，冲突标记已经写进工作区和commit
+         */
+        CONFLICT
+    }
+
+    private final Status status;
+    private final String commitHash;
+    private final List<String> conflicts;
+
+    MergeResult(Status status, String commitHash, List<String> conflicts) {
+        this.status = status;
+        this.commitHash = commitHash;
+        this.conflicts = Collections.unmodifiableList(conflicts);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * merge之后HEAD指向的commit
+     */
+    public String getCommitHash() {
+        return commitHash;
+    }
+
+    /**
+     * 发生冲突的文件，按文件名排序
+     */
+    public List<String> getConflicts() {
+        return conflicts;
+    }
+}
@@ -0,0 +1,428 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static gitlet.Utils.*;
+
+/**
+ * A persistent index from commit messages to commit hashes, so that find does not decode every commit.
+ * 和CommitIndex一样由两部分组成：
+ * objects/message-index 按message排好序的(message, hash)，以及每个词出现在哪些commit中(倒排索引)，
+ * objects/message-index.log 最近新增的commit的hash和message，积累到一定大小后再合并进排好序的部分。
+ * 精确查找在排好序的部分上二分；子串查找先用子串中完整的词从倒排索引中取出候选，再逐个检查；
+ * 子串中没有完整的词或者用正则表达式查找时，检查索引中的每个message，但仍然不需要读取commit。
+ * 和CommitIndex一样，追加log和把log合并进索引时拿着log文件上的锁，另一个进程(比如serve)同时写入时不会丢掉记录。
+ *
+ * @author 张婧
+ */
+public class MessageIndex {
+    /**
+     * 文件格式: "GMIX" | version | commit个数N | 词的个数T | N个entry的位置 | T个词的位置 | entries | 词
+     * entry: hash(20 byte) | message长度(int) | message(UTF-8)，按message排序，message相同时按hash排序
+     * 词: 长度(int) | 词(UTF-8) | 出现的commit个数(int) | 这些commit在entry中的编号(int)，按词排序
+     */
+    private static final int MAGIC = 0x474d4958;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int HASH_BYTES = UID_LENGTH / 2;
+    /**
+     * log超过这个大小(byte)时，合并进排好序的索引
+     */
+    private static final int LOG_LIMIT = 1 << 16;
+
+    static File indexFile(File repo) {
+        return join(repo, "objects", "message-index");
+    }
+
+    static File logFile(File repo) {
+        return join(repo, "objects", "message-index.log");
+    }
+
+    /**
+     * 新写入了一个commit之后调用，只在log末尾追加一条记录，不重写整个索引
+     */
+    public static synchronized void add(File repo, String commitHash, String message) {
+        long length;
+        try (FileChannel log = openLog(repo)) {
+            log.lock(); //关闭通道时锁随之释放
+            //拿着锁时没有别人正在追加，末尾不完整的记录是中断留下的，先截掉，否则后面的记录都读不出来
+            long end = parseLog(readAll(log, 0), new ArrayList<>());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeEntry(new DataOutputStream(bytes), commitHash, message);
+            ByteBuffer entry = ByteBuffer.wrap(bytes.toByteArray());
+            log.truncate(end);
+            long position = end;
+            while (entry.hasRemaining()) {
+                position += log.write(entry, position);
+            }
+            length = position;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        if (indexFile(repo).isFile() && length > LOG_LIMIT) {
+            merge(repo);
+        }
+    }
+
+    /**
+     * 返回message与QUERY匹配的所有commit的hash，按hash排序。
+     * MODE为EXACT时要求message与QUERY相同，SUBSTRING时要求包含QUERY，REGEX时QUERY是一个正则表达式，
+     * message中有一部分与它匹配即可
+     */
+    public static synchronized List<String> find(File repo, String query, Gitlet.FindMode mode) {
+        Predicate<String> matches;
+        switch (mode) {
+            case EXACT:
+                matches = query::equals;
+                break;
+            case SUBSTRING:
+                matches = message -> message.contains(query);
+                break;
+            case REGEX:
+                try {
+                    matches = Pattern.compile(query).asPredicate();
+                } catch (PatternSyntaxException e) {
+                    throw new GitletException.InvalidArgument(
+                            "Invalid regular expression: " + e.getDescription());
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        if (!indexFile(repo).isFile()) {
+            rebuild(repo);
+        }
+        MappedByteBuffer index = map(indexFile(repo));
+        Set<String> result = new TreeSet<>();
+        for (int id : candidates(index, query, mode)) {
+            int offset = entryOffset(index, id);
+            if (matches.test(messageAt(index, offset))) {
+                result.add(hashAt(index, offset));
+            }
+        }
+        for (Map.Entry<String, String> entry : readLog(repo)) {
+            if (matches.test(entry.getValue())) {
+                result.add(entry.getKey());
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * 从对象库重新生成整个索引，用于旧仓库第一次使用索引时，以及reindex命令。
+     * commit总是先写对象再追加log，所以拿着log的锁时log里已有的commit都会被列出来
+     */
+    public static synchronized void rebuild(File repo) {
+        try (FileChannel log = openLog(repo)) {
+            log.lock();
+            long consumed = log.size();
+            List<Map.Entry<String, String>> entries = new ArrayList<>();
+            for (String hash : ObjectStore.listObjects(repo, ObjectStore.COMMIT)) {
+                Commit commit = GitletCore.loadCommitByHashRemote(hash, repo);
+                entries.add(new AbstractMap.SimpleEntry<>(hash, commit.getMessage()));
+            }
+            write(repo, entries);
+            dropPrefix(log, consumed);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /*把log合并进排好序的部分，然后从log中去掉已经合并的部分*/
+    private static void merge(File repo) {
+        try (FileChannel log = openLog(repo)) {
+            log.lock();
+            byte[] contents = readAll(log, 0);
+            MappedByteBuffer index = map(indexFile(repo));
+            List<Map.Entry<String, String>> entries = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            for (int id = 0; id < index.getInt(8); id += 1) {
+                int offset = entryOffset(index, id);
+                String hash = hashAt(index, offset);
+                seen.add(hash);
+                entries.add(new AbstractMap.SimpleEntry<>(hash, messageAt(index, offset)));
+            }
+            List<Map.Entry<String, String>> logged = new ArrayList<>();
+            parseLog(contents, logged);
+            for (Map.Entry<String, String> entry : logged) {
+                if (seen.add(entry.getKey())) {
+                    entries.add(entry);
+                }
+            }
+            write(repo, entries);
+            dropPrefix(log, contents.length);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private static FileChannel openLog(File repo) throws IOException {
+        return FileChannel.open(logFile(repo).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /*从POSITION开始读到文件末尾*/
+    private static byte[] readAll(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(channel.size() - position));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /*从log中去掉开头已经读过的CONSUMED个字节*/
+    private static void dropPrefix(FileChannel log, long consumed) throws IOException {
+        ByteBuffer rest = ByteBuffer.wrap(readAll(log, consumed));
+        long position = 0;
+        while (rest.hasRemaining()) {
+            position += log.write(rest, position);
+        }
+        log.truncate(rest.limit());
+    }
+
+    /*需要检查的entry编号*/
+    private static int[] candidates(MappedByteBuffer index, String query, Gitlet.FindMode mode) {
+        int count = index.getInt(8);
+        if (mode == Gitlet.FindMode.EXACT) {
+            int lo = lowerBound(index, query, false);
+            int hi = lowerBound(index, query, true);
+            return rangeOf(lo, hi);
+        }
+        if (mode == Gitlet.FindMode.SUBSTRING) {
+            //QUERY中前后都被别的字符隔开的词，在包含QUERY的message中一定也是一个完整的词
+            int[] best = null;
+            for (String token : innerTokens(query)) {
+                int[] postings = postingsOf(index, token);
+                if (best == null || postings.length < best.length) {
+                    best = postings;
+                }
+            }
+            if (best != null) {
+                return best;
+            }
+        }
+        return rangeOf(0, count);
+    }
+
+    /*第一个message不小于QUERY(STRICT为true时是大于QUERY)的entry的编号*/
+    private static int lowerBound(MappedByteBuffer index, String query, boolean strict) {
+        int lo = 0;
+        int hi = index.getInt(8);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = messageAt(index, entryOffset(index, mid)).compareTo(query);
+            if (cmp < 0 || strict && cmp == 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /*倒排索引中TOKEN出现的entry编号，没有这个词时返回空数组*/
+    private static int[] postingsOf(MappedByteBuffer index, String token) {
+        int entries = index.getInt(8);
+        int lo = 0;
+        int hi = index.getInt(12);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int offset = index.getInt(HEADER_BYTES + (entries + mid) * Integer.BYTES);
+            int length = index.getInt(offset);
+            int cmp = stringAt(index, offset + Integer.BYTES, length).compareTo(token);
+            if (cmp == 0) {
+                int postingsStart = offset + Integer.BYTES + length;
+                int[] postings = new int[index.getInt(postingsStart)];
+                for (int i = 0; i < postings.length; i += 1) {
+                    postings[i] = index.getInt(postingsStart + (i + 1) * Integer.BYTES);
+                }
+                return postings;
+            } else if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return new int[0];
+    }
+
+    /**
+     * MESSAGE中的词：连续的字母和数字
+     */
+    static Set<String> tokensOf(String message) {
+        Set<String> tokens = new HashSet<>();
+        int start = -1;
+        for (int i = 0; i <= message.length(); i += 1) {
+            boolean inWord = i < message.length() && Character.isLetterOrDigit(message.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                tokens.add(message.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /*QUERY中不在开头也不在结尾的词*/
+    private static Set<String> innerTokens(String query) {
+        Set<String> tokens = new HashSet<>();
+        for (String token : tokensOf(query)) {
+            int at = query.indexOf(token);
+            while (at >= 0) {
+                int end = at + token.length();
+                if (at > 0 && end < query.length()
+                        && !Character.isLetterOrDigit(query.charAt(at - 1))
+                        && !Character.isLetterOrDigit(query.charAt(end))) {
+                    tokens.add(token);
+                    break;
+                }
+                at = query.indexOf(token, at + 1);
+            }
+        }
+        return tokens;
+    }
+
+    private static int[] rangeOf(int from, int to) {
+        int[] ids = new int[Math.max(0, to - from)];
+        for (int i = 0; i < ids.length; i += 1) {
+            ids[i] = from + i;
+        }
+        return ids;
+    }
+
+    private static int entryOffset(MappedByteBuffer index, int id) {
+        return index.getInt(HEADER_BYTES + id * Integer.BYTES);
+    }
+
+    private static String hashAt(MappedByteBuffer index, int offset) {
+        byte[] raw = new byte[HASH_BYTES];
+        index.get(offset, raw);
+        return bytesToHex(raw, 0, HASH_BYTES);
+    }
+
+    private static String messageAt(MappedByteBuffer index, int offset) {
+        return stringAt(index, offset + HASH_BYTES + Integer.BYTES, index.getInt(offset + HASH_BYTES));
+    }
+
+    private static String stringAt(MappedByteBuffer index, int offset, int length) {
+        byte[] bytes = new byte[length];
+        index.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*log中的(hash, message)，不拿锁读，最后一条记录不完整(别的进程正在追加)时忽略它*/
+    private static List<Map.Entry<String, String>> readLog(File repo) {
+        File log = logFile(repo);
+        List<Map.Entry<String, String>> result = new ArrayList<>();
+        if (log.isFile()) {
+            parseLog(readContents(log), result);
+        }
+        return result;
+    }
+
+    /*把CONTENTS中完整的记录放进RESULT，返回最后一条完整记录之后的位置*/
+    private static long parseLog(byte[] contents, List<Map.Entry<String, String>> result) {
+        ByteBuffer buffer = ByteBuffer.wrap(contents);
+        int end = 0;
+        while (buffer.remaining() >= HASH_BYTES + Integer.BYTES) {
+            int length = buffer.getInt(end + HASH_BYTES);
+            if (length < 0 || length > buffer.remaining() - HASH_BYTES - Integer.BYTES) {
+                break;
+            }
+            int messageStart = end + HASH_BYTES + Integer.BYTES;
+            result.add(new AbstractMap.SimpleEntry<>(bytesToHex(contents, end, HASH_BYTES),
+                    new String(contents, messageStart, length, StandardCharsets.UTF_8)));
+            end = messageStart + length;
+            buffer.position(end);
+        }
+        return end;
+    }
+
+    private static void writeEntry(DataOutputStream out, String hash, String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        out.write(hexToBytes(hash));
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void write(File repo, List<Map.Entry<String, String>> entries) {
+        entries.sort(Map.Entry.<String, String>comparingByValue().thenComparing(Map.Entry.comparingByKey()));
+        SortedMap<String, List<Integer>> postings = new TreeMap<>();
+        for (int id = 0; id < entries.size(); id += 1) {
+            for (String token : tokensOf(entries.get(id).getValue())) {
+                postings.computeIfAbsent(token, k -> new ArrayList<>()).add(id);
+            }
+        }
+        try {
+            //每次写用一个新的临时文件，和别的进程同时重写索引时不会写进同一个文件
+            Path temp = Files.createTempFile(join(repo, "objects").toPath(), "message-index", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp), STREAM_BUFFER_SIZE))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                out.writeInt(postings.size());
+                int offset = HEADER_BYTES + (entries.size() + postings.size()) * Integer.BYTES;
+                for (Map.Entry<String, String> entry : entries) {
+                    out.writeInt(offset);
+                    offset += HASH_BYTES + Integer.BYTES + utf8Length(entry.getValue());
+                }
+                for (Map.Entry<String, List<Integer>> token : postings.entrySet()) {
+                    out.writeInt(offset);
+                    offset += Integer.BYTES * (2 + token.getValue().size()) + utf8Length(token.getKey());
+                }
+                for (Map.Entry<String, String> entry : entries) {
+                    writeEntry(out, entry.getKey(), entry.getValue());
+                }
+                for (Map.Entry<String, List<Integer>> token : postings.entrySet()) {
+                    byte[] bytes = token.getKey().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    out.writeInt(token.getValue().size());
+                    for (int id : token.getValue()) {
+                        out.writeInt(id);
+                    }
+                }
+            }
+            Files.move(temp, indexFile(repo).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private static int utf8Length(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static MappedByteBuffer map(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IllegalArgumentException("corrupt message index");
+            }
+            return buffer;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+}
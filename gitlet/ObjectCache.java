@@ -0,0 +1,137 @@
+package gitlet;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded in-process cache of commits and blobs.
+ * 同一个命令中同样的commit会被反复读取(例如merge中多次getHeadCommit)，
+ * 所有的commit和blob加载都经过这里，按LRU顺序在字节预算内淘汰。
+ * blob是按内容寻址的，同一个hash在任何仓库里都是同样的内容，所以blob的key不需要包含仓库路径；
+ * commit的跟踪文件是在第一次用到时从读出它的仓库中读取的，所以commit按仓库分开缓存。
+ * 一个进程可以同时操作多个仓库，所有方法都是线程安全的。
+ * 预算可以用 -Dgitlet.cache.bytes=N 设置，-Dgitlet.cache.stats=true 会在退出时把命中统计打印到stderr。
+ *
+ * @author 张婧
+ */
+public class ObjectCache {
+    private static final long DEFAULT_BUDGET = 64L << 20;
+    private static final long BUDGET = Long.getLong("gitlet.cache.bytes", DEFAULT_BUDGET);
+
+    private static final Map<String, Entry> ENTRIES = new LinkedHashMap<>(256, 0.75f, true);
+    private static long usedBytes = 0;
+    private static long hits = 0;
+    private static long misses = 0;
+
+    static {
+        if (Boolean.getBoolean("gitlet.cache.stats")) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                    System.err.println("object cache: " + getHits() + " hits, " + getMisses()
+                            + " misses, " + getUsedBytes() + "/" + BUDGET + " bytes")));
+        }
+    }
+
+    /**
+     * 缓存中的一个对象和它估计占用的字节数
+     */
+    private static class Entry {
+        private final Object value;
+        private final long weight;
+
+        Entry(Object value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    public static Commit getCommit(File repo, String hash) {
+        return (Commit) get(commitKey(repo, hash));
+    }
+
+    /**
+     * 缓存从仓库REPO读出(或者刚写进REPO)的COMMIT
+     */
+    public static void putCommit(File repo, Commit commit) {
+        put(commitKey(repo, commit.getHash()), commit, commit.estimatedSize());
+    }
+
+    /**
+     * 缓存中的COMMIT在内存中变大以后(第一次展开了跟踪文件)重新计算它占用的字节数，必要时淘汰别的对象。
+     * 不在缓存中的commit不会因此被放进来，变得太大的commit会被移出缓存
+     */
+    public static void reweighCommit(File repo, Commit commit) {
+        reweigh(commitKey(repo, commit.getHash()), commit, commit.estimatedSize());
+    }
+
+    private static String commitKey(File repo, String hash) {
+        return ObjectStore.COMMIT + hash + repo.getAbsolutePath();
+    }
+
+    /**
+     * 返回缓存中的blob内容，调用者不能修改返回的数组
+     */
+    public static byte[] getBlob(String hash) {
+        return (byte[]) get(ObjectStore.BLOB + hash);
+    }
+
+    public static void putBlob(String hash, byte[] content) {
+        put(ObjectStore.BLOB + hash, content, content.length);
+    }
+
+    private static synchronized Object get(String key) {
+        Entry entry = ENTRIES.get(key);
+        if (entry == null) {
+            misses += 1;
+            return null;
+        }
+        hits += 1;
+        return entry.value;
+    }
+
+    private static synchronized void put(String key, Object value, long weight) {
+        if (weight > BUDGET / 4) {
+            return; //太大的对象放进来只会把其他对象全部挤出去
+        }
+        Entry old = ENTRIES.put(key, new Entry(value, weight));
+        if (old != null) {
+            usedBytes -= old.weight;
+        }
+        usedBytes += weight;
+        Iterator<Entry> eldest = ENTRIES.values().iterator();
+        while (usedBytes > BUDGET && eldest.hasNext()) {
+            usedBytes -= eldest.next().weight;
+            eldest.remove();
+        }
+    }
+
+    private static synchronized void reweigh(String key, Object value, long weight) {
+        Entry old = ENTRIES.get(key);
+        if (old == null || old.value != value) {
+            return;
+        }
+        if (weight > BUDGET / 4) {
+            ENTRIES.remove(key);
+            usedBytes -= old.weight;
+            return;
+        }
+        put(key, value, weight);
+    }
+
+    public static synchronized long getHits() {
+        return hits;
+    }
+
+    public static synchronized long getMisses() {
+        return misses;
+    }
+
+    public static synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public static long getBudget() {
+        return BUDGET;
+    }
+}
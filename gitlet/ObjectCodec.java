@@ -0,0 +1,129 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The on-disk encoding of stored objects.
+ * 新写入的对象(松散文件和pack中的条目)都带有一个头部:
+ * "\0GOB" | codec(1 byte) | 原始内容的长度(long) | 按codec编码后的内容。
+ * 没有这个头部的对象是旧仓库中原样保存的内容，读的时候直接返回。
+ * codec用 -Dgitlet.compression=deflate|none 选择，
+ * deflate的压缩级别用 -Dgitlet.compression.level=0..9 设置。
+ *
+ * @author 张婧
+ */
+public class ObjectCodec {
+    private static final int MAGIC = 0x00474f42;
+    static final int HEADER_BYTES = 13;
+    /**
+     * 内容原样保存
+     */
+    static final byte STORED = 0;
+    /**
+     * 内容用deflate压缩
+     */
+    static final byte DEFLATE = 1;
+
+    private static final byte CODEC =
+            "none".equals(System.getProperty("gitlet.compression")) ? STORED : DEFLATE;
+    private static final int LEVEL =
+            Integer.getInteger("gitlet.compression.level", Deflater.DEFAULT_COMPRESSION);
+
+    /**
+     * 按当前配置的codec编码RAW，返回带头部的字节
+     */
+    public static byte[] encode(byte[] raw) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length / 2 + HEADER_BYTES);
+            try (OutputStream out = wrap(bytes, raw.length)) {
+                out.write(raw);
+            }
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * 返回STORED中保存的原始内容，旧格式的对象原样返回
+     */
+    public static byte[] decode(byte[] stored) {
+        if (!isEncoded(stored)) {
+            return stored;
+        }
+        try (InputStream in = open(new ByteArrayInputStream(stored))) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * STORED是不是带有头部的新格式
+     */
+    public static boolean isEncoded(byte[] stored) {
+        return stored.length >= HEADER_BYTES && ByteBuffer.wrap(stored).getInt() == MAGIC;
+    }
+
+    /**
+     * 写出头部，返回一个流，写进去的原始内容会被编码后写到OUT。
+     * RAWSIZE是将要写入的原始内容的长度，关闭返回的流时会关闭OUT。
+     */
+    public static OutputStream wrap(OutputStream out, long rawSize) throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeByte(CODEC);
+        header.writeLong(rawSize);
+        header.flush();
+        if (CODEC == STORED) {
+            return out;
+        }
+        return new DeflaterOutputStream(out, new Deflater(LEVEL), Utils.STREAM_BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                def.end();
+            }
+        };
+    }
+
+    /**
+     * 返回一个读出IN中对象原始内容的流。IN可以是新格式，也可以是旧仓库中没有头部的内容。
+     */
+    public static InputStream open(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, HEADER_BYTES);
+        byte[] header = pushback.readNBytes(HEADER_BYTES);
+        if (header.length < HEADER_BYTES || ByteBuffer.wrap(header).getInt() != MAGIC) {
+            pushback.unread(header);
+            return pushback;
+        }
+        switch (header[4]) {
+            case STORED:
+                return pushback;
+            case DEFLATE:
+                return new InflaterInputStream(pushback);
+            default:
+                throw new IllegalArgumentException("unknown object codec " + header[4]);
+        }
+    }
+
+    /**
+     * 从头部读出原始内容的长度，旧格式的对象返回-1
+     */
+    public static long rawSize(byte[] header) {
+        if (header.length < HEADER_BYTES || ByteBuffer.wrap(header).getInt() != MAGIC) {
+            return -1;
+        }
+        return ByteBuffer.wrap(header).getLong(5);
+    }
+}
@@ -0,0 +1,669 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.ZipException;
+
+import static gitlet.Utils.*;
+
+/**
+ * Object storage for Gitlet.
+ * 一个对象要么是objects/commit或objects/blobs下的一个松散文件，要么被收进了objects/pack下的某个pack里。
+ * 新写入的对象总是先成为松散文件，repack再把它们折叠进pack。
+ * 所有读对象的地方都应该通过这里，而不是直接拼接路径去读文件。
+ *
+ * @author 张婧
+ */
+public class ObjectStore {
+    /**
+     * 对象的类型，同时也是松散对象所在的文件夹名
+     */
+    static final String COMMIT = "commit";
+    static final String BLOB = "blobs";
+    static final String TREE = "tree";
+    /**
+     * pack中delta条目的类型编码，delta总是blob
+     */
+    static final byte DELTA_CODE = 3;
+    /**
+     * delta链的最大长度，限制重建一个blob时需要读的基础版本个数
+     */
+    static final int MAX_DELTA_DEPTH = 10;
+    /**
+     * 超过这个大小的blob不做delta，它们仍然可以流式地读写
+     */
+    static final int MAX_DELTA_SOURCE = 16 << 20;
+
+    /**
+     * 超过这个大小的blob在repack时保持松散，不进pack。一个pack要整个映射进内存，
+     * 所以超过MAX_PACK_BYTES的对象无论如何都不会进pack
+     */
+    static final long BIG_FILE_THRESHOLD = 256L << 20;
+
+    /**
+     * repack时一个对象在旧对象库中的位置：松散文件，或者某个旧pack中的第POSITION个条目。
+     * 内存中只保留这些位置，内容在写进新pack时才一个一个地从原来的地方传过去
+     */
+    private static class StoredObject {
+        private final String type;
+        private final File loose;
+        private final PackFile pack;
+        private final int position;
+
+        StoredObject(String type, File loose) {
+            this(type, loose, null, -1);
+        }
+
+        StoredObject(String type, PackFile pack, int position) {
+            this(type, null, pack, position);
+        }
+
+        private StoredObject(String type, File loose, PackFile pack, int position) {
+            this.type = type;
+            this.loose = loose;
+            this.pack = pack;
+            this.position = position;
+        }
+
+        String getType() {
+            return type;
+        }
+
+        boolean isPackedDelta() {
+            return pack != null && pack.deltaBaseAt(position) != null;
+        }
+
+        /**
+         * 在磁盘上占的字节数。pack中的delta返回的是delta本身的长度
+         */
+        long storedLength() {
+            return loose != null ? loose.length() : pack.storedLengthAt(position);
+        }
+
+        /**
+         * 把编码后的完整内容写到OUT。旧仓库中没有压缩的松散对象边读边压缩，
+         * pack中的delta在内存中重建(delta只用于不超过MAX_DELTA_SOURCE的blob)，其他的不经过Java堆直接写过去
+         */
+        void transferTo(File repo, String hash, FileChannel out) throws IOException {
+            if (loose != null) {
+                byte[] header;
+                try (InputStream in = Files.newInputStream(loose.toPath())) {
+                    header = in.readNBytes(ObjectCodec.HEADER_BYTES);
+                }
+                if (ObjectCodec.rawSize(header) >= 0) {
+                    ObjectTransfer.transferFile(loose, out);
+                    return;
+                }
+                try (InputStream in = Files.newInputStream(loose.toPath());
+                     OutputStream encoded = ObjectCodec.wrap(unclosable(out), loose.length())) {
+                    in.transferTo(encoded);
+                }
+            } else if (pack.deltaBaseAt(position) != null) {
+                writeFully(out, ByteBuffer.wrap(ObjectCodec.encode(readObjectBytes(repo, type, hash))));
+            } else {
+                pack.writeTo(position, out); //直接从旧pack的内存映射写出
+            }
+        }
+    }
+
+    /**
+     * 类型在pack中的编码
+     */
+    static byte codeOf(String type) {
+        switch (type) {
+            case COMMIT:
+                return 1;
+            case BLOB:
+                return 2;
+            case TREE:
+                return 4;
+            default:
+                throw new IllegalArgumentException("unknown object type " + type);
+        }
+    }
+
+    static String typeOf(byte code) {
+        switch (code) {
+            case 1:
+                return COMMIT;
+            case 2:
+            case DELTA_CODE:
+                return BLOB;
+            case 4:
+                return TREE;
+            default:
+                throw new IllegalArgumentException("unknown object type " + code);
+        }
+    }
+
+    /**
+     * REPO是某个.gitlet目录(本地或远程)，返回TYPE类型、hash为HASH的松散对象的位置
+     */
+    static File looseFile(File repo, String type, String hash) {
+        return join(repo, "objects", type, hash);
+    }
+
+    public static boolean hasObject(File repo, String type, String hash) {
+        if (looseFile(repo, type, hash).isFile()) {
+            return true;
+        }
+        for (PackFile pack : PackFile.packsOf(repo)) {
+            int position = pack.find(hash);
+            if (position >= 0 && pack.typeAt(position).equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 从松散对象或者pack中读出对象的原始内容，delta会沿着基础版本重建出来。
+     * 对象不存在时抛出IllegalArgumentException
+     */
+    public static byte[] readObjectBytes(File repo, String type, String hash) {
+        File loose = looseFile(repo, type, hash);
+        if (loose.isFile()) {
+            return ObjectCodec.decode(readContents(loose));
+        }
+        for (PackFile pack : PackFile.packsOf(repo)) {
+            int position = pack.find(hash);
+            if (position < 0 || !pack.typeAt(position).equals(type)) {
+                continue;
+            }
+            byte[] content = ObjectCodec.decode(pack.readAt(position));
+            String deltaBase = pack.deltaBaseAt(position);
+            if (deltaBase != null) {
+                return Delta.apply(readObjectBytes(repo, BLOB, deltaBase), content);
+            }
+            return content;
+        }
+        throw new IllegalArgumentException("no such object " + hash);
+    }
+
+    /**
+     * 返回一个读出对象原始内容的流，调用者负责关闭
+     */
+    static InputStream openObject(File repo, String type, String hash) throws IOException {
+        File loose = looseFile(repo, type, hash);
+        if (loose.isFile()) {
+            return ObjectCodec.open(Files.newInputStream(loose.toPath()));
+        }
+        for (PackFile pack : PackFile.packsOf(repo)) {
+            int position = pack.find(hash);
+            if (position < 0 || !pack.typeAt(position).equals(type)) {
+                continue;
+            }
+            if (pack.deltaBaseAt(position) != null) { //delta只用于不太大的blob，可以在内存中重建
+                return new ByteArrayInputStream(readObjectBytes(repo, type, hash));
+            }
+            return ObjectCodec.open(pack.openAt(position));
+        }
+        throw new IllegalArgumentException("no such object " + hash);
+    }
+
+    /**
+     * 返回对象原始内容的长度。只读对象的头部，不解压内容；pack中的delta只解压出开头记录目标长度的几个字节
+     */
+    public static long sizeOf(File repo, String type, String hash) {
+        try {
+            File loose = looseFile(repo, type, hash);
+            if (loose.isFile()) {
+                try (InputStream in = Files.newInputStream(loose.toPath())) {
+                    long size = ObjectCodec.rawSize(in.readNBytes(ObjectCodec.HEADER_BYTES));
+                    return size >= 0 ? size : loose.length(); //旧仓库中原样保存的对象
+                }
+            }
+            for (PackFile pack : PackFile.packsOf(repo)) {
+                int position = pack.find(hash);
+                if (position < 0 || !pack.typeAt(position).equals(type)) {
+                    continue;
+                }
+                if (pack.deltaBaseAt(position) != null) {
+                    try (InputStream delta = ObjectCodec.open(pack.openAt(position))) {
+                        return Delta.targetLength(delta.readNBytes(2 * 5)); //两个int的varint最多各5个字节
+                    }
+                }
+                try (InputStream in = pack.openAt(position)) {
+                    long size = ObjectCodec.rawSize(in.readNBytes(ObjectCodec.HEADER_BYTES));
+                    return size >= 0 ? size : pack.storedLengthAt(position);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        throw new IllegalArgumentException("no such object " + hash);
+    }
+
+    /**
+     * 新对象总是编码后写成松散文件，已经存在的对象不再重复写
+     */
+    public static void writeObjectBytes(File repo, String type, String hash, byte[] data) {
+        if (hasObject(repo, type, hash)) {
+            return;
+        }
+        File loose = looseFile(repo, type, hash);
+        loose.getParentFile().mkdirs(); //旧仓库里还没有tree文件夹
+        writeContents(loose, ObjectCodec.encode(data));
+    }
+
+    /**
+     * 把对象从SOURCE仓库原样(不解码)复制到DEST仓库，DEST中已经有的对象不再复制。
+     * 松散对象交给ObjectTransfer硬链接或者在内核中复制，pack中的对象从pack文件直接传过去，
+     * 只有pack中的delta需要在内存中重建
+     */
+    static void copyObject(File source, File dest, String type, String hash) {
+        if (hasObject(dest, type, hash)) {
+            return;
+        }
+        File target = looseFile(dest, type, hash);
+        target.getParentFile().mkdirs();
+        File loose = looseFile(source, type, hash);
+        if (loose.isFile()) {
+            ObjectTransfer.place(loose, dest, target);
+            return;
+        }
+        for (PackFile pack : PackFile.packsOf(source)) {
+            int position = pack.find(hash);
+            if (position < 0 || !pack.typeAt(position).equals(type)) {
+                continue;
+            }
+            try {
+                if (pack.deltaBaseAt(position) != null) {
+                    ByteBuffer encoded = ByteBuffer.wrap(ObjectCodec.encode(readObjectBytes(source, type, hash)));
+                    ObjectTransfer.write(dest, target, out -> {
+                        while (encoded.hasRemaining()) {
+                            out.write(encoded);
+                        }
+                    });
+                } else {
+                    ObjectTransfer.write(dest, target, out -> pack.transferTo(position, out));
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+            return;
+        }
+        throw new IllegalArgumentException("no such object " + hash);
+    }
+
+    /**
+     * 把对象在磁盘上保存的字节写到OUT：长度(long) | 编码后的内容。数据流协议用它发送对象，
+     * 松散对象和pack中的对象都是分块写出的，只有pack中的delta需要在内存中重建
+     */
+    static void writeStored(File repo, String type, String hash, DataOutputStream out) throws IOException {
+        File loose = looseFile(repo, type, hash);
+        if (loose.isFile()) {
+            out.writeLong(loose.length());
+            Files.copy(loose.toPath(), out);
+            return;
+        }
+        for (PackFile pack : PackFile.packsOf(repo)) {
+            int position = pack.find(hash);
+            if (position < 0 || !pack.typeAt(position).equals(type)) {
+                continue;
+            }
+            if (pack.deltaBaseAt(position) != null) {
+                byte[] encoded = ObjectCodec.encode(readObjectBytes(repo, type, hash));
+                out.writeLong(encoded.length);
+                out.write(encoded);
+            } else {
+                out.writeLong(pack.storedLengthAt(position));
+                pack.writeTo(position, Channels.newChannel(out));
+            }
+            return;
+        }
+        throw new IllegalArgumentException("no such object " + hash);
+    }
+
+    /**
+     * 从IN读出writeStored写出的一个对象，写进REPO的一个临时文件并返回，调用者再用ObjectTransfer.force和install
+     * 把它刷盘并放到looseFile的位置。已经有这个对象时只跳过这些字节，返回null
+     */
+    static Path readStored(File repo, String type, String hash, DataInputStream in) throws IOException {
+        long length = in.readLong();
+        if (length < 0) {
+            throw new IOException("bad object length " + length);
+        }
+        if (hasObject(repo, type, hash)) {
+            in.skipNBytes(length);
+            return null;
+        }
+        looseFile(repo, type, hash).getParentFile().mkdirs();
+        return ObjectTransfer.writeTemp(repo, out -> {
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, n);
+                while (chunk.hasRemaining()) {
+                    out.write(chunk);
+                }
+                remaining -= n;
+            }
+        });
+    }
+
+    /**
+     * 临时文件TEMP(编码后的对象)解码出的原始内容的SHA-1是不是HASH。
+     * 每种对象的hash都是它原始内容的SHA-1，从别的进程收到的对象放到位之前用它检查
+     */
+    static boolean contentMatches(Path temp, String hash) throws IOException {
+        try (InputStream in = ObjectCodec.open(Files.newInputStream(temp))) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                md.update(buffer, 0, n);
+            }
+            return bytesToHex(md.digest(), 0, UID_LENGTH / 2).equals(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        } catch (ZipException | EOFException | IllegalArgumentException e) {
+            return false; //压缩数据损坏、被截断或者不认识的codec
+        }
+    }
+
+    /**
+     * 把文件SOURCE以流的方式存成一个blob，返回它的hash。
+     * 边读边计算SHA-1边编码写入objects/tmp下的临时文件，内存占用与文件大小无关，
+     * 最后原子地重命名成松散对象；如果这个blob已经存在，就直接丢掉临时文件。
+     */
+    public static String writeBlobFromFile(File repo, File source) {
+        File tmpDir = join(repo, "objects", "tmp");
+        tmpDir.mkdirs();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(tmpDir.toPath(), "blob", null);
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            long declaredSize = source.length();
+            long copied = 0;
+            try (InputStream in = Files.newInputStream(source.toPath());
+                 OutputStream out = ObjectCodec.wrap(Files.newOutputStream(temp), declaredSize)) {
+                byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    md.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    copied += n;
+                }
+            }
+            if (copied != declaredSize) { //文件在复制的过程中被改动了，修正头部中的长度
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    channel.write(ByteBuffer.allocate(8).putLong(0, copied), 5);
+                }
+            }
+            String hash = bytesToHex(md.digest(), 0, UID_LENGTH / 2);
+            if (!hasObject(repo, BLOB, hash)) {
+                try {
+                    Files.move(temp, looseFile(repo, BLOB, hash).toPath(),
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException e) {
+                    //另一个线程同时写入了内容相同的blob
+                }
+            }
+            return hash;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        } finally {
+            if (temp != null) {
+                temp.toFile().delete();
+            }
+        }
+    }
+
+    /**
+     * 把blob HASH的原始内容以流的方式写到DEST，覆盖原有内容，不把整个blob读进堆内存
+     */
+    public static void copyBlobTo(File repo, String hash, File dest) {
+        try (InputStream in = openObject(repo, BLOB, hash)) {
+            Files.copy(in, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * 返回仓库中某一类型的所有对象的hash(松散的和pack中的)，按字典序排列
+     */
+    public static List<String> listObjects(File repo, String type) {
+        Set<String> result = new TreeSet<>();
+        forEachObject(repo, type, result::add);
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * 把仓库中某一类型的每个对象的hash交给ACTION，不排序也不去重(同一个对象可能既是松散的又在pack中)
+     */
+    static void forEachObject(File repo, String type, Consumer<String> action) {
+        List<String> loose = plainFilenamesIn(join(repo, "objects", type));
+        if (loose != null) {
+            loose.forEach(action);
+        }
+        for (PackFile pack : PackFile.packsOf(repo)) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                if (pack.typeAt(i).equals(type)) {
+                    action.accept(pack.hashAt(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * 把所有松散对象和已有的pack折叠成新的pack，然后删掉旧的pack和松散文件。
+     * 对象一个一个地从原来的地方传进新pack，内存中只保留它们的位置，所以占用的内存与仓库的大小无关。
+     * 单个pack超过MAX_PACK_BYTES时会拆成多个，超过BIG_FILE_THRESHOLD的blob保持松散。
+     */
+    public static void repack(File repo) {
+        repack(repo, Collections.emptySet(), BIG_FILE_THRESHOLD);
+    }
+
+    /**
+     * 和repack(REPO)一样，但是大小超过BIGFILETHRESHOLD的blob保持松散
+     */
+    public static void repack(File repo, long bigFileThreshold) {
+        repack(repo, Collections.emptySet(), bigFileThreshold);
+    }
+
+    /**
+     * 和repack(REPO)一样，但是hash在DROPPED中的对象不会进入新的pack，也就是把它们从对象库中删掉
+     */
+    static void repack(File repo, Set<String> dropped) {
+        repack(repo, dropped, BIG_FILE_THRESHOLD);
+    }
+
+    private static void repack(File repo, Set<String> dropped, long bigFileThreshold) {
+        long threshold = Math.min(bigFileThreshold, PackFile.MAX_PACK_BYTES);
+        List<PackFile> oldPacks = new ArrayList<>(PackFile.packsOf(repo));
+        List<File> looseFiles = new ArrayList<>();
+        SortedMap<String, StoredObject> objects = new TreeMap<>();
+        boolean changed = oldPacks.size() > 1;
+        for (PackFile pack : oldPacks) {
+            for (int i = 0; i < pack.size(); i += 1) {
+                String hash = pack.hashAt(i);
+                if (dropped.contains(hash)) {
+                    changed = true;
+                    continue;
+                }
+                objects.put(hash, new StoredObject(pack.typeAt(i), pack, i));
+            }
+        }
+        for (String type : new String[]{COMMIT, BLOB, TREE}) {
+            File dir = join(repo, "objects", type);
+            List<String> names = plainFilenamesIn(dir);
+            if (names == null) {
+                continue;
+            }
+            for (String name : names) {
+                File loose = join(dir, name);
+                if (dropped.contains(name)) {
+                    looseFiles.add(loose);
+                } else if (type.equals(BLOB) && loose.length() > threshold) {
+                    objects.remove(name); //大文件留在原地
+                } else {
+                    objects.put(name, new StoredObject(type, loose));
+                    looseFiles.add(loose);
+                }
+            }
+        }
+        try {
+            //pack中超过阈值的blob先拿出来成为松散文件
+            Iterator<Map.Entry<String, StoredObject>> iterator = objects.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, StoredObject> entry = iterator.next();
+                StoredObject object = entry.getValue();
+                if (object.getType().equals(BLOB) && !object.isPackedDelta()
+                        && object.storedLength() > threshold) {
+                    File target = looseFile(repo, BLOB, entry.getKey());
+                    ObjectTransfer.write(repo, target, out -> object.transferTo(repo, entry.getKey(), out));
+                    iterator.remove();
+                    changed = true;
+                }
+            }
+            if (looseFiles.isEmpty() && !changed) {
+                return; //已经是最紧凑的状态了
+            }
+            ObjectTransfer.sync(repo);
+            List<File> written = writePacks(repo, objects);
+            //新pack都落盘之后才能删除旧的对象
+            for (PackFile pack : oldPacks) {
+                File packFile = pack.getPackFile();
+                if (written.contains(packFile)) {
+                    continue;
+                }
+                String base = packFile.getName().substring(0, packFile.getName().length() - ".pack".length());
+                join(packFile.getParentFile(), base + ".idx").delete();
+                packFile.delete();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        for (File loose : looseFiles) {
+            loose.delete();
+        }
+        PackFile.invalidate(repo);
+    }
+
+    /*
+      把OBJECTS写成新的pack。能改写成delta的blob按deltify给出的顺序先写，这样基础版本总是先决定好，
+      delta链的长度才能算出来；剩下的对象再按hash的顺序写。
+      delta链超过MAX_DELTA_DEPTH或delta不比完整对象小时保存完整对象
+     */
+    private static List<File> writePacks(File repo, SortedMap<String, StoredObject> objects)
+            throws IOException {
+        PackFile.Writer writer = new PackFile.Writer(repo);
+        Map<String, Integer> depth = new HashMap<>();
+        for (Map.Entry<String, String> entry : deltify(repo, objects).entrySet()) {
+            String blob = entry.getKey();
+            String base = entry.getValue();
+            StoredObject target = objects.get(blob);
+            int baseDepth = depth.getOrDefault(base, 0);
+            if (target == null || !objects.containsKey(base) || baseDepth >= MAX_DELTA_DEPTH
+                    || sizeOf(repo, BLOB, blob) > MAX_DELTA_SOURCE || sizeOf(repo, BLOB, base) > MAX_DELTA_SOURCE) {
+                continue;
+            }
+            byte[] delta = ObjectCodec.encode(Delta.create(readObjectBytes(repo, BLOB, base),
+                    readObjectBytes(repo, BLOB, blob)));
+            //pack中原来就是delta的blob没有现成的完整长度，按它的原始长度比较
+            long full = target.isPackedDelta() ? sizeOf(repo, BLOB, blob) : target.storedLength();
+            if (delta.length + UID_LENGTH / 2 < full) {
+                writer.add(blob, BLOB, base, delta.length, out -> writeFully(out, ByteBuffer.wrap(delta)));
+                depth.put(blob, baseDepth + 1);
+            }
+        }
+        for (Map.Entry<String, StoredObject> entry : objects.entrySet()) {
+            String hash = entry.getKey();
+            StoredObject object = entry.getValue();
+            if (depth.containsKey(hash)) {
+                continue;
+            }
+            long expected = object.isPackedDelta() ? sizeOf(repo, BLOB, hash) : object.storedLength();
+            writer.add(hash, object.getType(), null, expected, out -> object.transferTo(repo, hash, out));
+        }
+        return writer.finish();
+    }
+
+    /**
+     * 找出OBJECTS中可以改写成delta的blob，返回blob -> 候选的基础版本，按blob第一次出现的顺序。
+     * 按时间顺序遍历所有commit，每个blob第一次出现时，它所在路径上的前一个版本就是候选的基础版本；
+     * 基础版本总是比它更早出现，所以不会形成环。commit一个一个地读，只保留上一个
+     */
+    private static Map<String, String> deltify(File repo, SortedMap<String, StoredObject> objects) {
+        CommitGraph graph = CommitGraph.of(repo); //commit-graph中记着每个commit的时间，排序时不用读commit
+        Map<String, Long> times = new HashMap<>();
+        for (Map.Entry<String, StoredObject> entry : objects.entrySet()) {
+            if (entry.getValue().getType().equals(COMMIT)) {
+                times.put(entry.getKey(), graph.timeOf(graph.indexOf(entry.getKey())));
+            }
+        }
+        List<String> commits = new ArrayList<>(times.keySet());
+        commits.sort(Comparator.comparing(times::get));
+        Map<String, String> candidates = new LinkedHashMap<>();
+        Set<String> seen = new HashSet<>();
+        Map<String, String> lastVersion = new HashMap<>();
+        Commit previousCommit = null;
+        for (String hash : commits) {
+            Commit commit = readCommit(repo, hash);
+            //只有和上一个commit相比发生变化的文件才可能是某个blob第一次出现
+            for (Map.Entry<String, String[]> file : Commit.diff(previousCommit, commit).entrySet()) {
+                String blob = file.getValue()[1];
+                if (blob == null) {
+                    continue;
+                }
+                String previous = lastVersion.put(file.getKey(), blob);
+                if (seen.add(blob) && previous != null && !previous.equals(blob)) {
+                    candidates.put(blob, previous);
+                }
+            }
+            previousCommit = commit;
+        }
+        return candidates;
+    }
+
+    /*不经过ObjectCache读commit，repack不应该把整个历史留在缓存里*/
+    private static Commit readCommit(File repo, String hash) {
+        return Commit.decode(readObjectBytes(repo, COMMIT, hash), hash, repo);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /*包装OUT，关闭时只刷出缓冲而不关闭OUT，ObjectCodec.wrap返回的流关闭时会关闭它下面的流*/
+    private static OutputStream unclosable(FileChannel out) {
+        return new FilterOutputStream(Channels.newOutputStream(out)) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                this.out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+}
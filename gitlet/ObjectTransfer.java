@@ -0,0 +1,198 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Copies stored objects between two repositories without bringing their bytes onto the Java heap.
+ * 对象是按内容寻址的，写好之后不会再被修改，所以同一个文件系统上的两个仓库可以直接共享同一个文件：
+ * 松散对象默认用硬链接；硬链接失败(跨文件系统、文件系统不支持)时用FileChannel.transferTo复制，
+ * 字节只在内核里移动。-Dgitlet.transfer=reflink 改用写时复制的克隆(cp --reflink=always，每个对象启动一次cp，
+ * 适合对象少而大、又不希望两个仓库共享inode的情况)，-Dgitlet.transfer=copy 总是复制。
+ * 复制先写进目标仓库的objects/tmp并刷到磁盘上，完成后再原子地重命名，所以别的读者不会看到写了一半的对象。
+ * 所有这些方法都可以在多个线程中同时调用。
+ *
+ * @author 张婧
+ */
+class ObjectTransfer {
+    private static final String MODE = System.getProperty("gitlet.transfer", "link");
+    /**
+     * 同时在进行的复制任务个数的上限
+     */
+    private static final int WINDOW = 4 * WorkingTree.THREADS;
+
+    /**
+     * 往一个打开的文件通道里写入对象内容
+     */
+    interface Source {
+        void transferTo(FileChannel out) throws IOException;
+    }
+
+    /**
+     * 把松散对象文件SOURCE放到DEST仓库中的TARGET位置，TARGET已经存在时什么也不做
+     */
+    static void place(File source, File dest, File target) {
+        try {
+            if (MODE.equals("link")) {
+                try {
+                    Files.createLink(target.toPath(), source.toPath());
+                    force(target.toPath()); //源文件写入时不一定刷过盘，链接共享同一个inode，在这里刷一次
+                    return;
+                } catch (FileAlreadyExistsException e) {
+                    return;
+                } catch (IOException | UnsupportedOperationException e) {
+                    //不能硬链接，下面复制
+                }
+            } else if (MODE.equals("reflink") && reflink(source, dest, target)) {
+                return;
+            }
+            write(dest, target, out -> transferFile(source, out));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * 把文件SOURCE的全部内容在内核中传给OUT
+     */
+    static void transferFile(File source, FileChannel out) throws IOException {
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long n = in.transferTo(position, size - position, out);
+                if (n <= 0) {
+                    throw new IOException("cannot read " + source);
+                }
+                position += n;
+            }
+        }
+    }
+
+    /**
+     * 把CONTENT写成DEST仓库中的TARGET：先写临时文件，再刷盘并原子地重命名
+     */
+    static void write(File dest, File target, Source content) throws IOException {
+        finish(writeTemp(dest, content), target);
+    }
+
+    /**
+     * 把CONTENT写进DEST的一个新的临时文件并返回它，之后再force和install。
+     * 写和刷盘分开，接收数据流的一方可以一边按顺序读，一边让线程池去等刷盘
+     */
+    static Path writeTemp(File dest, Source content) throws IOException {
+        Path temp = newTemp(dest);
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            content.transferTo(out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return temp;
+    }
+
+    /*把writeTemp写好的TEMP刷到磁盘上，再原子地重命名成TARGET*/
+    private static void finish(Path temp, File target) throws IOException {
+        try {
+            force(temp);
+            moveInto(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * 把已经刷过盘的TEMP原子地重命名成TARGET。接收数据流的一方在线程池中并行刷盘，
+     * 再按收到的顺序依次重命名，这样子节点仍然先于父节点出现
+     */
+    static void install(Path temp, File target) throws IOException {
+        try {
+            moveInto(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * 把TASK交给WorkingTree的线程池，IN_FLIGHT中已经有WINDOW个任务时先等最早的一个完成
+     */
+    static void submit(Deque<Future<?>> inFlight, Callable<?> task) {
+        if (inFlight.size() >= WINDOW) {
+            WorkingTree.await(inFlight.poll());
+        }
+        inFlight.add(WorkingTree.submit(task));
+    }
+
+    static void awaitAll(Deque<Future<?>> inFlight) {
+        while (!inFlight.isEmpty()) {
+            WorkingTree.await(inFlight.poll());
+        }
+    }
+
+    /*用cp在临时文件上做克隆，文件系统不支持时返回false*/
+    private static boolean reflink(File source, File dest, File target) throws IOException {
+        Path temp = newTemp(dest);
+        try {
+            Process cp = new ProcessBuilder("cp", "--reflink=always", source.getPath(), temp.toString())
+                    .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            if (cp.waitFor() != 0) {
+                return false;
+            }
+            force(temp);
+            moveInto(temp, target);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * 把DEST中对象目录的内容(新的文件名)刷到磁盘上。对象文件本身在写入时已经刷过，
+     * 这之后再更新分支，崩溃以后分支指向的commit和它的所有对象一定都在
+     */
+    static void sync(File dest) {
+        for (String type : new String[]{ObjectStore.BLOB, ObjectStore.TREE, ObjectStore.COMMIT}) {
+            File dir = Utils.join(dest, "objects", type);
+            if (!dir.isDirectory()) {
+                continue;
+            }
+            try {
+                force(dir.toPath());
+            } catch (IOException e) {
+                //有的平台不能打开目录来刷盘，这时只能依赖文件系统自己的顺序
+            }
+        }
+    }
+
+    static void force(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private static Path newTemp(File dest) throws IOException {
+        File tmpDir = Utils.join(dest, "objects", "tmp");
+        tmpDir.mkdirs();
+        return Files.createTempFile(tmpDir.toPath(), "copy", null);
+    }
+
+    private static void moveInto(Path temp, File target) throws IOException {
+        try {
+            Files.move(temp, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            //另一个线程同时复制了同一个对象
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/**
+ * Represents a gitlet packfile together with its index.
+ * 一个pack把很多对象顺序追加进同一个文件，配套的.idx按hash排好序，
+ * 并带有一个256项的fan-out表，所以查找一个对象只是在内存映射上做一次二分查找，
+ * 而不是一次文件系统调用。
+ *
+ * @author 张婧
+ */
+public class PackFile {
+    /**
+     * .pack文件格式: "GPCK" | version | 对象个数 | 若干条目
+     * 每个条目: 类型(1 byte) | 长度(int) | 对象内容
+     * delta条目(类型3)的内容是: 基础版本的hash(20 byte) | 编码后的delta，见Delta
+     */
+    private static final int PACK_MAGIC = 0x4750434b;
+    /**
+     * .idx文件格式: "GIDX" | version | fanout[256] | 排好序的hash(每个20 byte) | 每个对象在pack中的偏移(long)
+     * fanout[i]表示首字节 <= i 的对象一共有多少个
+     */
+    private static final int IDX_MAGIC = 0x47494458;
+    private static final int VERSION = 1;
+    private static final int HASH_BYTES = UID_LENGTH / 2;
+    private static final int FANOUT_OFFSET = 8;
+    private static final int HASH_OFFSET = FANOUT_OFFSET + 256 * 4;
+    /**
+     * 单个pack的大小上限，保证整个文件可以被一次映射进内存
+     */
+    static final long MAX_PACK_BYTES = 1L << 30;
+
+    /**
+     * 每个仓库已经打开的pack，按pack目录的修改时间判断是否需要重新加载
+     */
+    private static final Map<File, List<PackFile>> OPENED_PACKS = new HashMap<>();
+    private static final Map<File, Long> OPENED_PACKS_STAMP = new HashMap<>();
+
+    private final File packFile;
+    private final MappedByteBuffer pack;
+    private final MappedByteBuffer idx;
+    private final int count;
+    private final int offsetTableStart;
+
+    private PackFile(File packFile, File idxFile) throws IOException {
+        this.packFile = packFile;
+        this.pack = map(packFile);
+        this.idx = map(idxFile);
+        if (pack.getInt(0) != PACK_MAGIC || idx.getInt(0) != IDX_MAGIC) {
+            throw new IOException("corrupt pack " + packFile.getName());
+        }
+        this.count = idx.getInt(FANOUT_OFFSET + 255 * 4);
+        this.offsetTableStart = HASH_OFFSET + count * HASH_BYTES;
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * 返回仓库REPO(即某个.gitlet目录)中所有的pack，没有pack时返回空列表
+     */
+    static synchronized List<PackFile> packsOf(File repo) {
+        File packDir = join(repo, "objects", "pack");
+        File key = packDir.getAbsoluteFile();
+        long stamp = packDir.lastModified();
+        List<PackFile> packs = OPENED_PACKS.get(key);
+        if (packs != null && OPENED_PACKS_STAMP.get(key) == stamp) {
+            return packs;
+        }
+        packs = new ArrayList<>();
+        List<String> names = plainFilenamesIn(packDir);
+        if (names != null) {
+            for (String name : names) {
+                if (!name.endsWith(".idx")) {
+                    continue;
+                }
+                String base = name.substring(0, name.length() - ".idx".length());
+                try {
+                    packs.add(new PackFile(join(packDir, base + ".pack"), join(packDir, name)));
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e.getMessage());
+                }
+            }
+        }
+        OPENED_PACKS.put(key, packs);
+        OPENED_PACKS_STAMP.put(key, stamp);
+        return packs;
+    }
+
+    /**
+     * 在fan-out表给出的范围里二分查找HASH，返回它在索引中的位置，找不到返回-1
+     */
+    int find(String hash) {
+        byte[] target = hexToBytes(hash);
+        int first = target[0] & 0xff;
+        int lo = first == 0 ? 0 : idx.getInt(FANOUT_OFFSET + (first - 1) * 4);
+        int hi = idx.getInt(FANOUT_OFFSET + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareAt(mid, target);
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    private int compareAt(int position, byte[] target) {
+        int base = HASH_OFFSET + position * HASH_BYTES;
+        for (int i = 0; i < HASH_BYTES; i += 1) {
+            int cmp = Integer.compare(idx.get(base + i) & 0xff, target[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 返回索引中第POSITION个对象的hash
+     */
+    String hashAt(int position) {
+        byte[] raw = new byte[HASH_BYTES];
+        idx.get(HASH_OFFSET + position * HASH_BYTES, raw);
+        return bytesToHex(raw, 0, HASH_BYTES);
+    }
+
+    int size() {
+        return count;
+    }
+
+    private int entryOffset(int position) {
+        return Math.toIntExact(idx.getLong(offsetTableStart + position * 8)); //一个pack不超过MAX_PACK_BYTES
+    }
+
+    /**
+     * 返回索引中第POSITION个对象的类型
+     */
+    String typeAt(int position) {
+        return ObjectStore.typeOf(pack.get(entryOffset(position)));
+    }
+
+    /**
+     * 如果第POSITION个对象是delta，返回它的基础版本的hash，否则返回null
+     */
+    String deltaBaseAt(int position) {
+        int offset = entryOffset(position);
+        if (pack.get(offset) != ObjectStore.DELTA_CODE) {
+            return null;
+        }
+        byte[] raw = new byte[HASH_BYTES];
+        pack.get(offset + 5, raw);
+        return bytesToHex(raw, 0, HASH_BYTES);
+    }
+
+    /**
+     * 返回索引中第POSITION个对象保存的内容，delta条目返回的是编码后的delta本身
+     */
+    byte[] readAt(int position) {
+        ByteBuffer content = contentAt(position);
+        byte[] result = new byte[content.remaining()];
+        content.get(result);
+        return result;
+    }
+
+    /**
+     * 返回一个直接从内存映射中读第POSITION个对象内容的流，不把整个对象复制到堆上
+     */
+    InputStream openAt(int position) {
+        ByteBuffer content = contentAt(position);
+        return new InputStream() {
+            @Override
+            public int read() {
+                return content.hasRemaining() ? content.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!content.hasRemaining()) {
+                    return -1;
+                }
+                int n = Math.min(len, content.remaining());
+                content.get(b, off, n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * 把第POSITION个对象保存的内容(不能是delta)从pack文件直接传给OUT，内容不经过Java堆
+     */
+    void transferTo(int position, FileChannel out) throws IOException {
+        int offset = entryOffset(position);
+        long start = offset + 5;
+        long end = start + pack.getInt(offset + 1);
+        try (FileChannel in = FileChannel.open(packFile.toPath(), StandardOpenOption.READ)) {
+            while (start < end) {
+                long n = in.transferTo(start, end - start, out);
+                if (n <= 0) {
+                    throw new IOException("truncated pack " + packFile);
+                }
+                start += n;
+            }
+        }
+    }
+
+    /**
+     * 第POSITION个对象保存的内容的长度
+     */
+    int storedLengthAt(int position) {
+        return contentAt(position).remaining();
+    }
+
+    /**
+     * 把第POSITION个对象保存的内容直接从内存映射写到OUT
+     */
+    void writeTo(int position, WritableByteChannel out) throws IOException {
+        ByteBuffer content = contentAt(position);
+        while (content.hasRemaining()) {
+            out.write(content);
+        }
+    }
+
+    private ByteBuffer contentAt(int position) {
+        int offset = entryOffset(position);
+        int length = pack.getInt(offset + 1);
+        if (pack.get(offset) == ObjectStore.DELTA_CODE) {
+            return pack.slice(offset + 5 + HASH_BYTES, length - HASH_BYTES);
+        }
+        return pack.slice(offset + 5, length);
+    }
+
+    File getPackFile() {
+        return packFile;
+    }
+
+    /**
+     * 按顺序把对象写进REPO的pack目录下的新pack。内存中只保留每个对象的hash和偏移，
+     * 条目可以按任意顺序加入，当前pack再写下一个对象就会超过MAX_PACK_BYTES时换一个新的pack。
+     * 每个pack先写.pack再写.idx，都刷到磁盘上以后才重命名，读者只通过.idx发现pack，所以不会看到写了一半的pack。
+     */
+    static class Writer {
+        private final File packDir;
+        private final List<File> written = new ArrayList<>();
+        private FileChannel out;
+        private File packTemp;
+        private SortedMap<String, Long> offsets;
+
+        Writer(File repo) {
+            this.packDir = join(repo, "objects", "pack");
+            packDir.mkdirs();
+        }
+
+        /**
+         * 加入一个对象，CONTENT写出它编码后的内容。DELTABASE不为null时内容是相对于这个blob的delta。
+         * EXPECTEDLENGTH是内容长度的估计，用来决定要不要换一个新的pack，估计准确时不需要再回头补写长度
+         */
+        void add(String hash, String type, String deltaBase, long expectedLength,
+                 ObjectTransfer.Source content) throws IOException {
+            if (out != null && !offsets.isEmpty() && out.position() + expectedLength > MAX_PACK_BYTES) {
+                finishPack();
+            }
+            if (out == null) {
+                startPack();
+            }
+            long start = out.position();
+            int headerLength = 5 + (deltaBase == null ? 0 : HASH_BYTES);
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            header.put(deltaBase == null ? ObjectStore.codeOf(type) : ObjectStore.DELTA_CODE);
+            header.putInt((int) Math.min(expectedLength + headerLength - 5, Integer.MAX_VALUE));
+            if (deltaBase != null) {
+                header.put(hexToBytes(deltaBase));
+            }
+            writeFully(header.flip());
+            content.transferTo(out);
+            //估计的长度不准时(比如边写边压缩的旧对象)回头改正。超过MAX_PACK_BYTES的对象不会进pack，所以长度总能放进int
+            long length = out.position() - start - 5;
+            if (length > MAX_PACK_BYTES) {
+                throw new IOException("object " + hash + " is too large for a pack");
+            }
+            if (length != expectedLength + headerLength - 5) {
+                out.write(ByteBuffer.allocate(4).putInt(0, (int) length), start + 1);
+            }
+            offsets.put(hash, start);
+        }
+
+        /**
+         * 写完最后一个pack，返回所有新写的.pack文件
+         */
+        List<File> finish() throws IOException {
+            if (out != null) {
+                finishPack();
+            }
+            return written;
+        }
+
+        private void startPack() throws IOException {
+            packTemp = Files.createTempFile(packDir.toPath(), "pack", ".tmp").toFile();
+            out = FileChannel.open(packTemp.toPath(), StandardOpenOption.WRITE);
+            offsets = new TreeMap<>();
+            writeFully(ByteBuffer.allocate(12).putInt(PACK_MAGIC).putInt(VERSION).putInt(0).flip());
+        }
+
+        private void finishPack() throws IOException {
+            int[] fanout = new int[256];
+            for (String hash : offsets.keySet()) {
+                fanout[Integer.parseInt(hash.substring(0, 2), 16)] += 1;
+            }
+            out.write(ByteBuffer.allocate(4).putInt(0, offsets.size()), 8);
+            out.force(true);
+            out.close();
+            out = null;
+            String packName = "pack-" + sha1(String.join("", offsets.keySet()));
+            File packFile = join(packDir, packName + ".pack");
+            File idxFile = join(packDir, packName + ".idx");
+            File idxTemp = join(packDir, packName + ".idx.tmp");
+            try (DataOutputStream idx = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(idxTemp.toPath())))) {
+                idx.writeInt(IDX_MAGIC);
+                idx.writeInt(VERSION);
+                int total = 0;
+                for (int count : fanout) {
+                    total += count;
+                    idx.writeInt(total);
+                }
+                for (String hash : offsets.keySet()) {
+                    idx.write(hexToBytes(hash));
+                }
+                for (long offset : offsets.values()) {
+                    idx.writeLong(offset);
+                }
+            }
+            ObjectTransfer.force(idxTemp.toPath());
+            Files.move(packTemp.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.move(idxTemp.toPath(), idxFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            written.add(packFile);
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * pack目录发生变化后，丢弃已经打开的pack，下次访问时重新加载
+     */
+    static synchronized void invalidate(File repo) {
+        OPENED_PACKS.remove(join(repo, "objects", "pack").getAbsoluteFile());
+    }
+}
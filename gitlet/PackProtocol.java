@@ -0,0 +1,407 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+import static gitlet.Utils.*;
+import static gitlet.GitletCore.*;
+
+/**
+ * The protocol push and fetch speak with a remote reached through a byte stream instead of a directory.
+ * 服务端先列出它的分支，然后两端交换have/want：发送方提出对方可能没有的对象，接收方回答其中哪些确实没有，
+ * 发送方再把这些对象连成一个pack流一次发过去。接收方检查每个对象的内容与hash一致、都刷到磁盘以后才更新分支。
+ * 提议分两轮：第一轮是commit，第二轮是这些commit相对第一个父commit新增的tree节点和blob，所以只有缺少的对象会被计算和发送。
+ * 连接本身由RemoteConnection建立，可以是 gitlet upload-pack/receive-pack 子进程的stdin/stdout，也可以是到gitlet daemon的TCP连接。
+ *
+ * 分支列表: MAGIC | VERSION(1 byte) | 错误信息(UTF，能打开仓库时为空) | 分支个数(int) | 每个: 名字(UTF) | hash(UTF)
+ * fetch请求: 想要的commit(UTF，为空表示不要了) | 本地分支头个数(int) | 每个hash(UTF)
+ * push请求: 分支名(UTF，为空表示不推了) | 这个分支原来的commit(UTF，没有这个分支时为空) | 新的commit(UTF)
+ * 提议: 对象个数(int) | 每个: 类型(1 byte) | hash(20 byte)
+ * 回答: 每个提议的对象一位，1表示没有，不足一个字节的补0
+ * pack: 对象个数(int) | 每个: 类型(1 byte) | hash(20 byte) | ObjectStore.writeStored写出的长度和内容，
+ * 子节点总在父节点之前，blob和tree在commit之前
+ * push的最后服务端回复结果(UTF)，为空表示成功，否则是错误信息
+ *
+ * @author 张婧
+ */
+class PackProtocol {
+    static final String UPLOAD_PACK = "upload-pack";
+    static final String RECEIVE_PACK = "receive-pack";
+    private static final int MAGIC = 0x4750524f;
+    private static final byte VERSION = 1;
+    private static final int HASH_BYTES = UID_LENGTH / 2;
+    private static final String NOT_FOUND = "Remote directory not found.";
+    private static final String NO_RESPONSE = "Remote did not respond.";
+
+    /**
+     * 服务端：在GITLETDIR(为null或者不是仓库时告诉对方找不到)上为一个连接执行SERVICE
+     */
+    static void serve(String service, File gitletDir, InputStream input, OutputStream output)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, STREAM_BUFFER_SIZE));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, STREAM_BUFFER_SIZE));
+        if (gitletDir == null || !join(gitletDir, "refs", "heads").isDirectory()) {
+            refuse(NOT_FOUND, out);
+            return;
+        }
+        if (!service.equals(UPLOAD_PACK) && !service.equals(RECEIVE_PACK)) {
+            refuse("Unknown service " + service + ".", out);
+            return;
+        }
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF("");
+        Repository repo = Repository.open(gitletDir.getParentFile());
+        if (service.equals(UPLOAD_PACK)) {
+            repo.read(() -> unchecked(() -> uploadPack(gitletDir, in, out)));
+        } else {
+            repo.write(() -> unchecked(() -> receivePack(gitletDir, in, out)));
+        }
+        out.flush();
+    }
+
+    /**
+     * 服务端：不提供服务，只告诉对方原因MESSAGE，对方把它当作错误信息
+     */
+    static void refuse(String message, OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeUTF(message);
+        out.flush();
+    }
+
+    /**
+     * 客户端fetch：从URL取回分支BRANCH和本地REPO还没有的对象，返回这个分支的commit
+     */
+    static String fetch(File repo, String url, String branch) {
+        try (RemoteConnection remote = RemoteConnection.open(url, UPLOAD_PACK)) {
+            SortedMap<String, String> refs = readRefs(remote.in);
+            String want = refs.get(branch);
+            if (want == null) {
+                remote.out.writeUTF("");
+                throw new GitletException.NotFound("That remote does not have that branch.");
+            }
+            remote.out.writeUTF(want);
+            List<String> heads = HaveSet.heads(repo);
+            remote.out.writeInt(heads.size());
+            for (String head : heads) {
+                remote.out.writeUTF(head);
+            }
+            remote.out.flush();
+            String corrupt = receiveObjects(repo, remote.in, remote.out);
+            if (corrupt != null) {
+                throw new GitletException.InvalidState(corruptMessage(corrupt));
+            }
+            return want;
+        } catch (SocketTimeoutException e) {
+            throw new GitletException.InvalidState(NO_RESPONSE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * 客户端push：把本地REPO的HEAD和URL还没有的对象推过去，成为那边的分支BRANCH
+     */
+    static void push(File repo, String url, String branch, String head) {
+        try (RemoteConnection remote = RemoteConnection.open(url, RECEIVE_PACK)) {
+            SortedMap<String, String> refs = readRefs(remote.in);
+            String old = refs.get(branch);
+            //远程头结点必须是当前头结点的祖先
+            if (old != null && !CommitGraph.of(repo).isAncestor(old, head)) {
+                remote.out.writeUTF("");
+                throw new GitletException.InvalidState("Please pull down remote changes before pushing.");
+            }
+            remote.out.writeUTF(branch);
+            remote.out.writeUTF(old == null ? "" : old);
+            remote.out.writeUTF(head);
+            sendObjects(repo, CommitGraph.of(repo).reachableExcluding(head, refs.values()),
+                    remote.in, remote.out);
+            String error = remote.in.readUTF();
+            if (!error.isEmpty()) {
+                throw new GitletException.InvalidState(error);
+            }
+        } catch (SocketTimeoutException e) {
+            throw new GitletException.InvalidState(NO_RESPONSE);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    private static void uploadPack(File repo, DataInputStream in, DataOutputStream out)
+            throws IOException {
+        writeRefs(repo, out);
+        String want = in.readUTF();
+        if (want.isEmpty()) {
+            return;
+        }
+        int count = in.readInt();
+        List<String> haves = new ArrayList<>();
+        for (int i = 0; i < count; i += 1) {
+            haves.add(in.readUTF());
+        }
+        sendObjects(repo, CommitGraph.of(repo).reachableExcluding(want, haves), in, out);
+    }
+
+    private static void receivePack(File repo, DataInputStream in, DataOutputStream out)
+            throws IOException {
+        writeRefs(repo, out);
+        String branch = in.readUTF();
+        if (branch.isEmpty()) {
+            return;
+        }
+        String old = in.readUTF();
+        String head = in.readUTF();
+        String corrupt = receiveObjects(repo, in, out);
+        out.writeUTF(corrupt != null ? corruptMessage(corrupt) : updateRef(repo, branch, old, head));
+    }
+
+    private static String corruptMessage(String hash) {
+        return "Corrupt object " + hash + " in pack.";
+    }
+
+    /*所有对象都已经刷到磁盘上，检查分支没有在这期间被别人改过，再让它指向HEAD。返回错误信息，成功时为空*/
+    private static String updateRef(File repo, String branch, String old, String head) {
+        if (branch.contains("/") || branch.contains("\\") || branch.startsWith(".")) {
+            return "Invalid branch name.";
+        }
+        File ref = join(repo, "refs", "heads", branch);
+        String current = ref.isFile() ? readContentsAsString(ref).trim() : "";
+        if (!current.equals(old)) {
+            return "Please pull down remote changes before pushing.";
+        }
+        try {
+            if (CommitGraph.of(repo).indexOf(head) < 0) {
+                return "Missing objects for " + head + ".";
+            }
+        } catch (IllegalArgumentException e) { //某个祖先commit没有收到
+            return "Missing objects for " + head + ".";
+        }
+        writeContents(ref, head);
+        return "";
+    }
+
+    private static void writeRefs(File repo, DataOutputStream out) throws IOException {
+        SortedMap<String, String> refs = HaveSet.refs(repo);
+        out.writeInt(refs.size());
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            out.writeUTF(ref.getKey());
+            out.writeUTF(ref.getValue());
+        }
+        out.flush();
+    }
+
+    private static SortedMap<String, String> readRefs(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+            throw new IOException("unknown gitlet protocol");
+        }
+        String error = in.readUTF();
+        if (error.equals(NOT_FOUND)) {
+            throw new GitletException.NotFound(error);
+        } else if (!error.isEmpty()) {
+            throw new GitletException.InvalidState(error);
+        }
+        SortedMap<String, String> refs = new TreeMap<>();
+        int count = in.readInt();
+        for (int i = 0; i < count; i += 1) {
+            String name = in.readUTF();
+            refs.put(name, in.readUTF());
+        }
+        return refs;
+    }
+
+    /*
+      发送方：COMMITS是对方可能没有的commit(子节点在前)。
+      对方缺少的commit按父节点在前的顺序处理，每个只提出相对第一个父commit新增的blob和tree节点：
+      父commit要么也在这次发送中，要么对方已经有了，连同它的tree和blob
+     */
+    private static void sendObjects(File repo, List<String> commits, DataInputStream in,
+                                    DataOutputStream out) throws IOException {
+        List<String[]> offered = new ArrayList<>(commits.size());
+        for (String hash : commits) {
+            offered.add(new String[]{ObjectStore.COMMIT, hash});
+        }
+        List<String[]> missingCommits = offer(offered, in, out);
+        Collections.reverse(missingCommits);
+        Map<String, Commit> loaded = new HashMap<>();
+        Set<String> seen = new HashSet<>();
+        List<String[]> blobs = new ArrayList<>();
+        List<String[]> trees = new ArrayList<>();
+        for (String[] entry : missingCommits) {
+            Commit commit = loaded.computeIfAbsent(entry[1], h -> loadCommitByHashRemote(h, repo));
+            String parentHash = commit.getFirstParent();
+            Commit parent = parentHash == null ? null
+                    : loaded.computeIfAbsent(parentHash, h -> loadCommitByHashRemote(h, repo));
+            for (String[] change : Commit.diff(parent, commit).values()) {
+                if (change[1] != null && seen.add(change[1])) {
+                    blobs.add(new String[]{ObjectStore.BLOB, change[1]});
+                }
+            }
+            if (commit.getTreeHash() != null) {
+                String parentTree = parent == null ? null : parent.getTreeHash();
+                for (String node : Tree.newNodes(repo, commit.getTreeHash(), parentTree)) {
+                    if (seen.add(node)) {
+                        trees.add(new String[]{ObjectStore.TREE, node});
+                    }
+                }
+            }
+        }
+        blobs.addAll(trees);
+        List<String[]> pack = offer(blobs, in, out);
+        pack.addAll(missingCommits);
+        out.writeInt(pack.size());
+        for (String[] entry : pack) {
+            out.writeByte(ObjectStore.codeOf(entry[0]));
+            out.write(hexToBytes(entry[1]));
+            ObjectStore.writeStored(repo, entry[0], entry[1], out);
+        }
+        out.flush();
+    }
+
+    /*把OBJECTS(类型, hash)提给对方，返回对方回答没有的那些*/
+    private static List<String[]> offer(List<String[]> objects, DataInputStream in,
+                                        DataOutputStream out) throws IOException {
+        out.writeInt(objects.size());
+        for (String[] object : objects) {
+            out.writeByte(ObjectStore.codeOf(object[0]));
+            out.write(hexToBytes(object[1]));
+        }
+        out.flush();
+        byte[] lacks = new byte[(objects.size() + 7) / 8];
+        in.readFully(lacks);
+        List<String[]> result = new ArrayList<>();
+        for (int i = 0; i < objects.size(); i += 1) {
+            if ((lacks[i >>> 3] & (1 << (i & 7))) != 0) {
+                result.add(objects.get(i));
+            }
+        }
+        return result;
+    }
+
+    /*
+      接收方：回答两轮提议，收下pack，检查每个对象的内容和它的hash一致并刷到磁盘，再把新的commit加进索引。
+      对象按内容寻址，一个内容不对的对象一旦放到位就会占住这个hash，之后真正的对象再也写不进来，
+      所以只要有一个对象不对，整个pack都不放到位，返回这个对象的hash；全部正确时返回null。
+      检查和刷盘一样在线程池中进行，读数据流的线程接着读下一个对象
+     */
+    private static String receiveObjects(File repo, DataInputStream in, DataOutputStream out)
+            throws IOException {
+        answer(repo, in, out);
+        answer(repo, in, out);
+        int count = readCount(in);
+        List<String> commits = new ArrayList<>();
+        List<Path> temps = new ArrayList<>();
+        List<File> targets = new ArrayList<>();
+        Set<String> corrupt = ConcurrentHashMap.newKeySet();
+        Deque<Future<?>> inFlight = new ArrayDeque<>();
+        try {
+            for (int i = 0; i < count; i += 1) {
+                String type = readType(in);
+                String hash = readHash(in);
+                Path temp = ObjectStore.readStored(repo, type, hash, in);
+                if (temp == null) {
+                    continue;
+                }
+                //数据流只能按顺序读，刷盘交给线程池，同时接着读下一个对象
+                temps.add(temp);
+                targets.add(ObjectStore.looseFile(repo, type, hash));
+                ObjectTransfer.submit(inFlight, () -> {
+                    if (!ObjectStore.contentMatches(temp, hash)) {
+                        corrupt.add(hash);
+                        return null;
+                    }
+                    ObjectTransfer.force(temp);
+                    return null;
+                });
+                if (type.equals(ObjectStore.COMMIT)) {
+                    commits.add(hash);
+                }
+            }
+            ObjectTransfer.awaitAll(inFlight);
+            if (!corrupt.isEmpty()) {
+                return corrupt.iterator().next();
+            }
+            for (int i = 0; i < temps.size(); i += 1) { //按pack中的顺序放到位，blob和tree在commit之前
+                ObjectTransfer.install(temps.get(i), targets.get(i));
+            }
+        } finally {
+            ObjectTransfer.awaitAll(inFlight);
+            for (Path temp : temps) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        ObjectTransfer.sync(repo);
+        for (String hash : commits) {
+            indexCommit(repo, hash, loadCommitByHashRemote(hash, repo));
+        }
+        return null;
+    }
+
+    private static void answer(File repo, DataInputStream in, DataOutputStream out) throws IOException {
+        int count = readCount(in);
+        byte[] lacks = new byte[(count + 7) / 8];
+        for (int i = 0; i < count; i += 1) {
+            String type = readType(in);
+            String hash = readHash(in);
+            if (!ObjectStore.hasObject(repo, type, hash)) {
+                lacks[i >>> 3] |= 1 << (i & 7);
+            }
+        }
+        out.write(lacks);
+        out.flush();
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("bad object count " + count);
+        }
+        return count;
+    }
+
+    private static String readHash(DataInputStream in) throws IOException {
+        byte[] raw = new byte[HASH_BYTES];
+        in.readFully(raw);
+        return bytesToHex(raw, 0, HASH_BYTES);
+    }
+
+    /*pack中只会有这三种类型，delta只在一个仓库的pack里有意义*/
+    private static String readType(DataInputStream in) throws IOException {
+        byte code = in.readByte();
+        if (code == ObjectStore.DELTA_CODE) {
+            throw new IOException("unexpected delta in pack stream");
+        }
+        try {
+            return ObjectStore.typeOf(code);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private interface IOAction {
+        void run() throws IOException;
+    }
+
+    /*在仓库的锁里执行ACTION，IOException和仓库中其他地方一样换成IllegalArgumentException*/
+    private static Void unchecked(IOAction action) {
+        try {
+            action.run();
+            return null;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+}
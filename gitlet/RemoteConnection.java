@@ -0,0 +1,126 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/**
+ * A byte-stream connection to the process serving a remote repository, used by PackProtocol.
+ * add-remote给出的地址有三种：普通路径直接读写那个目录，不经过这里；
+ * exec:路径 启动一个 gitlet upload-pack/receive-pack 子进程，通过它的stdin/stdout通信；
+ * gitlet://主机[:端口]/路径 连接到那台机器上的gitlet daemon，路径相对于daemon启动时的目录。
+ * 子进程默认用当前的java和classpath启动gitlet.Main，可以用 -Dgitlet.exec="命令 参数..." 换成别的命令。
+ * 连接daemon时连接和读写都有超时，daemon没有反应时报错而不是一直等下去。
+ *
+ * @author 张婧
+ */
+class RemoteConnection implements Closeable {
+    static final String EXEC_PREFIX = "exec:";
+    static final String DAEMON_PREFIX = "gitlet://";
+    static final int DEFAULT_PORT = 9419;
+    static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    /**
+     * 一次读写超过这么久(毫秒)就放弃。比daemon的超时长，daemon在收完push的对象后还要检查、写入它们才回复
+     */
+    static final int IO_TIMEOUT_MILLIS = 300_000;
+
+    final DataInputStream in;
+    final DataOutputStream out;
+    private final Process process;
+    private final Socket socket;
+
+    private RemoteConnection(DataInputStream in, DataOutputStream out, Process process, Socket socket) {
+        this.in = in;
+        this.out = out;
+        this.process = process;
+        this.socket = socket;
+    }
+
+    /**
+     * REMOTE是要通过PackProtocol访问的地址，而不是一个目录
+     */
+    static boolean isUrl(String remote) {
+        return remote.startsWith(EXEC_PREFIX) || remote.startsWith(DAEMON_PREFIX);
+    }
+
+    /**
+     * 连接到URL上的SERVICE(upload-pack或者receive-pack)，连不上时和找不到远程目录一样处理
+     */
+    static RemoteConnection open(String url, String service) {
+        try {
+            if (url.startsWith(EXEC_PREFIX)) {
+                File dir = new File(url.substring(EXEC_PREFIX.length())).getAbsoluteFile();
+                List<String> command = new ArrayList<>(command());
+                command.add(service);
+                command.add(dir.getPath());
+                Process process = new ProcessBuilder(command)
+                        .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+                return new RemoteConnection(
+                        new DataInputStream(new BufferedInputStream(process.getInputStream(), STREAM_BUFFER_SIZE)),
+                        new DataOutputStream(new BufferedOutputStream(process.getOutputStream(), STREAM_BUFFER_SIZE)),
+                        process, null);
+            }
+            URI uri = URI.create(url);
+            int port = uri.getPort() < 0 ? DEFAULT_PORT : uri.getPort();
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(uri.getHost(), port), CONNECT_TIMEOUT_MILLIS);
+                socket.setSoTimeout(IO_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    IdleTimeout.guard(socket.getOutputStream(), socket, IO_TIMEOUT_MILLIS), STREAM_BUFFER_SIZE));
+            out.writeUTF(service);
+            out.writeUTF(uri.getPath() == null ? "" : uri.getPath());
+            out.flush();
+            return new RemoteConnection(
+                    new DataInputStream(new BufferedInputStream(socket.getInputStream(), STREAM_BUFFER_SIZE)),
+                    out, null, socket);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new GitletException.NotFound("Remote directory not found.");
+        }
+    }
+
+    /*启动子进程的命令，后面再加上服务名和仓库路径*/
+    private static List<String> command() {
+        String configured = System.getProperty("gitlet.exec");
+        if (configured != null) {
+            return Arrays.asList(configured.trim().split("\\s+"));
+        }
+        String java = ProcessHandle.current().info().command().orElse("java");
+        return Arrays.asList(java, "-cp", System.getProperty("java.class.path"), "gitlet.Main");
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+            in.close();
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+            if (process != null) {
+                try {
+                    process.waitFor();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -1,12 +1,18 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 import static gitlet.Utils.*;
-import static gitlet.Utils.exitWithError;
 import static gitlet.MainLogicTool.*;
-import static gitlet.StagingArea.*;
 import static gitlet.GitletCore.*;
 import static gitlet.Utils.plainFilenamesIn;
 
@@ -17,43 +23,127 @@ import static gitlet.Utils.plainFilenamesIn;
  * @author 张婧
  */
 public class Repository {
+    /**
+     * 每个工作目录对应的Repository，同一个仓库在进程中只有一个实例，所以它们共享同一把锁和同一份暂存区缓存
+     */
+    private static final Map<File, Repository> OPENED = new ConcurrentHashMap<>();
+    /**
+     * diff中每个hunk前后的上下文行数
+     */
+    private static final int DIFF_CONTEXT = 3;
+
     /**
      * The current working directory.
      */
-    public static final File CWD = new File(System.getProperty("user.dir"));
+    final File cwd;
     /**
      * The .gitlet directory.
      */
-    public static final File GITLET_DIR = join(CWD, ".gitlet");
-    public static final File COMMIT_DIR = join(GITLET_DIR, "objects", "commit");
-    public static final File BRANCH_DIR = join(GITLET_DIR, "refs", "heads");
-    public static final File HEAD_DIR = join(GITLET_DIR, "HEAD");
-    public static final File STAGING_AREA_FILE = join(GITLET_DIR, "index");
-    public static final File BLOB_DIR = join(GITLET_DIR, "objects", "blobs");
-    public static final File REMOTE_PATH_DIR = join(GITLET_DIR, "remotes");
+    final File gitletDir;
+    final File commitDir;
+    final File branchDir;
+    final File headFile;
+    final File stagingAreaFile;
+    final File blobDir;
+    final File packDir;
+    final File remotePathDir;
+    /**
+     * 只读的命令(log、global-log、find)拿读锁，可以同时执行；其余命令拿写锁。锁只在Gitlet中获取
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * 上一次加载或保存的暂存区，以及它序列化后的内容，见StagingArea.loadFromFile
+     */
+    StagingArea cachedStagingArea;
+    byte[] cachedIndexBytes;
+
+    private Repository(File workDir) {
+        cwd = workDir;
+        gitletDir = join(cwd, ".gitlet");
+        commitDir = join(gitletDir, "objects", "commit");
+        branchDir = join(gitletDir, "refs", "heads");
+        headFile = join(gitletDir, "HEAD");
+        stagingAreaFile = join(gitletDir, "index");
+        blobDir = join(gitletDir, "objects", "blobs");
+        packDir = join(gitletDir, "objects", "pack");
+        remotePathDir = join(gitletDir, "remotes");
+    }
+
+    /**
+     * 返回工作目录WORKDIR对应的仓库，仓库不一定已经初始化
+     */
+    public static Repository open(File workDir) {
+        File key = workDir.getAbsoluteFile().toPath().normalize().toFile();
+        return OPENED.computeIfAbsent(key, Repository::new);
+    }
+
+    public File getWorkingDir() {
+        return cwd;
+    }
+
+    public File getGitletDir() {
+        return gitletDir;
+    }
+
+    /**
+     * 在读锁下执行ACTION
+     */
+    <T> T read(Supplier<T> action) {
+        lock.readLock().lock();
+        try {
+            return action.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 在写锁下执行ACTION
+     */
+    <T> T write(Supplier<T> action) {
+        lock.writeLock().lock();
+        try {
+            return action.get();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
+    /**
+     * 同时拿着A和B两个仓库的写锁执行ACTION(push、fetch和pull)。
+     * 总是按路径顺序加锁，两个仓库互相push时不会死锁
+     */
+    static <T> T write(Repository a, Repository b, Supplier<T> action) {
+        if (a == b) {
+            return a.write(action);
+        }
+        Repository first = a.cwd.compareTo(b.cwd) < 0 ? a : b;
+        Repository second = first == a ? b : a;
+        return first.write(() -> second.write(action));
+    }
 
-    public static void setupPersistence() {
-        GITLET_DIR.mkdir(); //创建.gitlet文件夹
-        COMMIT_DIR.mkdirs();
-        BLOB_DIR.mkdirs();
-        BRANCH_DIR.mkdirs(); //一定要注意mkdir()和mkdirs()之间的区别！mkdir()只能创建一层目录！
-        REMOTE_PATH_DIR.mkdirs();
+    public void setupPersistence() {
+        gitletDir.mkdir(); //创建.gitlet文件夹
+        commitDir.mkdirs();
+        blobDir.mkdirs();
+        packDir.mkdirs();
+        branchDir.mkdirs(); //一定要注意mkdir()和mkdirs()之间的区别！mkdir()只能创建一层目录！
+        remotePathDir.mkdirs();
     }
 
-    public static void init() {
+    public void init() {
         /**先判断.gitlet是否已经存在*/
-        if (GITLET_DIR.exists()) {
-            exitWithError("A Gitlet version-control system" 
+        if (gitletDir.exists()) {
+            throw new GitletException.AlreadyExists("A Gitlet version-control system"
                     + " already exists in the current directory.");
         }
         setupPersistence();
         /**调用默认的Commit构造函数来构建一个Commit实例， 
          * 然后把这个对象序列化，然后再根据文件的内容生成hash值，作为文件名称*/
-        initTool();
+        initTool(this);
     }
 
-    public static void add(String fileName) { /*记得要存blob*/
+    public void add(List<String> paths) { /*记得要存blob*/
         /*将文件当前存在的副本添加到暂存区（参见 commit 命令的说明）。因此，添加文件也称为暂存文件以备添加。
            暂存已暂存的文件会用新内容覆盖暂存区中的先前条目。
            暂存区应位于 .gitlet 中的某个位置。如果文件的当前工作版本
@@ -67,76 +157,120 @@ public class Repository {
            如果commit中存在同名文件且内容相同，则把文件从暂存区移除
            最终把暂存区重新写入文件
          */
-        File fileToAdd = join(CWD, fileName);
-        if (!fileToAdd.exists()) {
-            exitWithError("File does not exist.");
-        }
-        byte[] fileInByte = readContents(fileToAdd); //得到当前想要add的文件的byte值
-        String hashcodeOfFile = sha1(fileInByte); //用byte值生成hash码
-        StagingArea stagingArea = StagingArea.loadFromFile();
-        Commit currentCommit = getHeadCommit();
-        if (stagingArea.getFileToRemove().contains(fileName)) {
-            stagingArea.getFileToRemove().remove(fileName);
+        /*可以一次add多个文件，参数可以是文件名、glob(例如*.txt)或者"."(工作区中的所有文件)。
+           所有参数先展开并检查，有一个不存在就什么都不做；
+           暂存区和当前commit只加载一次，各个文件的hash并行计算，相同内容的blob只写一次，最后暂存区只写回一次
+         */
+        SortedSet<String> fileNames = new TreeSet<>();
+        for (String path : paths) {
+            fileNames.addAll(expandAddPath(path));
+        }
+        StagingArea stagingArea = StagingArea.loadFromFile(this);
+        //stat信息没变时直接用记录的hash，否则以流的方式计算，不把整个文件读进内存
+        Map<String, String> hashes = WorkingTree.hashFiles(this, stagingArea, fileNames);
+        if (hashes.size() != fileNames.size()) { //文件在展开之后被删除了
+            throw new GitletException.NotFound("File does not exist.");
+        }
+        Map<String, String> fileset = getHeadCommit(this).getTrackedFiles();
+        Map<String, String> blobsToWrite = new TreeMap<>(); //hash -> 内容为这个hash的某个文件
+        for (String fileName : fileNames) {
+            String hashcodeOfFile = hashes.get(fileName);
+            if (!hashcodeOfFile.equals(fileset.get(fileName))
+                    && !ObjectStore.hasObject(gitletDir, ObjectStore.BLOB, hashcodeOfFile)) {
+                blobsToWrite.putIfAbsent(hashcodeOfFile, fileName);
+            }
         }
-        Map<String, String> fileset = currentCommit.getTrackedFileCopy();
-        if (fileset.containsKey(fileName)) {
-            if (fileset.get(fileName).equals(hashcodeOfFile)) {
+        //边复制边重新计算hash，万一文件在这期间被改动，记录的是实际存下来的那个版本
+        Map<String, String> written = WorkingTree.writeBlobs(this, blobsToWrite.values());
+        hashes.putAll(written);
+        for (String fileName : fileNames) {
+            String hashcodeOfFile = hashes.get(fileName);
+            stagingArea.getFileToRemove().remove(fileName);
+            if (hashcodeOfFile.equals(fileset.get(fileName))) {
                 stagingArea.getFileToAdd().remove(fileName);
-                stagingArea.getFileToRemove().remove(fileName);
-                stagingArea.saveToFile();
-                return;
+            } else {
+                stagingArea.getFileToAdd().put(fileName, hashcodeOfFile);
             }
         }
-        File blobFile = Utils.join(BLOB_DIR, hashcodeOfFile);
-        Utils.writeContents(blobFile, fileInByte);
-        stagingArea.getFileToAdd().put(fileName, hashcodeOfFile);
         stagingArea.saveToFile();
+    }
 
+    /*把add的一个参数展开成工作区中的文件名*/
+    private List<String> expandAddPath(String path) {
+        if (path.equals(".") || join(cwd, path).equals(cwd)) {
+            return WorkingTree.plainFiles(this);
+        }
+        if (path.indexOf('*') >= 0 || path.indexOf('?') >= 0 || path.indexOf('[') >= 0
+                || path.indexOf('{') >= 0) {
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + path);
+            List<String> matched = new ArrayList<>();
+            for (String name : WorkingTree.plainFiles(this)) {
+                if (matcher.matches(Paths.get(name))) {
+                    matched.add(name);
+                }
+            }
+            if (matched.isEmpty()) {
+                throw new GitletException.NotFound("File does not exist.");
+            }
+            return matched;
+        }
+        if (!join(cwd, path).exists()) {
+            throw new GitletException.NotFound("File does not exist.");
+        }
+        return Collections.singletonList(path);
     }
 
-    public static void commit(String message) {
+    /*返回新commit的hash*/
+    public String commit(String message) {
         /*commit的核心在于先继承其父commit的文件快照，然后根据暂存区来修改*/
+        if (message.isEmpty()) {
+            throw new GitletException.InvalidArgument("Please enter a commit message.");
+        }
         //先获取当前commit
-        Commit oldCommit = getHeadCommit();
-        String oldCommitHash = getHeadCommitHash();
-        Map<String, String> oldTrackedFileCopy = oldCommit.getTrackedFileCopy();
+        Commit oldCommit = getHeadCommit(this);
+        String oldCommitHash = getHeadCommitHash(this);
+        //commit跟踪的文件是只读的，在它的基础上用builder记录修改
+        TrackedFiles.Builder newTrackedFile = oldCommit.getTrackedFiles().toBuilder();
         //把暂存区加载出来
-        StagingArea currentStagingArea = loadFromFile();
+        StagingArea currentStagingArea = StagingArea.loadFromFile(this);
+        if (currentStagingArea.getFileToAdd().isEmpty()
+                && currentStagingArea.getFileToRemove().isEmpty()) {
+            throw new GitletException.InvalidState("No changes added to the commit.");
+        }
         //遍历暂存区里面的file_to_add,全部加到commit中的tracked_file里面去
         Map<String, String> fileToAdd = currentStagingArea.getFileToAdd();
         Set<String> fileToRemove = currentStagingArea.getFileToRemove();
         for (Map.Entry<String, String> singleFileToAdd : fileToAdd.entrySet()) {
-            oldTrackedFileCopy.put(singleFileToAdd.getKey(), singleFileToAdd.getValue());
+            newTrackedFile.put(singleFileToAdd.getKey(), singleFileToAdd.getValue());
         }
         //遍历file_to_remove,从tracked_file里面删除
         for (String singleFileToRemove : fileToRemove) {
-            oldTrackedFileCopy.remove(singleFileToRemove);
+            newTrackedFile.remove(singleFileToRemove);
         }
         //创建一个新的commit
-        Commit newCommit = new Commit(oldCommitHash, message, oldTrackedFileCopy);
+        Commit newCommit = new Commit(oldCommitHash, message, newTrackedFile.build());
         //清空暂存区
         currentStagingArea.clear();
         //把两个对象都写进文件里，并更新指针
-        writeObjectToFile(newCommit, currentStagingArea);
+        return writeObjectToFile(this, newCommit, currentStagingArea);
     }
 
-    public static void createMergeCommit(String message, String firstParentHash, 
+    public String createMergeCommit(String message, String firstParentHash, 
                                          String secondParentHash,
-                                         Map<String, String> newTrackedFile) {
+                                         TrackedFiles newTrackedFile) {
         /*我知道我哪里错了，我一开始把staging_area当成我想要在新的那个commit里面应该跟踪的文件列表来用的
            所以我应该做的是建一个Map，然后在每个条件判断后面执行某些操作，最后用这个Map来构造我的新的commit!!!!!
          */
         // 使用为 merge 设计的双父节点构造函数
         Commit mergeCommit = new Commit(firstParentHash, secondParentHash, message, newTrackedFile);
-        StagingArea stagingArea = StagingArea.loadFromFile();
+        StagingArea stagingArea = StagingArea.loadFromFile(this);
         stagingArea.clear(); //现在已经得到了全新的commit和staging_area
-        writeObjectToFile(mergeCommit, stagingArea); //把commit和staging_area写进文件，并更新指针
-
+        return writeObjectToFile(this, mergeCommit, stagingArea); //把commit和staging_area写进文件，并更新指针
     }
 
-    public static void rm(String fileName) {
+    public void rm(String fileName) {
         //首先去暂存区找，如果文件在暂存区里面，就把它从暂存区移除
-        StagingArea stagingArea = StagingArea.loadFromFile(); //加载暂存区
+        StagingArea stagingArea = StagingArea.loadFromFile(this); //加载暂存区
         Map<String, String> fileToAdd = stagingArea.getFileToAdd();
         if (fileToAdd.containsKey(fileName)) {
             fileToAdd.remove(fileName);
@@ -145,124 +279,222 @@ public class Repository {
             return;
         }
         //如果文件不在暂存区，就去看该文件是否在当前commit中被跟踪
-        Commit currentCommit = getHeadCommit();
-        Map<String, String> currentTrackedFileCopy = currentCommit.getTrackedFileCopy();
+        Commit currentCommit = getHeadCommit(this);
+        Map<String, String> currentTrackedFiles = currentCommit.getTrackedFiles();
         /*如果想要remove的文件在最近一次commit中被跟踪，需要在下一次commit中移除对这个文件的跟踪*/
-        if (currentTrackedFileCopy.containsKey(fileName)) {
+        if (currentTrackedFiles.containsKey(fileName)) {
             stagingArea.getFileToRemove().add(fileName);
             //重构staging_area
             stagingArea.saveToFile();
             //如果该文件仍存在于工作目录中，就移除
-            File rmInWorkingDir = join(CWD, fileName);
+            File rmInWorkingDir = join(cwd, fileName);
             if (rmInWorkingDir.exists()) {
                 restrictedDelete(rmInWorkingDir);
             }
             return;
         }
-        exitWithError("No reason to remove the file.");
+        throw new GitletException.InvalidState("No reason to remove the file.");
     }
 
-    public static void log() {
-        Commit currentCommit = getHeadCommit(); //得到一个和原来的commit字段相同的对象
-        String commitHash = getHeadCommitHash();
-        do {
-            System.out.println("===");
-            System.out.println("commit " + commitHash);
-            List<String> parentHashes = currentCommit.getParentList();
-            if (parentHashes.size() > 1) {
-                String parent1Short = parentHashes.get(0).substring(0, 7);
-                String parent2Short = parentHashes.get(1).substring(0, 7);
-                System.out.println("Merge: " + parent1Short + " " + parent2Short);
+    /*从HEAD开始沿第一父节点往回走，每次next才读取下一个commit*/
+    public Iterator<CommitInfo> log() {
+        //沿第一父节点回溯的链条直接从commit-graph中得到
+        CommitGraph graph = CommitGraph.of(gitletDir);
+        int head = graph.indexOf(getHeadCommitHash(this));
+        return new Iterator<CommitInfo>() {
+            private int position = head;
+
+            @Override
+            public boolean hasNext() {
+                return position >= 0;
             }
-            System.out.println("Date: " + currentCommit.getTimestamp());
-            System.out.println(currentCommit.getMessage());
-            System.out.println();
-            commitHash = currentCommit.getFirstParent();
-            currentCommit = getFirstParentCommit(currentCommit);
-        } while (currentCommit != null);
-    }
-
-    public static void globalLog() {
-        List<String> allCommitFiles = plainFilenamesIn(COMMIT_DIR);
-        for (String fileName : allCommitFiles) {
-            File commitFile = Utils.join(COMMIT_DIR, fileName);
-            Commit commit = Utils.readObject(commitFile, Commit.class);
-            printCommit(commit, fileName);
-        }
-    }
-
-    public static void find(String commitMessage) {
-        List<String> allCommitFiles = plainFilenamesIn(COMMIT_DIR);
-        boolean flag = false;
-        for (String fileName : allCommitFiles) {
-            File commitFile = Utils.join(COMMIT_DIR, fileName);
-            Commit commit = Utils.readObject(commitFile, Commit.class);
-            if (commit.getMessage().equals(commitMessage)) {
-                System.out.println(fileName);
-                flag = true;
+
+            @Override
+            public CommitInfo next() {
+                if (position < 0) {
+                    throw new NoSuchElementException();
+                }
+                String commitHash = graph.hashAt(position);
+                position = graph.firstParentOf(position);
+                return new CommitInfo(commitHash, loadCommitByHash(Repository.this, commitHash));
             }
+        };
+    }
+
+    /**
+     * 仓库中的所有commit，默认按hash排序；BYDATE为true时按时间从新到旧排序，时间相同的按hash排序。
+     * 时间从commit-graph中读取，不需要先解码所有commit。commit在线程池中预先并行地读取
+     */
+    public Iterator<CommitInfo> globalLog(boolean byDate) {
+        List<String> allCommitFiles = ObjectStore.listObjects(gitletDir, ObjectStore.COMMIT);
+        if (byDate) {
+            CommitGraph graph = CommitGraph.of(gitletDir);
+            Map<String, Long> times = new HashMap<>();
+            for (String commitHash : allCommitFiles) {
+                times.put(commitHash, graph.timeOf(graph.indexOf(commitHash)));
+            }
+            allCommitFiles.sort(Comparator.comparing((String commitHash) -> times.get(commitHash))
+                    .reversed().thenComparing(Comparator.naturalOrder()));
         }
-        if (!flag) {
-            exitWithError("Found no commit with that message.");
-        }
+        return new CommitPrefetcher(this, allCommitFiles);
     }
 
-    public static void status() {
-        String currentBranchName = getCurrentBranchName();
-        List<String> allBranchName = plainFilenamesIn(BRANCH_DIR);
-        StagingArea currentStagingArea = StagingArea.loadFromFile();
-        Map<String, String> fileToAdd = currentStagingArea.getFileToAdd();
-        Set<String> fileToRemove = currentStagingArea.getFileToRemove();
-        printStatus(currentBranchName, allBranchName, fileToAdd, fileToRemove);
+    /*由message索引回答，不需要读取每个commit*/
+    public List<String> find(String commitMessage, Gitlet.FindMode mode) {
+        return MessageIndex.find(gitletDir, commitMessage, mode);
+    }
+
+    /**
+     * 比较FROM和TO两边的文件，FROM和TO可以是分支名或者(缩写的)commit id。
+     * FROM为null时是当前commit；TO为null时是工作区，这时比较的是FROM跟踪的文件和暂存区中新增的文件。
+     * PATHS不为空时只比较其中的文件。两个commit之间按tree比较，相同的子树直接跳过；
+     * WITHSIZES为true时从对象头部读出两边的大小，都不读取文件内容
+     */
+    public List<FileChange> diff(String from, String to, List<String> paths, boolean withSizes) {
+        Commit before = from == null ? getHeadCommit(this) : resolveRevision(from);
+        SortedMap<String, String[]> changed = to == null
+                ? diffWorkingTree(before, paths) : Commit.diff(before, resolveRevision(to));
+        List<FileChange> result = new ArrayList<>();
+        for (Map.Entry<String, String[]> entry : changed.entrySet()) {
+            String path = entry.getKey();
+            if (!paths.isEmpty() && !paths.contains(path)) {
+                continue;
+            }
+            String oldHash = entry.getValue()[0];
+            String newHash = entry.getValue()[1];
+            long oldSize = -1;
+            long newSize = -1;
+            if (withSizes) {
+                oldSize = oldHash == null ? 0 : ObjectStore.sizeOf(gitletDir, ObjectStore.BLOB, oldHash);
+                if (newHash == null) {
+                    newSize = 0;
+                } else if (to == null) {
+                    newSize = join(cwd, path).length();
+                } else {
+                    newSize = ObjectStore.sizeOf(gitletDir, ObjectStore.BLOB, newHash);
+                }
+            }
+            result.add(new FileChange(path, oldHash, newHash, oldSize, newSize, to == null));
+        }
+        return result;
     }
 
-    public static void checkoutCurrentCommitFile(String fileName) {
-        Commit currentCommit = getHeadCommit();
-        checkoutWantedCommitFile(currentCommit, fileName);
+    /*BEFORE跟踪的文件和暂存区中新增的文件在工作区中的变化，stat信息没有变的文件不会被读取*/
+    private SortedMap<String, String[]> diffWorkingTree(Commit before, List<String> paths) {
+        StagingArea stagingArea = StagingArea.loadFromFile(this);
+        Map<String, String> tracked = before.getTrackedFiles();
+        Set<String> names = new TreeSet<>(tracked.keySet());
+        names.addAll(stagingArea.getFileToAdd().keySet());
+        if (!paths.isEmpty()) {
+            names.retainAll(paths);
+        }
+        SortedMap<String, String> working = WorkingTree.hashFiles(this, stagingArea, names);
+        SortedMap<String, String[]> result = new TreeMap<>();
+        for (String name : names) {
+            String oldHash = tracked.get(name);
+            String newHash = working.get(name);
+            if (!Objects.equals(oldHash, newHash)) {
+                result.put(name, new String[]{oldHash, newHash});
+            }
+        }
+        return result;
     }
 
-    public static void checkoutGivenCommitFile(String hashcode, String filename) {
-        File commitPath = join(COMMIT_DIR, hashcode);
-        if (!commitPath.exists()) {
-            exitWithError("No commit with that id exists.");
+    /**
+     * CHANGE的unified diff，包括文件头。二进制文件只说明两边不同
+     */
+    public byte[] patch(FileChange change) {
+        String path = change.getPath();
+        byte[] before = change.isAdded() ? new byte[0] : readBlob(gitletDir, change.getOldHash());
+        byte[] after;
+        if (change.isDeleted()) {
+            after = new byte[0];
+        } else if (change.isNewInWorkingTree()) {
+            after = readContents(join(cwd, path));
+        } else {
+            after = readBlob(gitletDir, change.getNewHash());
+        }
+        String oldName = change.isAdded() ? "/dev/null" : "a/" + path;
+        String newName = change.isDeleted() ? "/dev/null" : "b/" + path;
+        StringBuilder header = new StringBuilder("diff --git a/" + path + " b/" + path + "\n");
+        boolean binary = LineDiff.isBinary(before) || LineDiff.isBinary(after);
+        if (binary) {
+            header.append("Binary files ").append(oldName).append(" and ").append(newName).append(" differ\n");
+        } else {
+            header.append("--- ").append(oldName).append("\n+++ ").append(newName).append("\n");
         }
-        Commit givenCommit = readObject(commitPath, Commit.class);
-        checkoutWantedCommitFile(givenCommit, filename);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(before.length + after.length + 256);
+        byte[] headerBytes = header.toString().getBytes(StandardCharsets.UTF_8);
+        out.write(headerBytes, 0, headerBytes.length);
+        if (!binary) {
+            LineDiff.unified(before, after, DIFF_CONTEXT, out);
+        }
+        return out.toByteArray();
     }
 
-    public static void checkOutBranch(String branchName) {
-        File branchFile = new File(BRANCH_DIR, branchName);
+    /**
+     * 从对象库重新生成commit索引和message索引
+     */
+    public void reindex() {
+        CommitIndex.rebuild(gitletDir);
+        MessageIndex.rebuild(gitletDir);
+        CommitGraph.reset(gitletDir); //下次使用时从对象库重新生成
+    }
+
+    public StatusResult status() {
+        String currentBranchName = getCurrentBranchName(this);
+        List<String> allBranchName = plainFilenamesIn(branchDir);
+        StagingArea currentStagingArea = StagingArea.loadFromFile(this);
+        StatusResult result = statusOf(this, currentBranchName, allBranchName, currentStagingArea);
+        currentStagingArea.saveIfStatChanged(); //下次status就不需要再hash这些文件了
+        return result;
+    }
+
+    public void checkoutCurrentCommitFile(String fileName) {
+        Commit currentCommit = getHeadCommit(this);
+        checkoutWantedCommitFile(this, currentCommit, fileName);
+    }
+
+    /*COMMITID可以是缩写*/
+    public void checkoutGivenCommitFile(String commitId, String filename) {
+        String hashcode = resolveCommitId(commitId);
+        Commit givenCommit = loadCommitByHash(this, hashcode);
+        checkoutWantedCommitFile(this, givenCommit, filename);
+    }
+
+    public void checkOutBranch(String branchName) {
+        File branchFile = new File(branchDir, branchName);
         if (!branchFile.isFile()) {
-            exitWithError("No such branch exists.");
+            throw new GitletException.NotFound("No such branch exists.");
         }
-        String currentBranchName = getCurrentBranchName();
+        String currentBranchName = getCurrentBranchName(this);
         if (currentBranchName.equals(branchName)) {
-            exitWithError("No need to checkout the current branch.");
+            throw new GitletException.InvalidState("No need to checkout the current branch.");
         }
-        Commit wantedCommit = getWantedHeadCommit(branchName);
-        checkoutWantedCommit(wantedCommit);
-        StagingArea currentStagingArea = StagingArea.loadFromFile();
+        Commit wantedCommit = getWantedHeadCommit(this, branchName);
+        checkoutWantedCommit(this, wantedCommit);
+        StagingArea currentStagingArea = StagingArea.loadFromFile(this);
         currentStagingArea.clear();
         currentStagingArea.saveToFile();
-        writeContents(HEAD_DIR, "ref: refs/heads/" + branchName);
+        writeContents(headFile, "ref: refs/heads/" + branchName);
     }
 
-    public static void makeBranch(String branchName) {
-        File newBranch = join(BRANCH_DIR, branchName);
+    public void makeBranch(String branchName) {
+        File newBranch = join(branchDir, branchName);
         if (newBranch.exists()) {
-            exitWithError("A branch with that name already exists.");
+            throw new GitletException.AlreadyExists("A branch with that name already exists.");
         }
-        String currentCommitHash = getHeadCommitHash();
+        String currentCommitHash = getHeadCommitHash(this);
         writeContents(newBranch, currentCommitHash);
     }
 
-    public static void removeBranch(String branchNameToRemove) {
-        File branchFile = join(BRANCH_DIR, branchNameToRemove);
+    public void removeBranch(String branchNameToRemove) {
+        File branchFile = join(branchDir, branchNameToRemove);
         if (!branchFile.exists()) {
-            exitWithError("A branch with that name does not exist.");
+            throw new GitletException.NotFound("A branch with that name does not exist.");
         }
-        if (branchNameToRemove.equals(getCurrentBranchName())) {
-            exitWithError("Cannot remove the current branch.");
+        if (branchNameToRemove.equals(getCurrentBranchName(this))) {
+            throw new GitletException.InvalidState("Cannot remove the current branch.");
         }
         branchFile.delete();
     }
@@ -271,19 +503,19 @@ public class Repository {
        现在我已经有一个函数，给branch_name,可以check_out该branch头部commit的全部内容
        只需要稍微修改即可
            */
-    public static void resetACommit(String commitId) {
-        File commitPath = join(COMMIT_DIR, commitId);
-        Commit wantedCommit = readObject(commitPath, Commit.class);
-        checkoutWantedCommit(wantedCommit);
-        StagingArea currentStagingArea = StagingArea.loadFromFile();
+    public void resetACommit(String shortCommitId) {
+        String commitId = resolveCommitId(shortCommitId);
+        Commit wantedCommit = loadCommitByHash(this, commitId);
+        checkoutWantedCommit(this, wantedCommit);
+        StagingArea currentStagingArea = StagingArea.loadFromFile(this);
         currentStagingArea.clear();
         currentStagingArea.saveToFile();
-        String currentBranch = getCurrentBranchName();
-        File currentBranchPath = join(BRANCH_DIR, currentBranch);
+        String currentBranch = getCurrentBranchName(this);
+        File currentBranchPath = join(branchDir, currentBranch);
         writeContents(currentBranchPath, commitId);
     }
 
-    public static void merge(String branchName) {
+    public MergeResult merge(String branchName) {
         /*在进行真正的合并操作之前，首先需要进行安全检查
            首先是检查暂存区的file_to_add和file_to_rm有没有文件，有则打印"You have uncommitted changes."
            然后再去存放分支的文件夹查找是否存在该分支名，否则打印"A branch with that name does not exist."
@@ -316,56 +548,58 @@ public class Repository {
            关于创建一个新的commit,这个commit的message是
            Merged [given branch name] into [current branch name].
            关于有两个parent的情况，呜呜呜呜呜呜，需要把commit类重构 */
-        StagingArea stagingArea = StagingArea.loadFromFile();
-        Commit currentCommit = getHeadCommit();
-        File branchFile = new File(BRANCH_DIR, branchName);
+        StagingArea stagingArea = StagingArea.loadFromFile(this);
+        Commit currentCommit = getHeadCommit(this);
+        File branchFile = new File(branchDir, branchName);
         if (!branchFile.isFile()) {
-            exitWithError("A branch with that name does not exist.");
+            throw new GitletException.NotFound("A branch with that name does not exist.");
         }
-        Commit givenBranchHeadCommit = getWantedHeadCommit(branchName);
+        Commit givenBranchHeadCommit = getWantedHeadCommit(this, branchName);
         if (!stagingArea.getFileToAdd().isEmpty() 
                 || !stagingArea.getFileToRemove().isEmpty()) {
-            exitWithError("You have uncommitted changes.");
+            throw new GitletException.InvalidState("You have uncommitted changes.");
         }
-        String currentBranchName = getCurrentBranchName();
+        String currentBranchName = getCurrentBranchName(this);
         if (currentBranchName.equals(branchName)) {
-            exitWithError("Cannot merge a branch with itself");
+            throw new GitletException.InvalidState("Cannot merge a branch with itself");
         }
 
-        haveUntrackedFiles(currentCommit, givenBranchHeadCommit);
-        Commit splitPoint = findSplitPoint(currentCommit, branchName);
-        if (isHeadCommit(splitPoint) != null) { //返回的是branchname
-            if (branchName.equals(isHeadCommit(splitPoint))) {
-                exitWithError("Given branch is an ancestor of the current branch.");
+        haveUntrackedFiles(this, currentCommit, givenBranchHeadCommit);
+        Commit splitPoint = findSplitPoint(this, getHeadCommitHash(this), branchName);
+        if (isHeadCommit(this, splitPoint) != null) { //返回的是branchname
+            if (branchName.equals(isHeadCommit(this, splitPoint))) {
+                return new MergeResult(MergeResult.Status.ALREADY_UP_TO_DATE,
+                        getHeadCommitHash(this), Collections.emptyList());
             }
-            if (currentBranchName.equals(isHeadCommit(splitPoint))) {
+            if (currentBranchName.equals(isHeadCommit(this, splitPoint))) {
                 checkOutBranch(branchName);
-                exitWithError("Current branch fast-forwarded.");
+                return new MergeResult(MergeResult.Status.FAST_FORWARD,
+                        getHeadCommitHash(this), Collections.emptyList());
             }
         }
-        mergeCommit(splitPoint, currentCommit, givenBranchHeadCommit, branchName);
+        return mergeCommit(this, splitPoint, currentCommit, givenBranchHeadCommit, branchName);
     }
 
-    public static void addRemote(String remoteName, String remotePath) { 
+    public void addRemote(String remoteName, String remotePath) { 
         //注意remotepath给的不一定是绝对路径
-        List<String> allRemoteFiles = plainFilenamesIn(REMOTE_PATH_DIR);
+        List<String> allRemoteFiles = plainFilenamesIn(remotePathDir);
         if (allRemoteFiles.contains(remoteName)) {
-            exitWithError("A remote with that name already exists.");
+            throw new GitletException.AlreadyExists("A remote with that name already exists.");
         }
-        File remoteFile = join(REMOTE_PATH_DIR, remoteName);
+        File remoteFile = join(remotePathDir, remoteName);
         writeContents(remoteFile, remotePath);
     }
 
-    public static void removeRemote(String name) {
-        List<String> allRemoteFiles = plainFilenamesIn(REMOTE_PATH_DIR);
+    public void removeRemote(String name) {
+        List<String> allRemoteFiles = plainFilenamesIn(remotePathDir);
         if (!allRemoteFiles.contains(name)) {
-            exitWithError("A remote with that name does not exist.");
+            throw new GitletException.NotFound("A remote with that name does not exist.");
         }
-        File remoteFile = join(REMOTE_PATH_DIR, name);
+        File remoteFile = join(remotePathDir, name);
         delete(remoteFile);
     }
 
-    private static boolean delete(File file) {
+    private boolean delete(File file) {
         if (!file.isDirectory()) {
             return file.delete();
         } else {
@@ -373,33 +607,33 @@ public class Repository {
         }
     }
 
-    public static void pushRemote(String remoteName, String remoteBranchName) {
-        File remoteFile = getAndValidateRemotePath(remoteName);
-        Commit currentCommit = getHeadCommit();
+    public void pushRemote(String remoteName, String remoteBranchName) {
+        String remoteUrl = getRemoteUrl(this, remoteName);
+        if (RemoteConnection.isUrl(remoteUrl)) { //远程仓库在另一个进程里，通过数据流协议推送
+            PackProtocol.push(gitletDir, remoteUrl, remoteBranchName, getHeadCommitHash(this));
+            return;
+        }
+        File remoteFile = getAndValidateRemotePath(this, remoteName);
         if (!remoteFile.exists()) {
-            exitWithError("Remote directory not found.");
+            throw new GitletException.NotFound("Remote directory not found.");
         } else {
             File remoteBranchFile = join(remoteFile, "refs", "heads");
             List allBranchName = plainFilenamesIn(remoteBranchFile);
-            if (!allBranchName.contains(remoteBranchName)) {
-                Queue<Commit> parentQueueToAdd = getFullParentQueue(currentCommit, GITLET_DIR);
-                saveAllCommitAndBlobPush(parentQueueToAdd, remoteFile);
-            } else {
-                /*分别得到两个头结点*/
-                Commit remoteHeadCommit = getRemoteWantedHeadCommit(remoteBranchName, remoteFile);
-                Set<String> currentCommitHashSet = getParentHashSet(currentCommit);
-                //得到当前头结点的所有父节点的hash值
-                String remoteHeadCommitHash = getHashOf(remoteHeadCommit);
-                if (!currentCommitHashSet.contains(remoteHeadCommitHash)) {
-                    exitWithError("Please pull down remote changes before pushing.");
+            String headHash = getHeadCommitHash(this);
+            if (allBranchName.contains(remoteBranchName)) {
+                String remoteHeadCommitHash = readContentsAsString(
+                        join(remoteFile, "refs", "heads", remoteBranchName));
+                //远程头结点必须是当前头结点的祖先，在commit-graph上按generation剪枝判断
+                if (!CommitGraph.of(gitletDir).isAncestor(remoteHeadCommitHash, headHash)) {
+                    throw new GitletException.InvalidState(
+                            "Please pull down remote changes before pushing.");
                 }
-                Queue<Commit> parentQueueToAdd = getParentQueueBetween
-                        (currentCommit, remoteHeadCommit);
-                //得到两个commit之间隔着的所有commit
-                saveAllCommitAndBlobPush(parentQueueToAdd, remoteFile);
             }
+            //远程仓库给出它的所有分支头，只传输它还没有的commit和blob；推送到新分支时也一样
+            List<String> commitsToAdd = getMissingCommits(gitletDir, headHash, remoteFile);
+            saveAllCommitAndBlobPush(this, commitsToAdd, remoteFile);
+            CommitGraph.of(remoteFile).indexOf(headHash);
             //还要记得更新指针
-            String headHash = getHeadCommitHash();
             File remoteBranch = join(remoteFile, "refs", "heads", remoteBranchName);
             writeContents(remoteBranch, headHash);
             /*
@@ -415,7 +649,7 @@ public class Repository {
         }
     }
 
-    public static void fetchRemote(String remoteName, String remoteBranchName) {
+    public void fetchRemote(String remoteName, String remoteBranchName) {
         /*
              感觉和push很像，只是拿文件和放文件的地方反过来了，有些细节需要处理
              首先，从REMOTE_PATH_DIR的remotename里面获取路径
@@ -430,42 +664,66 @@ public class Repository {
              然后就可以调用函数
              最后更新指针
          */
-        File remoteFile = getAndValidateRemotePath(remoteName);
+        String remoteUrl = getRemoteUrl(this, remoteName);
+        if (RemoteConnection.isUrl(remoteUrl)) { //远程仓库在另一个进程里，通过数据流协议取回
+            updateRemoteBranch(remoteName, remoteBranchName,
+                    PackProtocol.fetch(gitletDir, remoteUrl, remoteBranchName));
+            return;
+        }
+        File remoteFile = getAndValidateRemotePath(this, remoteName);
         File remoteBranchFile = join(remoteFile, "refs", "heads");
         List allBranchName = plainFilenamesIn(remoteBranchFile);
         if (!allBranchName.contains(remoteBranchName)) {
-            exitWithError("That remote does not have that branch.");
-        }
-        Commit remoteHeadCommit = getRemoteWantedHeadCommit(remoteBranchName, remoteFile); 
-        //远程头节点
-        Queue<Commit> parentQueueToLoad = getFullParentQueue(remoteHeadCommit, remoteFile);
-        Map<Commit, String> parentQueueToLoadMap = new HashMap<>();
-        Queue<Commit> parentQueueToLoadFinal = new LinkedList<>();
-        while (!parentQueueToLoad.isEmpty()) {
-            Commit commitToHandle = parentQueueToLoad.poll();
-            String commitToHandleHash = getHashOf(commitToHandle);
-            parentQueueToLoadMap.put(commitToHandle, commitToHandleHash);
-        } //现在得到了远程对应branch所有父节点的hash与commit的map
-        List<String> localCommitHash = plainFilenamesIn(COMMIT_DIR);
-        for (Map.Entry<Commit, String> singleCommitToAdd : parentQueueToLoadMap.entrySet()) {
-            if (!localCommitHash.contains(singleCommitToAdd.getValue())) { //这个commit在本地没有
-                parentQueueToLoadFinal.add(singleCommitToAdd.getKey());
-            }
+            throw new GitletException.NotFound("That remote does not have that branch.");
         }
-        saveAllCommitAndBlobFetch(parentQueueToLoadFinal, remoteFile);
+        String remoteHeadHash = readContentsAsString(join(remoteBranchFile, remoteBranchName));
+        //本地给出所有分支头，远程头节点的祖先中只有本地没有的才会被读取
+        List<String> commitsToLoad = getMissingCommits(remoteFile, remoteHeadHash, gitletDir);
+        saveAllCommitAndBlobFetch(this, commitsToLoad, remoteFile);
+        updateRemoteBranch(remoteName, remoteBranchName, remoteHeadHash);
+    }
+
+    /*对象都已经在本地了，更新远程跟踪分支REMOTENAME/REMOTEBRANCHNAME*/
+    private void updateRemoteBranch(String remoteName, String remoteBranchName, String remoteHeadHash) {
+        CommitGraph.of(gitletDir).indexOf(remoteHeadHash);
         //接下来更新指针
-        String remoteHeadHash = getHashOf(remoteHeadCommit);
-        File remoteBranch = join(BRANCH_DIR, remoteName, remoteBranchName);
-        File remote = join(BRANCH_DIR, remoteName);
+        File remoteBranch = join(branchDir, remoteName, remoteBranchName);
+        File remote = join(branchDir, remoteName);
         remote.mkdir();
         writeContents(remoteBranch, remoteHeadHash);
     }
 
-    public static void pull(String remoteName, String remoteBranchName) {
+    /*把所有松散对象折叠进pack，之后的查找只需要在pack的索引上二分*/
+    public void repack(long bigFileThreshold) {
+        ObjectStore.repack(gitletDir, bigFileThreshold);
+    }
+
+    /*把旧仓库中用Java序列化保存的commit改写成规范编码*/
+    public void migrate() {
+        migrateTool(gitletDir);
+    }
+
+    public MergeResult pull(String remoteName, String remoteBranchName) {
         fetchRemote(remoteName, remoteBranchName);
         String fetchedBranchName = remoteName + "/" + remoteBranchName;
-        merge(fetchedBranchName);
+        return merge(fetchedBranchName);
+    }
+
+    /*REVISION可以是分支名(包括fetch得到的R1/master)或者(缩写的)commit id*/
+    private Commit resolveRevision(String revision) {
+        if (join(branchDir, revision).isFile()) {
+            return getWantedHeadCommit(this, revision);
+        }
+        return loadCommitByHash(this, resolveCommitId(revision));
+    }
 
+    /*把可能是缩写的COMMITID解析成完整的hash*/
+    private String resolveCommitId(String commitId) {
+        String fullHash = getFullCommitHash(this, commitId);
+        if (fullHash == null) {
+            throw new GitletException.NotFound("No commit with that id exists.");
+        }
+        return fullHash;
     }
 }
 
@@ -1,12 +1,18 @@
 package gitlet;
 
+import java.util.Arrays;
+import java.util.Objects;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 
-import static gitlet.Repository.*;
 import static gitlet.Utils.*;
 
 /**
@@ -29,23 +35,152 @@ public class StagingArea implements Serializable {
     private static final long serialVersionUID = 1L;
     private Map<String, String> fileToAdd;
     private Set<String> fileToRemove;
+    /**
+     * 和git的index一样，记录工作区文件上一次被hash时的mtime、大小和inode，
+     * stat信息没有变化的文件不需要重新读取和hash。旧的index文件里没有这个字段，读出来是null
+     */
+    private Map<String, FileStat> statCache;
+    /**
+     * index文件被加载时的修改时间(纳秒)，用来判断racily clean的记录
+     */
+    private transient long indexMtime;
+    /**
+     * 这个暂存区所属的仓库
+     */
+    private transient Repository repo;
+    private transient boolean statChanged;
+
+    /**
+     * 一个工作区文件的stat信息和它的hash
+     */
+    private static class FileStat implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final long mtime;
+        private final long size;
+        private final String inode;
+        private final String hash;
+
+        FileStat(long mtime, long size, String inode, String hash) {
+            this.mtime = mtime;
+            this.size = size;
+            this.inode = inode;
+            this.hash = hash;
+        }
 
-    public StagingArea() {
+        boolean matches(long otherMtime, long otherSize, String otherInode) {
+            return mtime == otherMtime && size == otherSize && Objects.equals(inode, otherInode);
+        }
+    }
+
+    public StagingArea(Repository repo) {
         fileToAdd = new TreeMap<>();
         fileToRemove = new TreeSet<>();
+        this.repo = repo;
     }
+
     /**
-     * 把对象从文件中加载出来
+     * 把对象从文件中加载出来。
+     * REPO中保存着上一次加载或保存的暂存区和它序列化后的内容，index文件的内容没有被别的进程改过时直接复用这个对象，
+     * 只需要读一次文件做比较，不用再反序列化。比较的是内容而不是mtime，所以不会有同一时刻被改写而看不出来的问题
      */
-    public static StagingArea loadFromFile() {
-        return readObject(STAGING_AREA_FILE, StagingArea.class);
+    public static StagingArea loadFromFile(Repository repo) {
+        long mtime = mtimeOfIndex(repo); //先取mtime再读内容，读到的内容不会比这个时间更早
+        byte[] bytes = readContents(repo.stagingAreaFile);
+        synchronized (repo) {
+            if (repo.cachedStagingArea == null || !Arrays.equals(bytes, repo.cachedIndexBytes)) {
+                repo.cachedStagingArea = deserialize(bytes, StagingArea.class);
+                repo.cachedStagingArea.repo = repo;
+                repo.cachedIndexBytes = bytes;
+            }
+            repo.cachedStagingArea.indexMtime = mtime;
+            return repo.cachedStagingArea;
+        }
     }
 
     /**
      * 把对象写到文件里面去
      */
     public void saveToFile() {
-        writeObject(STAGING_AREA_FILE, this);
+        byte[] bytes = serialize(this);
+        writeContents(repo.stagingAreaFile, bytes);
+        statChanged = false;
+        synchronized (repo) {
+            repo.cachedStagingArea = this;
+            repo.cachedIndexBytes = bytes;
+        }
+        indexMtime = mtimeOfIndex(repo); //和重新加载一样，以刚写下的index文件的时间判断racily clean
+    }
+
+    /**
+     * 丢弃REPO缓存的暂存区。命令中途出错时内存中的对象可能有没写回文件的修改，下一次必须重新读取
+     */
+    public static void dropCache(Repository repo) {
+        synchronized (repo) {
+            repo.cachedStagingArea = null;
+            repo.cachedIndexBytes = null;
+        }
+    }
+
+    /*index文件的修改时间(纳秒)，读不到时所有记录都当作racily clean*/
+    private static long mtimeOfIndex(Repository repo) {
+        try {
+            return Files.getLastModifiedTime(repo.stagingAreaFile.toPath())
+                    .to(TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * 只有stat缓存被更新过才写回文件，供status这样只读的命令使用
+     */
+    public void saveIfStatChanged() {
+        if (statChanged) {
+            saveToFile();
+        }
+    }
+
+    /**
+     * 返回工作区文件FILENAME当前内容的hash。
+     * 如果它的mtime、大小和inode与上次记录的一致，直接返回记录的hash而不读文件；
+     * 但是mtime不早于index文件的记录是racily clean的(文件可能在记录之后的同一时刻又被改过)，仍然要重新hash。
+     */
+    public String getWorkingFileHash(String fileName) {
+        File file = join(repo.cwd, fileName);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        long mtime = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        long size = attributes.size();
+        String inode = attributes.fileKey() == null ? null : attributes.fileKey().toString();
+        FileStat cached;
+        synchronized (this) { //WorkingTree会在多个线程中同时调用
+            if (statCache == null) {
+                statCache = new TreeMap<>();
+            }
+            cached = statCache.get(fileName);
+        }
+        if (cached != null && cached.matches(mtime, size, inode) && mtime < indexMtime) {
+            return cached.hash;
+        }
+        String hash = sha1OfFile(file);
+        synchronized (this) {
+            statCache.put(fileName, new FileStat(mtime, size, inode, hash));
+            statChanged = true;
+        }
+        return hash;
+    }
+
+    /**
+     * 丢掉不在NAMES中的文件的stat记录
+     */
+    public void retainStat(Set<String> names) {
+        if (statCache != null && statCache.keySet().retainAll(names)) {
+            statChanged = true;
+        }
     }
 
     public Map<String, String> getFileToAdd() {
@@ -0,0 +1,64 @@
+package gitlet;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * The result of Gitlet.status. 所有列表都已经按名字排好序。
+ *
+ * @author 张婧
+ */
+public final class StatusResult {
+    /**
+     * 工作区中的文件相对于暂存区或当前commit的变化
+     */
+    public enum Modification {
+        MODIFIED, DELETED
+    }
+
+    private final String currentBranch;
+    private final List<String> branches;
+    private final List<String> staged;
+    private final List<String> removed;
+    private final SortedMap<String, Modification> notStaged;
+    private final List<String> untracked;
+
+    StatusResult(String currentBranch, List<String> branches, List<String> staged,
+                 List<String> removed, SortedMap<String, Modification> notStaged,
+                 List<String> untracked) {
+        this.currentBranch = currentBranch;
+        this.branches = Collections.unmodifiableList(branches);
+        this.staged = Collections.unmodifiableList(staged);
+        this.removed = Collections.unmodifiableList(removed);
+        this.notStaged = Collections.unmodifiableSortedMap(notStaged);
+        this.untracked = Collections.unmodifiableList(untracked);
+    }
+
+    public String getCurrentBranch() {
+        return currentBranch;
+    }
+
+    public List<String> getBranches() {
+        return branches;
+    }
+
+    public List<String> getStagedFiles() {
+        return staged;
+    }
+
+    public List<String> getRemovedFiles() {
+        return removed;
+    }
+
+    /**
+     * 被修改或删除但还没有暂存的文件
+     */
+    public SortedMap<String, Modification> getModificationsNotStaged() {
+        return notStaged;
+    }
+
+    public List<String> getUntrackedFiles() {
+        return untracked;
+    }
+}
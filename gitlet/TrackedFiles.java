@@ -0,0 +1,174 @@
+package gitlet;
+
+import java.util.*;
+
+/**
+ * An immutable, compact map from file name to blob hash.
+ * 一个commit跟踪的文件保存在两个按文件名排好序的平行数组里，查找是二分查找。
+ * 它是只读的，所以commit可以直接把它交给调用者，而不需要每次都复制一个TreeMap；
+ * 要得到修改后的版本只能通过Builder，commit和merge就是这样生成新的跟踪文件列表的。
+ *
+ * @author 张婧
+ */
+public final class TrackedFiles extends AbstractMap<String, String> {
+    static final TrackedFiles EMPTY = new TrackedFiles(new String[0], new String[0]);
+
+    private final String[] names;
+    private final String[] hashes;
+    private Set<Map.Entry<String, String>> entries;
+
+    private TrackedFiles(String[] names, String[] hashes) {
+        this.names = names;
+        this.hashes = hashes;
+    }
+
+    /**
+     * 返回和FILES内容相同的TrackedFiles，FILES本身就是TrackedFiles时直接返回它
+     */
+    public static TrackedFiles copyOf(Map<String, String> files) {
+        if (files instanceof TrackedFiles) {
+            return (TrackedFiles) files;
+        }
+        SortedMap<String, String> sorted = new TreeMap<>(files);
+        return new TrackedFiles(sorted.keySet().toArray(new String[0]),
+                sorted.values().toArray(new String[0]));
+    }
+
+    /**
+     * NAMES必须已经按字典序排好并且没有重复，例如从tree的叶子中依次读出的文件
+     */
+    static TrackedFiles ofSorted(List<String> names, List<String> hashes) {
+        return new TrackedFiles(names.toArray(new String[0]), hashes.toArray(new String[0]));
+    }
+
+    String nameAt(int index) {
+        return names[index];
+    }
+
+    String hashAt(int index) {
+        return hashes[index];
+    }
+
+    private int indexOf(Object name) {
+        if (!(name instanceof String)) {
+            return -1;
+        }
+        return Arrays.binarySearch(names, name);
+    }
+
+    @Override
+    public int size() {
+        return names.length;
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return indexOf(name) >= 0;
+    }
+
+    @Override
+    public String get(Object name) {
+        int index = indexOf(name);
+        return index < 0 ? null : hashes[index];
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (entries == null) {
+            entries = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new Iterator<Map.Entry<String, String>>() {
+                        private int next = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < names.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String, String> next() {
+                            if (next >= names.length) {
+                                throw new NoSuchElementException();
+                            }
+                            next += 1;
+                            return new AbstractMap.SimpleImmutableEntry<>(
+                                    names[next - 1], hashes[next - 1]);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return names.length;
+                }
+            };
+        }
+        return entries;
+    }
+
+    /**
+     * 返回一个以这些文件为起点的Builder
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    /**
+     * 在一个TrackedFiles的基础上记录若干修改，build时一次合并成新的TrackedFiles，原来的对象不受影响
+     */
+    public static class Builder {
+        private final TrackedFiles base;
+        /**
+         * 文件名 -> 新的hash，值为null表示删除
+         */
+        private final SortedMap<String, String> changes = new TreeMap<>();
+
+        Builder(TrackedFiles base) {
+            this.base = base;
+        }
+
+        public Builder put(String name, String hash) {
+            changes.put(name, hash);
+            return this;
+        }
+
+        public Builder remove(String name) {
+            changes.put(name, null);
+            return this;
+        }
+
+        /**
+         * 把修改和原来的有序数组做一次归并
+         */
+        public TrackedFiles build() {
+            if (changes.isEmpty()) {
+                return base;
+            }
+            List<String> names = new ArrayList<>(base.size() + changes.size());
+            List<String> hashes = new ArrayList<>(base.size() + changes.size());
+            Iterator<Map.Entry<String, String>> changed = changes.entrySet().iterator();
+            Map.Entry<String, String> change = changed.next();
+            int i = 0;
+            while (i < base.size() || change != null) {
+                int cmp = change == null ? -1
+                        : i == base.size() ? 1 : base.names[i].compareTo(change.getKey());
+                if (cmp < 0) {
+                    names.add(base.names[i]);
+                    hashes.add(base.hashes[i]);
+                    i += 1;
+                    continue;
+                }
+                if (cmp == 0) {
+                    i += 1; //被修改或删除的旧版本
+                }
+                if (change.getValue() != null) {
+                    names.add(change.getKey());
+                    hashes.add(change.getValue());
+                }
+                change = changed.hasNext() ? changed.next() : null;
+            }
+            return ofSorted(names, hashes);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static gitlet.Utils.*;
+
+/**
+ * Content-addressed tree objects holding the tracked files of a commit.
+ * 跟踪文件按文件名排好序后切成若干个叶子节点，再把叶子节点(用它的第一个文件名和hash表示)切成上一层的节点，直到只剩一个根。
+ * 在哪里切开只取决于文件名本身的hash，所以改动一个文件只会改变它所在的叶子和通往根的那几个节点，
+ * 其余节点在两个commit之间是共享的，commit只需要写这几个新节点，比较两个commit时相同hash的节点也可以直接跳过。
+ *
+ * @author 张婧
+ */
+public class Tree {
+    /**
+     * 节点格式: "GTRE" | version(1 byte) | 层数(1 byte，叶子为0) | 条目个数(int) |
+     * 每个条目: 名字长度(int) | 名字(UTF-8) | hash(20 byte)
+     * 叶子的条目是文件名和blob hash，其他节点的条目是子节点的第一个文件名和子节点的hash
+     */
+    private static final int MAGIC = 0x47545245;
+    private static final byte VERSION = 1;
+    private static final int HASH_BYTES = UID_LENGTH / 2;
+    /**
+     * 平均每个节点的条目个数，以及为了防止极端情况设置的上限
+     */
+    private static final int FANOUT = 64;
+    private static final int MAX_ENTRIES = FANOUT * 8;
+
+    /**
+     * 一个读出来的节点
+     */
+    private static class Node {
+        private final int level;
+        private final List<String> names;
+        private final List<String> hashes;
+
+        Node(int level, List<String> names, List<String> hashes) {
+            this.level = level;
+            this.names = names;
+            this.hashes = hashes;
+        }
+    }
+
+    /**
+     * 在内存中为FILES(文件名 -> blob hash)建树，把新节点按hash放进NODES，返回根节点的hash。
+     * 节点在这里只做编码，真正写进哪个仓库由调用者决定
+     */
+    public static String build(TrackedFiles files, Map<String, byte[]> nodes) {
+        List<String> names = new ArrayList<>(files.size());
+        List<String> hashes = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i += 1) {
+            names.add(files.nameAt(i));
+            hashes.add(files.hashAt(i));
+        }
+        int level = 0;
+        while (true) {
+            List<String> upperNames = new ArrayList<>();
+            List<String> upperHashes = new ArrayList<>();
+            int start = 0;
+            for (int i = 0; i < names.size(); i += 1) {
+                if (i + 1 == names.size() || i + 1 - start == MAX_ENTRIES
+                        || isBoundary(names.get(i), level)) {
+                    upperNames.add(names.get(start));
+                    upperHashes.add(writeNode(level, names.subList(start, i + 1),
+                            hashes.subList(start, i + 1), nodes));
+                    start = i + 1;
+                }
+            }
+            if (upperHashes.isEmpty()) { //没有任何跟踪文件
+                return writeNode(0, names, hashes, nodes);
+            }
+            if (upperHashes.size() == 1) {
+                return upperHashes.get(0);
+            }
+            names = upperNames;
+            hashes = upperHashes;
+            level += 1;
+        }
+    }
+
+    /**
+     * 把NODES中REPO还没有的节点写进REPO
+     */
+    public static void writeNodes(File repo, Map<String, byte[]> nodes) {
+        for (Map.Entry<String, byte[]> entry : nodes.entrySet()) {
+            ObjectStore.writeObjectBytes(repo, ObjectStore.TREE, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 把以ROOT为根的树从SOURCE复制到DEST，DEST中已经有的节点(以及它下面的整棵子树)直接跳过
+     */
+    public static void copy(File source, File dest, String root) {
+        if (ObjectStore.hasObject(dest, ObjectStore.TREE, root)) {
+            return;
+        }
+        Node node = readNode(source, root);
+        if (node.level > 0) {
+            for (String child : node.hashes) {
+                copy(source, dest, child);
+            }
+        }
+        //子节点都复制完了才写这个节点，这样DEST中有某个节点就说明它下面的整棵树都在
+        ObjectStore.copyObject(source, dest, ObjectStore.TREE, root);
+    }
+
+    /**
+     * 返回以ROOT为根的树中不属于树PARENT(可以为null)的所有节点，子节点在父节点之前，
+     * 接收方按这个顺序写入时，有某个节点就说明它下面的整棵树都在
+     */
+    public static List<String> newNodes(File repo, String root, String parent) {
+        Set<String> shared = parent == null ? Collections.emptySet() : nodesOf(repo, parent);
+        List<String> result = new ArrayList<>();
+        collectNewNodes(repo, root, shared, result);
+        return result;
+    }
+
+    private static void collectNewNodes(File repo, String hash, Set<String> shared, List<String> result) {
+        if (shared.contains(hash)) {
+            return;
+        }
+        Node node = readNode(repo, hash);
+        if (node.level > 0) {
+            for (String child : node.hashes) {
+                collectNewNodes(repo, child, shared, result);
+            }
+        }
+        result.add(hash);
+    }
+
+    /**
+     * 读出以ROOT为根的树中的所有文件
+     */
+    public static TrackedFiles flatten(File repo, String root) {
+        List<String> names = new ArrayList<>();
+        List<String> hashes = new ArrayList<>();
+        for (Node leaf : leavesOf(repo, root, Collections.emptySet())) { //叶子本身就是按文件名顺序排列的
+            names.addAll(leaf.names);
+            hashes.addAll(leaf.hashes);
+        }
+        return TrackedFiles.ofSorted(names, hashes);
+    }
+
+    /**
+     * 比较REPOA中的树A和REPOB中的树B，返回所有不同的文件：文件名 -> {在A中的hash, 在B中的hash}，不存在时为null。
+     * 两棵树共享的节点不会被读取。
+     */
+    public static SortedMap<String, String[]> diff(File repoA, String a, File repoB, String b) {
+        SortedMap<String, String[]> result = new TreeMap<>();
+        if (a.equals(b)) {
+            return result;
+        }
+        Set<String> nodesA = nodesOf(repoA, a);
+        Set<String> nodesB = nodesOf(repoB, b);
+        Map<String, String> onlyA = new HashMap<>();
+        for (Node leaf : leavesOf(repoA, a, nodesB)) {
+            for (int i = 0; i < leaf.names.size(); i += 1) {
+                onlyA.put(leaf.names.get(i), leaf.hashes.get(i));
+            }
+        }
+        for (Node leaf : leavesOf(repoB, b, nodesA)) {
+            for (int i = 0; i < leaf.names.size(); i += 1) {
+                String name = leaf.names.get(i);
+                String hashInA = onlyA.remove(name);
+                if (!leaf.hashes.get(i).equals(hashInA)) {
+                    result.put(name, new String[]{hashInA, leaf.hashes.get(i)});
+                }
+            }
+        }
+        for (Map.Entry<String, String> entry : onlyA.entrySet()) {
+            result.put(entry.getKey(), new String[]{entry.getValue(), null});
+        }
+        return result;
+    }
+
+    /*返回树中所有节点的hash，只读取非叶子节点*/
+    private static Set<String> nodesOf(File repo, String root) {
+        Set<String> result = new HashSet<>();
+        Deque<String> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            String hash = stack.pop();
+            result.add(hash);
+            Node node = readNode(repo, hash);
+            if (node.level > 1) {
+                node.hashes.forEach(stack::push);
+            } else if (node.level == 1) {
+                result.addAll(node.hashes);
+            }
+        }
+        return result;
+    }
+
+    /*按文件名顺序返回树中的叶子，跳过hash在SKIPPED中的子树*/
+    private static List<Node> leavesOf(File repo, String root, Set<String> skipped) {
+        List<Node> leaves = new ArrayList<>();
+        if (skipped.contains(root)) {
+            return leaves;
+        }
+        Node node = readNode(repo, root);
+        if (node.level == 0) {
+            leaves.add(node);
+            return leaves;
+        }
+        for (String child : node.hashes) {
+            leaves.addAll(leavesOf(repo, child, skipped));
+        }
+        return leaves;
+    }
+
+    private static Node readNode(File repo, String hash) {
+        byte[] bytes = ObjectStore.readObjectBytes(repo, ObjectStore.TREE, hash);
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (in.getInt() != MAGIC || in.get() != VERSION) {
+            throw new IllegalArgumentException("unknown tree format " + hash);
+        }
+        int level = in.get();
+        int count = in.getInt();
+        List<String> names = new ArrayList<>(count);
+        List<String> hashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i += 1) {
+            int nameLength = in.getInt();
+            names.add(new String(bytes, in.position(), nameLength, StandardCharsets.UTF_8));
+            in.position(in.position() + nameLength);
+            hashes.add(bytesToHex(bytes, in.position(), HASH_BYTES));
+            in.position(in.position() + HASH_BYTES);
+        }
+        return new Node(level, names, hashes);
+    }
+
+    /*编码一个节点，放进NODES，返回它的hash*/
+    private static String writeNode(int level, List<String> names, List<String> hashes,
+                                    Map<String, byte[]> nodes) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(level);
+            out.writeInt(names.size());
+            for (int i = 0; i < names.size(); i += 1) {
+                byte[] nameInByte = names.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(nameInByte.length);
+                out.write(nameInByte);
+                out.write(hexToBytes(hashes.get(i)));
+            }
+            out.close();
+            byte[] encoded = bytes.toByteArray();
+            String hash = sha1(encoded);
+            nodes.put(hash, encoded);
+            return hash;
+        } catch (IOException excp) {
+            throw error("Internal error serializing tree.");
+        }
+    }
+
+    /*NAME之后是否切开第LEVEL层的节点，只取决于名字本身，所以在不同的commit之间是稳定的*/
+    private static boolean isBoundary(String name, int level) {
+        int h = name.hashCode() + level * 0x61c88647;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & (FANOUT - 1)) == 0;
+    }
+}
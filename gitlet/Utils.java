@@ -1,11 +1,13 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -71,6 +73,57 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /**
+     * Returns the SHA-1 hash of the contents of FILE, reading it in
+     * fixed-size chunks so that memory use does not depend on the size
+     * of FILE.  Throws IllegalArgumentException in case of problems.
+     */
+    static String sha1OfFile(File file) {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                md.update(buffer, 0, n);
+            }
+            return bytesToHex(md.digest(), 0, UID_LENGTH / 2);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /**
+     * The size of the buffers used when streaming file contents.
+     */
+    static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Returns the 20 raw bytes denoted by the SHA-1 hexadecimal numeral
+     * HASH.
+     */
+    static byte[] hexToBytes(String hash) {
+        byte[] result = new byte[hash.length() / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = (byte) Integer.parseInt(hash.substring(2 * i, 2 * i + 2), 16);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the lower-case hexadecimal numeral for the LEN bytes of
+     * BYTES starting at OFFSET.
+     */
+    static String bytesToHex(byte[] bytes, int offset, int len) {
+        char[] result = new char[2 * len];
+        for (int i = 0; i < len; i += 1) {
+            int b = bytes[offset + i] & 0xff;
+            result[2 * i] = Character.forDigit(b >>> 4, 16);
+            result[2 * i + 1] = Character.forDigit(b & 0xf, 16);
+        }
+        return new String(result);
+    }
+
     /* FILE DELETION */
 
     /**
@@ -249,6 +302,23 @@ class Utils {
         }
     }
 
+    /**
+     * Return an object of type T deserialized from BYTES, casting it to
+     * EXPECTEDCLASS.  The counterpart of serialize for objects that do not
+     * live in a file of their own.  Throws IllegalArgumentException in case
+     * of problems.
+     */
+    static <T extends Serializable> T deserialize(byte[] bytes, Class<T> expectedClass) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
 
 
     /* MESSAGES AND ERROR REPORTING */
@@ -270,10 +340,11 @@ class Utils {
         System.out.println();
     }
 
+    /**
+     * 以MESSAGE结束当前命令。抛出的GitletException由Main.run打印出来，
+     * 这样同一个进程(gitlet serve)可以接着执行下一个命令
+     */
     public static void exitWithError(String message) {
-        if (message != null && !message.equals("")) {
-            System.out.println(message);
-        }
-        System.exit(0);
+        throw new GitletException(message);
     }
 }
@@ -0,0 +1,125 @@
+package gitlet;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Parallel scanning and hashing of the working directory.
+ * 列出工作区文件时对每一项的stat，以及status中对每个文件的hash，都放在一个大小固定的ForkJoinPool中并行进行，
+ * 结果总是按文件名排好序，所以输出与串行时完全一样。
+ * 线程数用 -Dgitlet.threads=N 设置，默认为CPU核数，N为1时完全串行执行。
+ *
+ * @author 张婧
+ */
+public class WorkingTree {
+    static final int THREADS = Math.max(1,
+            Integer.getInteger("gitlet.threads", Runtime.getRuntime().availableProcessors()));
+
+    private static ForkJoinPool pool;
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(THREADS);
+        }
+        return pool;
+    }
+
+    /**
+     * 返回REPO工作区中所有普通文件的文件名，按字典序排列，与Utils.plainFilenamesIn的结果一致
+     */
+    public static List<String> plainFiles(Repository repo) {
+        String[] names = repo.cwd.list();
+        if (names == null) {
+            return new ArrayList<>();
+        }
+        List<String> files = run(() -> stream(Arrays.asList(names))
+                .filter(name -> new File(repo.cwd, name).isFile())
+                .collect(Collectors.toList()));
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * 并行地计算NAMES中每个工作区文件的hash，返回文件名到hash的映射。
+     * 不存在的文件不会出现在结果中。stat信息没有变化的文件直接用STAGINGAREA中记录的hash
+     */
+    public static SortedMap<String, String> hashFiles(Repository repo, StagingArea stagingArea,
+                                                      Collection<String> names) {
+        List<String> existing = run(() -> stream(names)
+                .filter(name -> new File(repo.cwd, name).isFile())
+                .collect(Collectors.toList()));
+        List<String> hashes = run(() -> stream(existing)
+                .map(stagingArea::getWorkingFileHash)
+                .collect(Collectors.toList()));
+        SortedMap<String, String> result = new TreeMap<>();
+        for (int i = 0; i < existing.size(); i += 1) {
+            result.put(existing.get(i), hashes.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * 并行地把NAMES中的工作区文件存成REPO中的blob，返回文件名到实际存下来的内容的hash的映射
+     */
+    public static SortedMap<String, String> writeBlobs(Repository repo, Collection<String> names) {
+        List<String> files = new ArrayList<>(names);
+        List<String> hashes = run(() -> stream(files)
+                .map(name -> ObjectStore.writeBlobFromFile(repo.gitletDir, new File(repo.cwd, name)))
+                .collect(Collectors.toList()));
+        SortedMap<String, String> result = new TreeMap<>();
+        for (int i = 0; i < files.size(); i += 1) {
+            result.put(files.get(i), hashes.get(i));
+        }
+        return result;
+    }
+
+    private static <T> Stream<T> stream(Collection<T> items) {
+        return THREADS == 1 ? items.stream() : items.parallelStream();
+    }
+
+    /*在线程池中执行TASK，线程数为1时直接在当前线程执行*/
+    private static <T> T run(Callable<T> task) {
+        return await(submit(task));
+    }
+
+    /**
+     * 把TASK交给线程池异步执行，线程数为1时直接在当前线程执行完再返回。
+     * 除了工作区，global-log也用这个线程池预先读取commit
+     */
+    static <T> Future<T> submit(Callable<T> task) {
+        if (THREADS == 1) {
+            FutureTask<T> done = new FutureTask<>(task);
+            done.run();
+            return done;
+        }
+        return pool().submit(task);
+    }
+
+    /**
+     * 等待FUTURE完成并返回它的结果，任务中抛出的RuntimeException(包括GitletException)原样抛出
+     */
+    static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalArgumentException(e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(e);
+        } catch (Exception e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}